@@ -0,0 +1,280 @@
+package org.example;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C checksums of every BLOCK_SIZE block of a local file, kept in a sidecar file under
+ * Checksums/<serverId>/ so the data files stay byte-for-byte what clients wrote. Writers
+ * compute them while the bytes stream in and record them once the file is complete; readers
+ * check whatever bytes already pass through the heap. A sidecar also stores the size and
+ * modification time it was computed for, so a file changed without going through record()
+ * reads as "no checksums" instead of as corrupt.
+ *
+ * Sidecar format: int blockSize, long length, long modified, int blockCount, int crc per block.
+ */
+final class BlockChecksums {
+    static final int BLOCK_SIZE = FileTransfer.CHUNK_SIZE;
+    private static final String SUFFIX = ".crc32c";
+
+    /**
+     * Thrown when a block's bytes don't match its recorded checksum.
+     */
+    static final class ChecksumException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int block;
+
+        ChecksumException(String message, int block) {
+            super(message);
+            this.block = block;
+        }
+    }
+
+    /**
+     * Computes block checksums incrementally from bytes fed in file order.
+     */
+    static final class Accumulator {
+        private final CRC32C crc = new CRC32C();
+        private int[] blocks = new int[16];
+        private int blockCount;
+        private int inBlock;
+        private long length;
+
+        void update(byte[] data, int offset, int count) {
+            length += count;
+            while (count > 0) {
+                int take = Math.min(count, BLOCK_SIZE - inBlock);
+                crc.update(data, offset, take);
+                inBlock += take;
+                offset += take;
+                count -= take;
+                if (inBlock == BLOCK_SIZE) {
+                    endBlock();
+                }
+            }
+        }
+
+        private void endBlock() {
+            if (blockCount == blocks.length) {
+                blocks = Arrays.copyOf(blocks, blockCount * 2);
+            }
+            blocks[blockCount++] = (int) crc.getValue();
+            crc.reset();
+            inBlock = 0;
+        }
+
+        long length() {
+            return length;
+        }
+
+        int[] finish() {
+            if (inBlock > 0) {
+                endBlock();
+            }
+            return Arrays.copyOf(blocks, blockCount);
+        }
+    }
+
+    private static final class Sums {
+        final long length;
+        final long modified;
+        final int[] blocks;
+        volatile long verifiedAt;
+
+        Sums(long length, long modified, int[] blocks, long verifiedAt) {
+            this.length = length;
+            this.modified = modified;
+            this.blocks = blocks;
+            this.verifiedAt = verifiedAt;
+        }
+    }
+
+    private final File directory;
+    private final Map<String, Sums> loaded = new ConcurrentHashMap<>();
+    private final AtomicLong verifiedBlocks = new AtomicLong();
+    private final AtomicLong mismatches = new AtomicLong();
+    private final AtomicLong repairs = new AtomicLong();
+
+    BlockChecksums(File directory) {
+        this.directory = directory;
+    }
+
+    static int[] compute(byte[] content) {
+        Accumulator sums = new Accumulator();
+        sums.update(content, 0, content.length);
+        return sums.finish();
+    }
+
+    // Reads the whole file; for writers that did not see the bytes go by
+    static int[] compute(File file) throws IOException {
+        Accumulator sums = new Accumulator();
+        byte[] buffer = new byte[BLOCK_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                sums.update(buffer, 0, count);
+            }
+        }
+        return sums.finish();
+    }
+
+    // The checksums of a file after appended was added to it. lastBlock holds the bytes of its
+    // last block if that was partial (otherwise it is empty); blocks before it are unchanged.
+    static int[] append(int[] blocks, byte[] lastBlock, byte[] appended) {
+        int unchanged = lastBlock.length > 0 ? blocks.length - 1 : blocks.length;
+        Accumulator sums = new Accumulator();
+        sums.update(lastBlock, 0, lastBlock.length);
+        sums.update(appended, 0, appended.length);
+        int[] tail = sums.finish();
+        int[] result = Arrays.copyOf(blocks, unchanged + tail.length);
+        System.arraycopy(tail, 0, result, unchanged, tail.length);
+        return result;
+    }
+
+    static int crc(byte[] data, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    // Consumes the buffer's remaining bytes
+    static int crc(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    // Stores the checksums of file's current contents; call after the file is complete
+    void record(String fileName, File file, int[] blocks) throws IOException {
+        long length = file.length();
+        long modified = file.lastModified();
+        if (blocks.length != blockCount(length)) {
+            throw new IOException("Checksums cover " + blocks.length + " blocks, " + fileName + " has " + blockCount(length));
+        }
+        File sidecar = sidecarFor(fileName);
+        File parent = sidecar.getParentFile();
+        if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        File temporary = new File(parent, sidecar.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(BLOCK_SIZE);
+            out.writeLong(length);
+            out.writeLong(modified);
+            out.writeInt(blocks.length);
+            for (int block : blocks) {
+                out.writeInt(block);
+            }
+        }
+        Files.move(temporary.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        loaded.put(fileName, new Sums(length, modified, blocks, System.currentTimeMillis()));
+    }
+
+    void remove(String fileName) {
+        loaded.remove(fileName);
+        sidecarFor(fileName).delete();
+    }
+
+    // The recorded checksums if they describe file as it is now, otherwise null
+    int[] expected(String fileName, File file) {
+        Sums sums = current(fileName, file);
+        return sums != null ? sums.blocks : null;
+    }
+
+    // When the file was last read back in full against its checksums, 0 if never or unknown
+    long verifiedAt(String fileName, File file) {
+        Sums sums = current(fileName, file);
+        return sums != null ? sums.verifiedAt : 0;
+    }
+
+    // Checks a full copy of file that is already in memory
+    void verify(String fileName, File file, byte[] content) throws ChecksumException {
+        int[] expected = expected(fileName, file);
+        if (expected == null || content.length != file.length()) {
+            return;
+        }
+        for (int block = 0; block < expected.length; block++) {
+            int offset = block * BLOCK_SIZE;
+            if (crc(content, offset, Math.min(BLOCK_SIZE, content.length - offset)) != expected[block]) {
+                throw mismatch(fileName, block);
+            }
+        }
+        verified(fileName, expected.length);
+    }
+
+    void verified(String fileName, int blocks) {
+        verifiedBlocks.addAndGet(blocks);
+        Sums sums = loaded.get(fileName);
+        if (sums != null) {
+            sums.verifiedAt = System.currentTimeMillis();
+        }
+    }
+
+    ChecksumException mismatch(String fileName, int block) {
+        mismatches.incrementAndGet();
+        return new ChecksumException("Checksum mismatch in block " + block + " of " + fileName, block);
+    }
+
+    void repaired() {
+        repairs.incrementAndGet();
+    }
+
+    String metrics() {
+        return "checksums verifiedBlocks=" + verifiedBlocks.get() + " mismatches=" + mismatches.get()
+                + " repairs=" + repairs.get() + " loaded=" + loaded.size();
+    }
+
+    private Sums current(String fileName, File file) {
+        Sums sums = loaded.get(fileName);
+        if (sums == null) {
+            sums = load(fileName);
+            if (sums != null) {
+                loaded.put(fileName, sums);
+            }
+        }
+        if (sums == null || sums.length != file.length() || sums.modified != file.lastModified()) {
+            return null;
+        }
+        return sums;
+    }
+
+    private Sums load(String fileName) {
+        File sidecar = sidecarFor(fileName);
+        if (!sidecar.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (in.readInt() != BLOCK_SIZE) {
+                return null; // written with another block size, the scrubber will redo it
+            }
+            long length = in.readLong();
+            long modified = in.readLong();
+            int[] blocks = new int[in.readInt()];
+            if (blocks.length != blockCount(length)) {
+                return null;
+            }
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = in.readInt();
+            }
+            return new Sums(length, modified, blocks, 0);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private File sidecarFor(String fileName) {
+        return new File(directory, fileName + SUFFIX);
+    }
+
+    static int blockCount(long length) {
+        return (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+}
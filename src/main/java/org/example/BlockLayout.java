@@ -0,0 +1,75 @@
+package org.example;
+
+import com.google.gson.Gson;
+
+import java.util.*;
+
+/**
+ * Splits a file into fixed-size blocks and assigns each block an ordered list of servers to
+ * read it from. Every holder keeps a full copy, so any of them can serve any block; the list
+ * is rotated per block so that a reader fetching blocks in parallel spreads them over all
+ * replicas instead of pulling everything from the primary.
+ */
+public class BlockLayout {
+    static final long DEFAULT_BLOCK_SIZE = 64L * 1024 * 1024;
+
+    static class Block {
+        int index;
+        long offset;
+        long length;
+        List<String> locations; // server ids, preferred first
+
+        Block(int index, long offset, long length, List<String> locations) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+            this.locations = locations;
+        }
+    }
+
+    static class Location {
+        String serverId;
+        String address;
+        int port;
+
+        Location(String serverId, String address, int port) {
+            this.serverId = serverId;
+            this.address = address;
+            this.port = port;
+        }
+    }
+
+    String fileName;
+    long fileSize;
+    long blockSize;
+    List<Block> blocks;
+    Map<String, Location> servers = new LinkedHashMap<>();
+
+    BlockLayout(String fileName, long fileSize, long blockSize, List<Block> blocks) {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.blocks = blocks;
+    }
+
+    static List<Block> plan(long fileSize, long blockSize, List<String> holders) {
+        List<Block> blocks = new ArrayList<>();
+        int index = 0;
+        for (long offset = 0; offset < fileSize; offset += blockSize, index++) {
+            List<String> locations = new ArrayList<>(holders.size());
+            for (int i = 0; i < holders.size(); i++) {
+                locations.add(holders.get((index + i) % holders.size()));
+            }
+            blocks.add(new Block(index, offset, Math.min(blockSize, fileSize - offset), locations));
+        }
+        return blocks;
+    }
+
+    String toJson() {
+        return new Gson().toJson(this);
+    }
+
+    static BlockLayout fromJson(String json) {
+        return new Gson().fromJson(json, BlockLayout.class);
+    }
+}
@@ -0,0 +1,140 @@
+package org.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Walks the local data directory in the background and reads back every file that has not
+ * been verified within the rescan period, at no more than bytesPerSecond so foreground reads
+ * keep the disk. Hot files are verified by the reads that load them and are skipped.
+ * A corrupt file is handed to onCorrupt; a file without checksums that has been left alone
+ * for a while has them computed, so files written before checksums existed are covered too.
+ */
+final class ChecksumScrubber implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(ChecksumScrubber.class);
+
+    private final BlockChecksums checksums;
+    private final File dataDirectory;
+    private final long bytesPerSecond;
+    private final long rescanMillis;
+    private final long quietMillis;
+    private final Consumer<String> onCorrupt;
+    private long windowStart = System.nanoTime();
+    private long windowBytes;
+
+    ChecksumScrubber(BlockChecksums checksums, File dataDirectory, long bytesPerSecond, long rescanMillis,
+                     long quietMillis, Consumer<String> onCorrupt) {
+        this.checksums = checksums;
+        this.dataDirectory = dataDirectory;
+        this.bytesPerSecond = bytesPerSecond;
+        this.rescanMillis = rescanMillis;
+        this.quietMillis = quietMillis;
+        this.onCorrupt = onCorrupt;
+    }
+
+    // One pass over the directory; scheduled with a fixed delay so passes never overlap
+    @Override
+    public void run() {
+        if (!dataDirectory.isDirectory()) {
+            return;
+        }
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(dataDirectory.toPath())) {
+            files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.error("Scrubber cannot list " + dataDirectory + ": " + e.getMessage());
+            return;
+        }
+        for (Path path : files) {
+            String fileName = dataDirectory.toPath().relativize(path).toString();
+            if (fileName.endsWith(".delta") || fileName.endsWith(".repair") || fileName.endsWith(".update")
+                    || fileName.endsWith(".write")) {
+                continue; // FileServer's scratch copies, renamed over the real file or deleted
+            }
+            try {
+                scrub(fileName, path.toFile());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                logger.info("Scrubber skipped " + fileName + ": " + e.getMessage()); // deleted or replaced meanwhile
+            }
+        }
+    }
+
+    private void scrub(String fileName, File file) throws IOException, InterruptedException {
+        long now = System.currentTimeMillis();
+        if (now - file.lastModified() < quietMillis) {
+            return; // still being written, or just written and checksummed by the writer
+        }
+        int[] expected = checksums.expected(fileName, file);
+        if (expected != null && now - checksums.verifiedAt(fileName, file) < rescanMillis) {
+            return;
+        }
+        long length = file.length();
+        long modified = file.lastModified();
+        BlockChecksums.Accumulator sums = new BlockChecksums.Accumulator();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer block = ByteBuffer.allocate(BlockChecksums.BLOCK_SIZE);
+            int index = 0;
+            long position = 0;
+            while (position < length) {
+                block.clear();
+                while (block.hasRemaining() && position + block.position() < length) {
+                    if (channel.read(block, position + block.position()) < 0) {
+                        break;
+                    }
+                }
+                int count = block.position();
+                if (count == 0) {
+                    break;
+                }
+                if (expected != null && BlockChecksums.crc(block.array(), 0, count) != expected[index]) {
+                    if (file.lastModified() != modified) {
+                        return; // rewritten under us, the writer recorded new checksums
+                    }
+                    logger.error("Scrubber found corruption in block " + index + " of " + fileName);
+                    checksums.mismatch(fileName, index);
+                    onCorrupt.accept(fileName);
+                    return;
+                }
+                sums.update(block.array(), 0, count);
+                position += count;
+                index++;
+                throttle(count);
+            }
+        }
+        if (file.length() != length || file.lastModified() != modified) {
+            return;
+        }
+        if (expected != null) {
+            checksums.verified(fileName, expected.length);
+        } else {
+            checksums.record(fileName, file, sums.finish());
+        }
+    }
+
+    private void throttle(int bytes) throws InterruptedException {
+        windowBytes += bytes;
+        long aheadNanos = windowBytes * 1_000_000_000L / bytesPerSecond - (System.nanoTime() - windowStart);
+        if (aheadNanos > 0) {
+            Thread.sleep(aheadNanos / 1_000_000, (int) (aheadNanos % 1_000_000));
+        }
+        if (windowBytes >= bytesPerSecond) {
+            windowStart = System.nanoTime();
+            windowBytes = 0;
+        }
+    }
+}
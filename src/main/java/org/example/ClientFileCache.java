@@ -0,0 +1,71 @@
+package org.example;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Client-side LRU cache of file contents, bounded in bytes. Each entry carries the ETag the
+ * server returned with it; reads send that tag back and reuse the cached bytes when the
+ * server answers "not modified".
+ */
+public class ClientFileCache {
+
+    static final class Entry {
+        final String eTag;
+        final byte[] content;
+
+        Entry(String eTag, byte[] content) {
+            this.eTag = eTag;
+            this.content = content;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    public ClientFileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized Entry get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    // The server confirmed the cached copy, or sent a new one
+    synchronized void recordHit() {
+        hits++;
+    }
+
+    synchronized void recordMiss() {
+        misses++;
+    }
+
+    synchronized void put(String fileName, String eTag, byte[] content) {
+        remove(fileName);
+        if (content.length > maxBytes) {
+            return;
+        }
+        entries.put(fileName, new Entry(eTag, content));
+        bytes += content.length;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().content.length;
+            eldest.remove();
+        }
+    }
+
+    synchronized void remove(String fileName) {
+        Entry removed = entries.remove(fileName);
+        if (removed != null) {
+            bytes -= removed.content.length;
+        }
+    }
+
+    synchronized String stats() {
+        return String.format("client cache: %d hits, %d misses, %d files, %d bytes", hits, misses, entries.size(), bytes);
+    }
+}
@@ -7,27 +7,37 @@
     import com.orbitz.consul.model.health.ServiceHealth;
 
     import java.io.*;
+    import java.net.ConnectException;
     import java.net.HttpURLConnection;
+    import java.net.NoRouteToHostException;
     import java.net.Socket;
     import java.net.URL;
     import java.net.UnknownHostException;
+    import java.nio.channels.FileChannel;
+    import java.nio.charset.StandardCharsets;
     import java.nio.file.Files;
     import java.nio.file.Path;
+    import java.nio.file.StandardCopyOption;
+    import java.nio.file.StandardOpenOption;
     import java.util.*;
     import java.util.concurrent.atomic.AtomicReference;
+    import java.util.concurrent.ExecutionException;
+    import java.util.concurrent.ExecutorService;
     import java.util.concurrent.Executors;
+    import java.util.concurrent.Future;
     import java.util.concurrent.ScheduledExecutorService;
     import java.util.concurrent.TimeUnit;
 
 
 
     public class ClientServer {
-        private static final ConsistentHashing hashRing = new ConsistentHashing(3, new ArrayList<>()); // 3 replicas, start with an empty list of servers
+        private static final ConsistentHashing hashRing = new ConsistentHashing(Integer.getInteger("dfs.virtualNodes", 128), new ArrayList<>()); // virtual nodes per server, start with an empty list of servers
         private static final AtomicReference<ServerDetails> connectedServerDetails = new AtomicReference<>();
         private static final String SERVICE_NAME = "file-server3";
         private static volatile boolean isServerHealthy = true;
 
-        private final HealthClient healthClient =  Consul.builder().build().healthClient();
+        private static final Consul consul = Consul.builder().build();
+        private final HealthClient healthClient =  consul.healthClient();
         private static HashMap<String,ServiceHealth> nodeIdPair = new HashMap<String,ServiceHealth>();
         private static Boolean lastHealthStatus = null;
         private static final int HEALTH_CHECK_TIMEOUT = 30000; // 30 seconds in milliseconds
@@ -35,6 +45,19 @@
 
         static String userOperation;
         private static  long timetaken;
+        private static final ConnectionPool connectionPool = new ConnectionPool();
+        private static final ClientFileCache fileCache = new ClientFileCache(Long.getLong("dfs.clientCacheBytes", 32L * 1024 * 1024));
+        private static final long clientCacheMaxEntryBytes = Long.getLong("dfs.clientCacheMaxEntryBytes", 4L * 1024 * 1024);
+        private static final long NOT_MODIFIED = -2;
+        private static final int blockReadThreads = Integer.getInteger("dfs.blockReadThreads", 8);
+        // "owner" sends a file's requests to a server that holds it, "hash" always to the connected server
+        private static final boolean routeToOwners = !"hash".equals(System.getProperty("dfs.clientRouting", "owner"));
+        private static final FileLocations fileLocations = new FileLocations(Long.getLong("dfs.locateCacheMillis", 5000),
+                Long.getLong("dfs.ownerDownMillis", 30000));
+
+        private interface RoutedRequest {
+            void send(String serverAddress, int serverPort) throws IOException;
+        }
 
         private static class ServerDetails {
             String address;
@@ -61,6 +84,7 @@
                 return;
             }
 
+            String serverId = selectedServer.getService().getId();
             String address = selectedServer.getNode().getAddress();
             int port = selectedServer.getService().getPort();
             connectedServerDetails.set(new ServerDetails(address, port));
@@ -80,7 +104,7 @@
 //                        }
 //                    }
                     System.out.println("____________________\n");
-                    System.out.println("Choose the operation \n 1.Upload Existing file \n 2.Create new file \n 3.Read file \n 4.Write to file \n 5.Delete File \n 6.File Open,Seek and Close \n 7. Restart Server \n 0.Exit");
+                    System.out.println("Choose the operation \n 1.Upload Existing file \n 2.Create new file \n 3.Read file \n 4.Write to file \n 5.Delete File \n 6.File Open,Seek and Close \n 7. Restart Server \n 8.Read byte range \n 9.Download file in parallel blocks \n 10.Append to file \n 0.Exit");
                     userOperation = in.nextLine();
                     if (userOperation.equals("1")) {
                         System.out.println("Enter File Name");
@@ -97,25 +121,52 @@
                             fileContentBuilder.append(line).append("\n");
                         }
                         String fileContent = fileContentBuilder.toString();
-                        sendNewFileToServer(address, port, fileName, fileContent);
+                        sendNewFileToServer(serverId, address, port, fileName, fileContent);
                     } else if (userOperation.equals("3")) {
                         System.out.println("Enter the name of the file to read:");
                         String fileName = in.nextLine();
-                        readFileFromServer(address, port, fileName);
+                        routed(serverId, address, port, fileName, (owner, ownerPort) -> readFileFromServer(owner, ownerPort, fileName));
                     } else if (userOperation.equals("4")) {
                         System.out.println("Enter the name of the file to write to:");
                         String fileName = in.nextLine();
-                        requestWriteToFile(address, port, fileName);
+                        routed(serverId, address, port, fileName, (owner, ownerPort) -> requestWriteToFile(owner, ownerPort, fileName));
                     } else if (userOperation.equals("5")) {
                         System.out.println("Enter the name of the file to delete:");
                         String fileName = in.nextLine();
-                        deleteFileOnServer(address, port, fileName);
+                        deleteFileOnServer(serverId, address, port, fileName);
                     } else if (userOperation.equals("6")) {
                         System.out.println("Enter the name of the file to open:");
                         String fileName = in.nextLine();
-                        requestServerToOpenFile(address, port, fileName);
+                        routed(serverId, address, port, fileName, (owner, ownerPort) -> requestServerToOpenFile(owner, ownerPort, fileName));
 
+                    } else if (userOperation.equals("8")) {
+                        System.out.println("Enter the name of the file to read:");
+                        String fileName = in.nextLine();
+                        System.out.println("Enter the offset:");
+                        long offset = Long.parseLong(in.nextLine().trim());
+                        System.out.println("Enter the length:");
+                        long length = Long.parseLong(in.nextLine().trim());
+                        routed(serverId, address, port, fileName,
+                                (owner, ownerPort) -> readRangeFromServer(owner, ownerPort, fileName, offset, length));
+                    } else if (userOperation.equals("9")) {
+                        System.out.println("Enter the name of the file to download:");
+                        String fileName = in.nextLine();
+                        System.out.println("Enter the local path to save it to:");
+                        Path target = Path.of(in.nextLine().trim());
+                        downloadFileInBlocks(serverId, address, port, fileName, target);
+                    } else if (userOperation.equals("10")) {
+                        System.out.println("Enter the name of the file to append to:");
+                        String fileName = in.nextLine();
+                        System.out.println("Enter the content to append (end input with a single line containing 'END'):");
+                        StringBuilder appendedBuilder = new StringBuilder();
+                        String line;
+                        while (!(line = in.nextLine()).equals("END")) {
+                            appendedBuilder.append(line).append("\n");
+                        }
+                        appendToFile(serverId, address, port, fileName, appendedBuilder.toString().getBytes(StandardCharsets.UTF_8));
                     } else if (userOperation.equals("0")) {
+                        System.out.println(fileCache.stats());
+                        System.out.println(fileLocations.stats());
                         System.out.println("Closing application");
                         System.exit(0);
                     } else if (userOperation.equals("7")) {
@@ -130,7 +181,7 @@
             in.close();
         }
 
-            private static void requestServerToOpenFile(String serverAddress, int serverPort, String fileName) {
+            private static void requestServerToOpenFile(String serverAddress, int serverPort, String fileName) throws IOException {
                 try (Socket socket = new Socket(serverAddress, serverPort);
                      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
                      DataInputStream in = new DataInputStream(socket.getInputStream());
@@ -140,69 +191,263 @@
                     out.writeUTF(fileName);
 
                     String response = in.readUTF();
+                    if (response.endsWith(" Running")) {
+                        response = in.readUTF(); // the server acknowledges the mode before opening
+                    }
                     if (!"FILE OPENED".equals(response)) {
                         System.out.println("Server response: " + response);
-                       // return; // Exit if file not opened
+                        return; // Exit if file not opened
                     }
+                    long fileSize = in.readLong();
+                    System.out.println("File size: " + fileSize + " bytes");
 
                     boolean isFileOpen = true;
                     while (isFileOpen) {
-                        System.out.println("Enter the seek position (Integer) or type CLOSE to close the file:");
+                        System.out.println("Enter the seek position and optional length (default 1024), or type CLOSE to close the file:");
                         String input = sc.nextLine().trim();
                         if ("CLOSE".equals(input)) {
                             out.writeUTF("CLOSE");
                             isFileOpen = false;
                         } else {
                             try {
-                                //int seekPosition = Integer.parseInt(input);
-                                out.writeUTF("SEEK"); // Add this line to send SEEK command
-                                out.writeInt(Integer.parseInt(input));
-                                String content = in.readUTF();
-                                System.out.println("Content at position " + input + ": " + content);
+                                String[] parts = input.split("\\s+");
+                                long offset = Long.parseLong(parts[0]);
+                                int length = parts.length > 1 ? Integer.parseInt(parts[1]) : 1024;
+                                byte[] content = seek(out, in, offset, length);
+                                if (content == null) {
+                                    System.out.println("Seek position is beyond the file length.");
+                                } else {
+                                    System.out.println("Content at position " + offset + ":");
+                                    System.out.write(content);
+                                    System.out.println();
+                                }
                             } catch (NumberFormatException e) {
                                 System.out.println("Invalid input. Please enter a valid integer.");
                             }
                         }
                     }
                     System.out.println("File Closed");
-                } catch (IOException e) {
-                    System.out.println("Error occurred: " + e.getMessage());
-                    e.printStackTrace();
                 }
             }
 
 
-        private static void readFileFromServer(String serverAddress, int serverPort, String fileName) {
+        // Raw bytes at [offset, offset + length) of an open file, or null past the end
+        static byte[] seek(DataOutputStream out, DataInputStream in, long offset, int length) throws IOException {
+            out.writeUTF("SEEK");
+            out.writeLong(offset);
+            out.writeInt(length);
+            out.flush();
+            long count = in.readLong();
+            if (count < 0) {
+                return null;
+            }
+            byte[] content = new byte[(int) count];
+            in.readFully(content);
+            return content;
+        }
+
+        // Revalidates the cached copy with its ETag, so an unchanged file costs one round trip
+        private static void readFileFromServer(String serverAddress, int serverPort, String fileName) throws IOException {
             try (Socket socket = new Socket(serverAddress, serverPort);
-                 DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                 DataInputStream in = new DataInputStream(socket.getInputStream())) {
+                 FileTransfer.CodecOutputStream out = new FileTransfer.CodecOutputStream(socket.getOutputStream());
+                 FileTransfer.CodecInputStream in = new FileTransfer.CodecInputStream(new BufferedInputStream(socket.getInputStream()))) {
 
-                out.writeUTF("READ");
+                FileTransfer.negotiate(out, in, Codec.offered());
+                ClientFileCache.Entry cached = fileCache.get(fileName);
+                out.writeUTF("READ_CONDITIONAL");
                 out.writeUTF(fileName);
-
-                String response = in.readUTF();
-                int fileLength = in.readInt();
-                if (fileLength > 0) {
-                    byte[] fileContent = new byte[fileLength];
-                    in.readFully(fileContent);
-                    System.out.println("File content:\n" + new String(fileContent));
+                out.writeUTF(cached != null ? cached.eTag : "");
+                out.flush();
+
+                String eTag = in.readUTF();
+                long fileLength = in.readLong();
+                if (fileLength == NOT_MODIFIED && cached != null) {
+                    fileCache.recordHit();
+                    System.out.println("File content (cached, unchanged):");
+                    System.out.write(cached.content);
+                    System.out.println();
+                } else if (fileLength > 0) {
+                    fileCache.recordMiss();
+                    System.out.println("File content:");
+                    if (fileLength <= clientCacheMaxEntryBytes) {
+                        byte[] content = new byte[(int) fileLength];
+                        new DataInputStream(FileTransfer.bodyInput(in, fileLength)).readFully(content);
+                        fileCache.put(fileName, eTag, content);
+                        System.out.write(content);
+                    } else {
+                        // Stream straight to the console so large files never sit on the heap
+                        fileCache.remove(fileName);
+                        FileTransfer.copy(in, fileLength, System.out);
+                    }
+                    System.out.println();
                 } else {
+                    fileCache.remove(fileName);
                     System.out.println("File not found or empty.");
                 }
+            }
+        }
+
+        private static void readRangeFromServer(String serverAddress, int serverPort, String fileName, long offset, long length) throws IOException {
+            try (Socket socket = new Socket(serverAddress, serverPort);
+                 FileTransfer.CodecOutputStream out = new FileTransfer.CodecOutputStream(socket.getOutputStream());
+                 FileTransfer.CodecInputStream in = new FileTransfer.CodecInputStream(new BufferedInputStream(socket.getInputStream()))) {
+
+                FileTransfer.negotiate(out, in, Codec.offered());
+                out.writeUTF("READ_RANGE");
+                out.writeUTF(fileName);
+                out.writeLong(offset);
+                out.writeLong(length);
+                out.flush();
+
+                long count = in.readLong();
+                if (count < 0) {
+                    System.out.println("File not found or invalid range.");
+                } else {
+                    System.out.println(count + " bytes at offset " + offset + ":");
+                    FileTransfer.copy(in, count, System.out);
+                    System.out.println();
+                }
+            }
+        }
+
+        // Fetches the block layout, then reads every block with READ_RANGE from its preferred
+        // replica in parallel, falling back to the block's other locations, and writes each one
+        // at its offset in the target file
+        private static void downloadFileInBlocks(String serverId, String serverAddress, int serverPort, String fileName, Path target) {
+            ExecutorService blockReaders = null;
+            try (FileChannel fileChannel = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataInputStream in = connectionPool.get(serverId, serverAddress, serverPort)
+                        .call(Opcode.BLOCKS, out -> out.writeUTF(fileName));
+                byte[] json = new byte[in.readInt()];
+                if (json.length == 0) {
+                    System.out.println("File not found.");
+                    return;
+                }
+                in.readFully(json);
+                BlockLayout layout = BlockLayout.fromJson(new String(json, StandardCharsets.UTF_8));
+
+                long start = System.nanoTime();
+                blockReaders = Executors.newFixedThreadPool(Math.max(1, Math.min(blockReadThreads, layout.blocks.size())));
+                List<Future<?>> reads = new ArrayList<>();
+                for (BlockLayout.Block block : layout.blocks) {
+                    reads.add(blockReaders.submit(() -> {
+                        readBlock(layout, block, fileChannel);
+                        return null;
+                    }));
+                }
+                for (Future<?> read : reads) {
+                    read.get();
+                }
+                long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                System.out.printf("Downloaded %d bytes in %d blocks from %d servers in %d ms (%.1f MB/s)%n",
+                        layout.fileSize, layout.blocks.size(), layout.servers.size(), elapsedMillis,
+                        layout.fileSize / 1024.0 / 1024.0 / (elapsedMillis / 1000.0));
+            } catch (ExecutionException e) {
+                System.out.println("Error occurred: " + e.getCause().getMessage());
             } catch (IOException e) {
                 System.out.println("Error occurred: " + e.getMessage());
                 e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (blockReaders != null) {
+                    blockReaders.shutdownNow();
+                }
             }
         }
 
-        private static void deleteFileOnServer(String serverAddress, int serverPort, String fileName) {
-            try (Socket socket = new Socket(serverAddress, serverPort);
-                 DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+        private static void readBlock(BlockLayout layout, BlockLayout.Block block, FileChannel fileChannel) throws IOException {
+            IOException lastFailure = null;
+            for (String location : block.locations) {
+                BlockLayout.Location server = layout.servers.get(location);
+                if (server == null) {
+                    continue; // inactive
+                }
+                ConnectionPool.StreamConnection connection = connectionPool.borrowStream(server.serverId, server.address, server.port);
+                try {
+                    connection.out.writeUTF("READ_RANGE");
+                    connection.out.writeUTF(layout.fileName);
+                    connection.out.writeLong(block.offset);
+                    connection.out.writeLong(block.length);
+                    connection.out.flush();
+                    long count = connection.in.readLong();
+                    if (count != block.length) {
+                        throw new IOException(server.serverId + " returned " + count + " bytes for block " + block.index);
+                    }
+                    FileTransfer.receiveToChannel(connection.in, count, fileChannel, block.offset);
+                    connectionPool.releaseStream(server.serverId, connection);
+                    return;
+                } catch (IOException e) {
+                    connection.close();
+                    lastFailure = e;
+                }
+            }
+            throw lastFailure != null ? lastFailure : new IOException("No active server holds block " + block.index);
+        }
 
-                out.writeUTF("DELETE");
-                out.writeUTF(fileName);
+        // Sends a request for fileName to one of its holders, so the connected server doesn't have to
+        // fetch the file and relay every byte. Falls back to the connected server when the holders
+        // are unknown or the chosen one can't be reached; only a refused connection is retried,
+        // since by then nothing has been sent.
+        private static void routed(String serverId, String address, int port, String fileName, RoutedRequest request) {
+            BlockLayout.Location owner = routeToOwners
+                    ? fileLocations.owner(fileName, name -> locate(serverId, address, port, name)) : null;
+            try {
+                if (owner != null) {
+                    try {
+                        request.send(owner.address, owner.port);
+                        return;
+                    } catch (ConnectException | NoRouteToHostException e) {
+                        System.out.println(owner.serverId + " is unreachable, going through " + serverId);
+                        fileLocations.failed(fileName, owner);
+                    }
+                }
+                request.send(address, port);
+            } catch (IOException e) {
+                fileLocations.invalidate(fileName);
+                System.out.println("Error occurred: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        private static List<BlockLayout.Location> locate(String serverId, String address, int port, String fileName) throws IOException {
+            DataInputStream in = connectionPool.get(serverId, address, port)
+                    .call(Opcode.LOCATE, out -> out.writeUTF(fileName));
+            int count = in.readInt();
+            List<BlockLayout.Location> holders = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                holders.add(new BlockLayout.Location(in.readUTF(), in.readUTF(), in.readInt()));
+            }
+            return holders;
+        }
+
+        private static void deleteFileOnServer(String serverId, String serverAddress, int serverPort, String fileName) {
+            try {
+                DataInputStream in = connectionPool.get(serverId, serverAddress, serverPort)
+                        .call(Opcode.DELETE, out -> out.writeUTF(fileName));
+                fileCache.remove(fileName);
+                fileLocations.invalidate(fileName);
 
-                System.out.println("Request sent to delete file: " + fileName);
+                System.out.println("Server says: " + in.readUTF());
+            } catch (IOException e) {
+                System.out.println("Error occurred: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        // APPEND goes through the connected server, which hands it to the holder that applies appends
+        private static void appendToFile(String serverId, String serverAddress, int serverPort, String fileName, byte[] appended) {
+            try {
+                DataInputStream in = connectionPool.get(serverId, serverAddress, serverPort).call(Opcode.APPEND, out -> {
+                    out.writeUTF(fileName);
+                    out.writeInt(appended.length);
+                    out.write(appended);
+                });
+                long offset = in.readLong();
+                String reply = in.readUTF();
+                fileCache.remove(fileName);
+                System.out.println(offset < 0 ? "Server says: " + reply : "Appended at offset " + offset + ". Server says: " + reply);
             } catch (IOException e) {
                 System.out.println("Error occurred: " + e.getMessage());
                 e.printStackTrace();
@@ -224,16 +469,19 @@
 
 
 
-        private static void requestWriteToFile(String serverAddress, int serverPort, String fileName) {
+        private static void requestWriteToFile(String serverAddress, int serverPort, String fileName) throws IOException {
             Socket socket = null;
-            DataOutputStream out = null;
-            DataInputStream in = null;
+            FileTransfer.CodecOutputStream out = null;
+            FileTransfer.CodecInputStream in = null;
             Path tempFilePath = null;
+            Path originalPath = null;
+            Path deltaPath = null;
             try {
                 socket = new Socket(serverAddress, serverPort);
-                out = new DataOutputStream(socket.getOutputStream());
-                in = new DataInputStream(socket.getInputStream());
+                out = new FileTransfer.CodecOutputStream(socket.getOutputStream());
+                in = new FileTransfer.CodecInputStream(socket.getInputStream());
 
+                FileTransfer.negotiate(out, in, Codec.offered());
                 out.writeUTF("WRITE");
                 out.writeUTF(fileName);
 
@@ -244,28 +492,39 @@
                     return;
                 }
 
-                int fileSize = in.readInt();
+                long fileSize = in.readLong();
                 if (fileSize <= 0) {
                     System.out.println("Received an empty file or file not found.");
                     return;
                 }
 
-                byte[] fileContent = new byte[fileSize];
-                in.readFully(fileContent);
-
                 tempFilePath = Files.createTempFile("editfile_", ".tmp");
-                Files.write(tempFilePath, fileContent);
+                FileTransfer.receiveToFile(in, fileSize, tempFilePath);
+                // The editor changes the file in place, so the delta's basis is kept aside
+                originalPath = Files.createTempFile("editfile_", ".orig");
+                Files.copy(tempFilePath, originalPath, StandardCopyOption.REPLACE_EXISTING);
 
                 editFile(tempFilePath.toString());
 
-                byte[] editedContent = Files.readAllBytes(tempFilePath);
-                sendEditedContentToServer(out, fileName, new String(editedContent));
-            } catch (IOException | InterruptedException e) {
+                fileCache.remove(fileName);
+                deltaPath = Files.createTempFile("editfile_", ".delta");
+                try (OutputStream deltaOut = Files.newOutputStream(deltaPath)) {
+                    DeltaSync.delta(originalPath, tempFilePath, deltaOut);
+                }
+                if (Files.size(deltaPath) < Files.size(tempFilePath)) {
+                    sendEditedDeltaToServer(out, originalPath, tempFilePath, deltaPath);
+                } else {
+                    sendEditedContentToServer(out, fileName, tempFilePath);
+                }
+                System.out.println("Server says: " + in.readUTF());
+            } catch (InterruptedException e) {
                 System.out.println("Error: " + e.getMessage());
                 e.printStackTrace();
             } finally {
                 try {
                     if (tempFilePath != null) Files.delete(tempFilePath);
+                    if (originalPath != null) Files.delete(originalPath);
+                    if (deltaPath != null) Files.delete(deltaPath);
                     if (in != null) in.close();
                     if (out != null) out.close();
                     if (socket != null && !socket.isClosed()) socket.close();
@@ -281,16 +540,34 @@
             process.waitFor();
         }
 
-        private static void sendEditedContentToServer(DataOutputStream out, String fileName, String editedContent) throws IOException {
+        // The edited file's raw bytes, so binary content arrives unchanged
+        private static void sendEditedContentToServer(DataOutputStream out, String fileName, Path editedFile) throws IOException {
             out.writeUTF("EDITED_CONTENT");
             //out.writeUTF(fileName);
-            byte[] contentBytes = editedContent.getBytes();
-            out.writeInt(contentBytes.length);
-            out.write(contentBytes);
+            sendIntLengthFile(out, editedFile);
             System.out.println("Edited content sent to server.");
 
         }
 
+        // Only the changes travel: the server rebuilds the file from its copy of the original
+        private static void sendEditedDeltaToServer(DataOutputStream out, Path originalFile, Path editedFile, Path deltaFile) throws IOException {
+            out.writeUTF("EDITED_DELTA");
+            out.writeUTF(FileETags.digest(originalFile.toFile()));
+            out.writeUTF(FileETags.digest(editedFile.toFile()));
+            sendIntLengthFile(out, deltaFile);
+            System.out.println("Edited content sent to server as a " + Files.size(deltaFile) + " byte delta.");
+        }
+
+        // The edit commands carry an int length, then the bytes streamed from the file
+        private static void sendIntLengthFile(DataOutputStream out, Path file) throws IOException {
+            long length = Files.size(file);
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException(file.getFileName() + " is too large to send as an edit: " + length + " bytes");
+            }
+            out.writeInt((int) length);
+            Files.copy(file, out);
+        }
+
         private static void startRegularHealthChecks() {
             ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
             executor.scheduleAtFixedRate(() -> {
@@ -343,7 +620,6 @@
 
 
         private static void buildHashRing() {
-            Consul consul = Consul.builder().build();
             HealthClient healthClient = consul.healthClient();
             List<ServiceHealth> nodes = healthClient.getHealthyServiceInstances("file-server3").getResponse();
 
@@ -376,44 +652,36 @@
             }
 
             try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-                 DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
-                 BufferedInputStream fileInputStream = new BufferedInputStream(new FileInputStream(file))) {
+                 FileTransfer.CodecOutputStream dataOutputStream = new FileTransfer.CodecOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                 FileTransfer.CodecInputStream dataInputStream = new FileTransfer.CodecInputStream(socket.getInputStream())) {
 
+                FileTransfer.negotiate(dataOutputStream, dataInputStream, Codec.offered());
                 // Send the command and the filename
                 dataOutputStream.writeUTF("UPLOAD");
                 dataOutputStream.writeUTF(filePath);
 
-                // Send the file size
-//                long fileSize = file.length();
-//                dataOutputStream.writeLong(fileSize);
-
-                // Send the file data
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                    dataOutputStream.write(buffer, 0, bytesRead);
-                }
+                // Send the file size followed by the file data
+                FileTransfer.sendFile(file, dataOutputStream);
 
                 System.out.println("File and filename have been sent successfully: " + filePath);
+                System.out.println("Server says: " + dataInputStream.readUTF());
             } catch (IOException e) {
                 System.out.println("Error occurred: " + e.getMessage());
                 e.printStackTrace();
             }
         }
 
-        private static void sendNewFileToServer(String SERVER_ADDRESS, int SERVER_PORT, String fileName, String fileContent) {
+        private static void sendNewFileToServer(String serverId, String SERVER_ADDRESS, int SERVER_PORT, String fileName, String fileContent) {
             timetaken = System.currentTimeMillis();
-            try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-                 DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-                // Send the command, file name, and file content
-                out.writeUTF("CREATE");
-                out.writeUTF(fileName);
-                out.writeUTF(fileContent);
+            try {
+                // Send the file name and file content
+                DataInputStream in = connectionPool.get(serverId, SERVER_ADDRESS, SERVER_PORT).call(Opcode.CREATE, out -> {
+                    out.writeUTF(fileName);
+                    out.writeUTF(fileContent);
+                });
 
                 // Read server response
-                System.out.println("Server says: " + in.readLine());
+                System.out.println("Server says: " + in.readUTF());
                 timetaken = System.currentTimeMillis()- timetaken;
                 System.out.println("Time taken: " + timetaken);
 
@@ -0,0 +1,125 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wire compression codecs. A connection agrees on one with the CODECS command (raw
+ * connections) or the CODECS frame (framed ones): the client offers its list in preference
+ * order and the server answers with the first one it supports. Every compressed chunk or
+ * frame names the codec it was written with, so a sender may always fall back to NONE for
+ * data that doesn't compress.
+ */
+public enum Codec {
+    NONE(0, "none", 0),
+    DEFLATE_FAST(1, "deflate-fast", Deflater.BEST_SPEED),
+    DEFLATE(2, "deflate", Deflater.DEFAULT_COMPRESSION);
+
+    // Deflater and Inflater hold native memory, so each thread keeps one of each per level
+    private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater[values().length]);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    final byte id;
+    final String wireName;
+    private final int level;
+
+    Codec(int id, String wireName, int level) {
+        this.id = (byte) id;
+        this.wireName = wireName;
+        this.level = level;
+    }
+
+    // Compresses into target, returning the compressed length, or -1 if it would not fit
+    int compress(byte[] source, int offset, int length, byte[] target) {
+        if (this == NONE) {
+            throw new IllegalStateException("NONE does not compress");
+        }
+        Deflater[] deflaters = DEFLATERS.get();
+        Deflater deflater = deflaters[ordinal()];
+        if (deflater == null) {
+            deflater = deflaters[ordinal()] = new Deflater(level, true);
+        }
+        deflater.reset();
+        deflater.setInput(source, offset, length);
+        deflater.finish();
+        int compressed = deflater.deflate(target, 0, target.length);
+        return deflater.finished() ? compressed : -1;
+    }
+
+    void decompress(byte[] source, int offset, int length, byte[] target, int targetLength) throws IOException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(source, offset, length);
+        try {
+            int inflated = 0;
+            while (inflated < targetLength && !inflater.finished()) {
+                int count = inflater.inflate(target, inflated, targetLength - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != targetLength) {
+                throw new IOException(wireName + " chunk inflated to " + inflated + " bytes, expected " + targetLength);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt " + wireName + " chunk: " + e.getMessage());
+        }
+    }
+
+    static Codec fromId(byte id) throws IOException {
+        for (Codec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IOException("Unknown codec id " + id);
+    }
+
+    static Codec fromName(String name) {
+        for (Codec codec : values()) {
+            if (codec.wireName.equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    // Parses a comma-separated list such as "deflate-fast,deflate", skipping names we don't know
+    static List<Codec> parseList(String names) {
+        List<Codec> codecs = new ArrayList<>();
+        for (String name : names.split(",")) {
+            Codec codec = fromName(name.trim());
+            if (codec != null && !codecs.contains(codec)) {
+                codecs.add(codec);
+            }
+        }
+        return codecs;
+    }
+
+    // What this process offers when it opens a connection, from -Ddfs.codecs
+    static List<Codec> offered() {
+        return parseList(System.getProperty("dfs.codecs", "none"));
+    }
+
+    static String toList(List<Codec> codecs) {
+        StringBuilder names = new StringBuilder();
+        for (Codec codec : codecs) {
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(codec.wireName);
+        }
+        return names.toString();
+    }
+
+    // The server side of the negotiation: the client's first choice that we implement
+    static Codec choose(String offeredNames) {
+        List<Codec> offered = parseList(offeredNames);
+        return offered.isEmpty() ? NONE : offered.get(0);
+    }
+}
@@ -0,0 +1,143 @@
+package org.example;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes and decodes a body through FileTransfer's chunked format with every codec and
+ * reports throughput, CPU, compression ratio and the resulting transfer time on links of a
+ * few speeds. Covers compressible text (logs, JSON) and incompressible data (random bytes,
+ * gzip output) to show what the skip heuristic saves.
+ * Usage: CodecBenchmark [bodyBytes] [rounds]
+ */
+public class CodecBenchmark {
+    private static final long[] LINK_MEGABITS = {100, 1000, 10000};
+
+    public static void main(String[] args) throws Exception {
+        int bodyBytes = args.length > 0 ? Integer.parseInt(args[0]) : 32 * 1024 * 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        byte[] logs = logLines(bodyBytes, new Random(1));
+        byte[] json = jsonRecords(bodyBytes, new Random(2));
+        byte[] random = new byte[bodyBytes];
+        new Random(3).nextBytes(random);
+        byte[] gzip = gzip(logs);
+
+        System.out.printf("%d byte bodies, %d rounds, %d KB chunks%n", bodyBytes, rounds, FileTransfer.CHUNK_SIZE / 1024);
+        System.out.printf("%-8s %-13s %7s %10s %10s %9s %9s   transfer ms at %d/%d/%d Mbit/s%n", "data", "codec", "ratio",
+                "enc MB/s", "dec MB/s", "enc cpu%", "dec cpu%", LINK_MEGABITS[0], LINK_MEGABITS[1], LINK_MEGABITS[2]);
+        for (Codec codec : Codec.values()) {
+            run("logs", logs, codec, rounds);
+            run("json", json, codec, rounds);
+            run("random", random, codec, rounds);
+            run("gzip", gzip, codec, rounds);
+        }
+    }
+
+    private static void run(String data, byte[] body, Codec codec, int rounds) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream(body.length + 1024);
+        byte[] decoded = new byte[body.length];
+
+        encode(body, codec, wire); // warm up
+        decode(wire.toByteArray(), body.length, codec, decoded);
+
+        long encodeNanos = 0;
+        long encodeCpu = 0;
+        long decodeNanos = 0;
+        long decodeCpu = 0;
+        for (int round = 0; round < rounds; round++) {
+            wire.reset();
+            long cpu = threads.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+            encode(body, codec, wire);
+            encodeNanos += System.nanoTime() - start;
+            encodeCpu += threads.getCurrentThreadCpuTime() - cpu;
+
+            byte[] encoded = wire.toByteArray();
+            cpu = threads.getCurrentThreadCpuTime();
+            start = System.nanoTime();
+            decode(encoded, body.length, codec, decoded);
+            decodeNanos += System.nanoTime() - start;
+            decodeCpu += threads.getCurrentThreadCpuTime() - cpu;
+        }
+        if (!java.util.Arrays.equals(body, decoded)) {
+            throw new IllegalStateException(codec + " did not round-trip " + data);
+        }
+
+        long wireBytes = wire.size();
+        double encodeSeconds = encodeNanos / 1e9 / rounds;
+        double decodeSeconds = decodeNanos / 1e9 / rounds;
+        StringBuilder transfer = new StringBuilder();
+        for (long megabits : LINK_MEGABITS) {
+            // The sender encodes while the link drains, so the slower of the two sets the pace
+            double linkSeconds = wireBytes * 8.0 / (megabits * 1_000_000L);
+            double seconds = Math.max(linkSeconds, Math.max(encodeSeconds, decodeSeconds));
+            transfer.append(String.format(" %8.0f", seconds * 1000));
+        }
+        System.out.printf("%-8s %-13s %7.2f %10.0f %10.0f %9.0f %9.0f  %s%n", data, codec.wireName,
+                (double) body.length / wireBytes,
+                body.length / 1024.0 / 1024.0 / encodeSeconds,
+                body.length / 1024.0 / 1024.0 / decodeSeconds,
+                100.0 * encodeCpu / encodeNanos, 100.0 * decodeCpu / decodeNanos, transfer);
+    }
+
+    private static void encode(byte[] body, Codec codec, ByteArrayOutputStream wire) throws IOException {
+        FileTransfer.CodecOutputStream out = new FileTransfer.CodecOutputStream(wire);
+        out.codec = codec;
+        out.writeLong(body.length);
+        OutputStream encoded = FileTransfer.bodyOutput(out);
+        encoded.write(body);
+        encoded.close();
+    }
+
+    private static void decode(byte[] wire, int length, Codec codec, byte[] target) throws IOException {
+        FileTransfer.CodecInputStream in = new FileTransfer.CodecInputStream(new ByteArrayInputStream(wire));
+        in.codec = codec;
+        long bodyLength = in.readLong();
+        if (bodyLength != length) {
+            throw new IOException("Body length " + bodyLength + ", expected " + length);
+        }
+        new DataInputStream(FileTransfer.bodyInput(in, bodyLength)).readFully(target);
+    }
+
+    private static byte[] logLines(int size, Random random) {
+        String[] levels = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+        String[] messages = {"Request served", "Cache miss for key", "Replica updated successfully",
+                "Lease acquired", "Connection closed by peer", "Slow disk write"};
+        StringBuilder text = new StringBuilder(size + 256);
+        long timestamp = 1_700_000_000_000L;
+        while (text.length() < size) {
+            timestamp += random.nextInt(50);
+            text.append(timestamp).append(' ').append(levels[random.nextInt(levels.length)])
+                    .append(" [worker-").append(random.nextInt(16)).append("] ")
+                    .append(messages[random.nextInt(messages.length)])
+                    .append(" file-").append(random.nextInt(100_000)).append(".txt in ")
+                    .append(random.nextInt(2000)).append("ms\n");
+        }
+        return java.util.Arrays.copyOf(text.toString().getBytes(), size);
+    }
+
+    private static byte[] jsonRecords(int size, Random random) {
+        StringBuilder text = new StringBuilder(size + 256);
+        while (text.length() < size) {
+            text.append("{\"fileName\":\"file-").append(random.nextInt(100_000))
+                    .append(".txt\",\"fileSize\":").append(random.nextInt(1 << 30))
+                    .append(",\"serverId\":\"server-").append(random.nextInt(8))
+                    .append("\",\"replicatedNodes\":[\"server-").append(random.nextInt(8))
+                    .append("\",\"server-").append(random.nextInt(8)).append("\"]}\n");
+        }
+        return java.util.Arrays.copyOf(text.toString().getBytes(), size);
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(content);
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,52 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Accepts connections on the file server port and hands each accepted socket to a handler.
+ * The engine is chosen at startup with the dfs.engine property (thread, nio or virtual).
+ */
+public interface ConnectionEngine {
+
+    interface ConnectionHandler {
+        // The handler owns the socket and is responsible for closing it
+        void handle(Socket socket);
+    }
+
+    // Blocks until the engine is shut down or the server socket fails
+    void serve(int port, ConnectionHandler handler) throws IOException;
+
+    void shutdown();
+
+    // Whether connections are served by a fixed number of threads, so a connection that stays
+    // open after its first request must not keep one (see ConnectionReaders)
+    default boolean boundedWorkers() {
+        return false;
+    }
+
+    // Takes back a connection that is idle between requests, so it holds no thread while it
+    // waits: once the peer sends again, resume runs on a worker with the socket blocking as
+    // before, and owns it from then on. A connection idle for idleTimeoutMillis is closed.
+    // Returns false if this engine cannot park connections; the caller keeps reading then.
+    default boolean park(Socket socket, long idleTimeoutMillis, Runnable resume) {
+        return false;
+    }
+
+    default int parkedConnections() {
+        return 0;
+    }
+
+    static ConnectionEngine create(String mode, int workerThreads, int maxPendingConnections) {
+        switch (mode) {
+            case "thread":
+                return new ThreadPerConnectionEngine();
+            case "nio":
+                return new SelectorConnectionEngine(workerThreads, maxPendingConnections);
+            case "virtual":
+                return new VirtualThreadConnectionEngine(workerThreads + maxPendingConnections);
+            default:
+                throw new IllegalArgumentException("Unknown connection engine: " + mode);
+        }
+    }
+}
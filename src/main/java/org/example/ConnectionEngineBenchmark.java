@@ -0,0 +1,186 @@
+package org.example;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the connection engines on loopback: every request opens a connection, sends one
+ * command and waits for the reply, the same shape as a ClientServer operation. The pooled
+ * runs then keep one connection per client open for all its requests, as ConnectionPool
+ * does; with more clients than workers, the nio engine only keeps up if those connections
+ * are parked on its selector between requests (ConnectionReaders), which "nio-inline" leaves
+ * out for comparison.
+ * Usage: ConnectionEngineBenchmark [clients] [requestsPerClient] [workerThreads]
+ */
+public class ConnectionEngineBenchmark {
+    private static final int POOLED_TIMEOUT_MILLIS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int requestsPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int workerThreads = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        System.out.println("clients=" + clients + " requests/client=" + requestsPerClient + " workers=" + workerThreads);
+        for (String mode : new String[]{"thread", "nio", "virtual"}) {
+            run(mode, clients, requestsPerClient, workerThreads, false, true);
+        }
+        System.out.println("pooled: one connection per client for all its requests");
+        for (String mode : new String[]{"thread", "nio", "virtual"}) {
+            run(mode, clients, requestsPerClient, workerThreads, true, true);
+        }
+        run("nio", clients, requestsPerClient, workerThreads, true, false);
+    }
+
+    private static void run(String mode, int clients, int requestsPerClient, int workerThreads, boolean pooled,
+                            boolean offload) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ConnectionEngine engine = ConnectionEngine.create(mode, workerThreads, clients * 2);
+        ConnectionReaders readers = offload ? new ConnectionReaders(engine, clients) : null;
+        Thread serverThread = new Thread(() -> {
+            try {
+                engine.serve(port, pooled ? socket -> keepAliveEcho(socket, readers) : ConnectionEngineBenchmark::echo);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(200);
+
+        long[] latencies = new long[clients * requestsPerClient];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(clients);
+        ExecutorService clientPool = Executors.newFixedThreadPool(clients);
+
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            clientPool.execute(() -> {
+                if (pooled) {
+                    pooledClient(port, requestsPerClient, latencies, next, failures, done);
+                    return;
+                }
+                for (int r = 0; r < requestsPerClient; r++) {
+                    long begin = System.nanoTime();
+                    try (Socket socket = new Socket("127.0.0.1", port);
+                         DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                         DataInputStream in = new DataInputStream(socket.getInputStream())) {
+                        out.writeUTF("PING");
+                        in.readUTF();
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                    latencies[next.getAndIncrement()] = System.nanoTime() - begin;
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        clientPool.shutdown();
+        clientPool.awaitTermination(1, TimeUnit.MINUTES);
+        engine.shutdown();
+
+        long[] answered = Arrays.copyOf(latencies, Math.max(1, next.get())); // pooled failures leave no sample
+        Arrays.sort(answered);
+        double seconds = elapsed / 1e9;
+        System.out.printf("%-11s %10.0f req/s   p50=%7.3f ms   p99=%7.3f ms   failures=%d%n",
+                mode + (pooled && !offload ? "-inline" : ""), next.get() / seconds,
+                answered[answered.length / 2] / 1e6,
+                answered[(int) (answered.length * 0.99)] / 1e6,
+                failures.get());
+    }
+
+    // Like a pooled connection, the socket stays open until every client is done; a request
+    // not answered within POOLED_TIMEOUT_MILLIS counts as a failure
+    private static void pooledClient(int port, int requests, long[] latencies, AtomicInteger next, AtomicInteger failures,
+                                     CountDownLatch done) {
+        try (Socket socket = new Socket("127.0.0.1", port);
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+             DataInputStream in = new DataInputStream(socket.getInputStream())) {
+            socket.setSoTimeout(POOLED_TIMEOUT_MILLIS);
+            try {
+                for (int r = 0; r < requests; r++) {
+                    long begin = System.nanoTime();
+                    out.writeUTF("PING");
+                    out.flush();
+                    in.readUTF();
+                    latencies[next.getAndIncrement()] = System.nanoTime() - begin;
+                }
+            } catch (IOException e) {
+                failures.incrementAndGet();
+            }
+            done.countDown();
+            done.await();
+        } catch (IOException e) {
+            failures.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Answers requests on one connection until the client closes it, like FileServer's
+    // keep-alive; without readers the connection keeps its worker between requests
+    private static void keepAliveEcho(Socket socket, ConnectionReaders readers) {
+        boolean handedOff = false;
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(in.readUTF());
+            handedOff = echoUntilClosed(socket, in, out, readers);
+        } catch (IOException ignored) {
+        } finally {
+            if (!handedOff) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static boolean echoUntilClosed(Socket socket, DataInputStream in, DataOutputStream out,
+                                           ConnectionReaders readers) throws IOException {
+        while (readers == null || !readers.park(socket, 0, () -> echoNext(in, out) && echoUntilClosed(socket, in, out, readers))) {
+            if (!echoNext(in, out)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean echoNext(DataInputStream in, DataOutputStream out) throws IOException {
+        try {
+            out.writeUTF(in.readUTF());
+            return true;
+        } catch (EOFException e) {
+            return false; // client done
+        }
+    }
+
+    private static void echo(Socket socket) {
+        try (DataInputStream in = new DataInputStream(socket.getInputStream());
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            out.writeUTF(in.readUTF());
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
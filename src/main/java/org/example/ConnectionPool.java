@@ -0,0 +1,118 @@
+package org.example;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one multiplexed connection per server id and reopens it when it has been closed.
+ * Bulk transfers cannot share a framed connection, so it also keeps a few idle raw
+ * connections per server that can be borrowed for one command at a time.
+ */
+public class ConnectionPool {
+    static final int MAX_IDLE_STREAMS_PER_SERVER = 4;
+    // Must stay below FileServer.idleConnectionTimeout so we never reuse a socket the server dropped
+    static final long STREAM_IDLE_MILLIS = 30000;
+
+    private final Map<String, FramedConnection> connections = new ConcurrentHashMap<>();
+    private final Map<String, Deque<StreamConnection>> idleStreams = new ConcurrentHashMap<>();
+
+    /**
+     * A raw command connection. The server keeps reading commands until the socket closes,
+     * so it can be returned to the pool once a command and its response are complete.
+     */
+    static class StreamConnection implements Closeable {
+        final Socket socket;
+        final FileTransfer.CodecOutputStream out;
+        final FileTransfer.CodecInputStream in;
+        long lastUsed;
+
+        StreamConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new FileTransfer.CodecOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.in = new FileTransfer.CodecInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    FramedConnection get(String serverId, String address, int port) throws IOException {
+        FramedConnection connection = connections.get(serverId);
+        if (connection != null && connection.isOpen()) {
+            return connection;
+        }
+        synchronized (this) {
+            connection = connections.get(serverId);
+            if (connection == null || !connection.isOpen()) {
+                connection = FramedConnection.open(address, port);
+                connections.put(serverId, connection);
+            }
+            return connection;
+        }
+    }
+
+    StreamConnection borrowStream(String serverId, String address, int port) throws IOException {
+        Deque<StreamConnection> idle = idleStreams.computeIfAbsent(serverId, id -> new ArrayDeque<>());
+        synchronized (idle) {
+            long now = System.currentTimeMillis();
+            StreamConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (!connection.socket.isClosed() && now - connection.lastUsed < STREAM_IDLE_MILLIS) {
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        Socket socket = new Socket(address, port);
+        socket.setTcpNoDelay(true);
+        StreamConnection connection = new StreamConnection(socket);
+        try {
+            FileTransfer.negotiate(connection.out, connection.in, Codec.offered());
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    // Only release a connection after its command completed cleanly; close it on any error
+    void releaseStream(String serverId, StreamConnection connection) {
+        Deque<StreamConnection> idle = idleStreams.computeIfAbsent(serverId, id -> new ArrayDeque<>());
+        synchronized (idle) {
+            if (idle.size() < MAX_IDLE_STREAMS_PER_SERVER && !connection.socket.isClosed()) {
+                connection.lastUsed = System.currentTimeMillis();
+                idle.addFirst(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    void invalidate(String serverId) {
+        FramedConnection connection = connections.remove(serverId);
+        if (connection != null) {
+            connection.close();
+        }
+        Deque<StreamConnection> idle = idleStreams.remove(serverId);
+        if (idle != null) {
+            synchronized (idle) {
+                idle.forEach(StreamConnection::close);
+            }
+        }
+    }
+
+    void closeAll() {
+        connections.values().forEach(FramedConnection::close);
+        connections.clear();
+        idleStreams.keySet().forEach(this::invalidate);
+    }
+}
@@ -0,0 +1,100 @@
+package org.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Carries on connections that outlive their first request (keep-alive and FRAMED) without
+ * tying up the engine's workers. With a bounded worker pool, the nio engine's, each such
+ * connection would otherwise keep a worker for its whole life: once every worker sits on a
+ * pooled connection, new sockets are rejected, including the replication hops those workers
+ * are waiting on. A keep-alive connection is parked with the engine's selector between
+ * commands and holds no thread at all. A FRAMED connection is read by its own reader, up to
+ * maxFramedConnections of them; readers are virtual threads where the JDK has them.
+ */
+final class ConnectionReaders {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionReaders.class);
+
+    interface Rest {
+        void run() throws IOException;
+    }
+
+    interface Resume {
+        // Returns true if the connection was parked again, and so still belongs to the engine
+        boolean run() throws IOException;
+    }
+
+    private final ConnectionEngine engine;
+    private final ExecutorService executor; // null runs the rest of a connection inline
+    private final Semaphore framedPermits;
+    private final AtomicInteger active = new AtomicInteger();
+
+    ConnectionReaders(ConnectionEngine engine, int maxFramedConnections) {
+        this.engine = engine;
+        this.executor = engine.boundedWorkers() ? VirtualThreadConnectionEngine.newVirtualThreadExecutor() : null;
+        this.framedPermits = new Semaphore(maxFramedConnections);
+    }
+
+    // Serves the rest of a FRAMED connection. Returns true if a reader took it over, which then
+    // closes the socket when the connection ends; otherwise the caller still owns it. With
+    // every reader taken the connection is refused, as the engine refuses sockets it has no
+    // worker for.
+    boolean continueWith(Socket socket, Rest rest) throws IOException {
+        if (executor == null) {
+            rest.run();
+            return false;
+        }
+        if (!framedPermits.tryAcquire()) {
+            logger.error("Framed connection limit reached, dropping connection from " + socket.getInetAddress());
+            return false;
+        }
+        active.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                rest.run();
+            } catch (IOException e) {
+                logger.error("Error handling client: " + e.getMessage());
+            } finally {
+                active.decrementAndGet();
+                framedPermits.release();
+                close(socket);
+            }
+        });
+        return true;
+    }
+
+    // Hands an idle connection to the engine until the peer sends again, then runs resume on a
+    // worker. Returns false if the engine cannot park it and the caller keeps reading instead.
+    boolean park(Socket socket, long idleTimeoutMillis, Resume resume) {
+        return engine.park(socket, idleTimeoutMillis, () -> {
+            boolean parkedAgain = false;
+            try {
+                parkedAgain = resume.run();
+            } catch (IOException e) {
+                logger.error("Error handling client: " + e.getMessage());
+            } finally {
+                if (!parkedAgain) {
+                    close(socket);
+                }
+            }
+        });
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.error("Error closing client socket: " + e.getMessage());
+        }
+    }
+
+    String metrics() {
+        return "connectionReaders framed=" + active.get() + " parked=" + engine.parkedConnections();
+    }
+}
@@ -2,9 +2,28 @@ package org.example;
 
 import java.util.*;
 
+/**
+ * Consistent hash ring over 64-bit Murmur3 hashes. Each server gets numberOfReplicas virtual
+ * nodes per unit of weight. Lookups binary-search an immutable sorted snapshot, so get() takes
+ * no lock and allocates nothing; membership changes build a new snapshot and swap it in.
+ */
 public class ConsistentHashing {
-    private final SortedMap<Integer, String> circle = new TreeMap<>();
+
+    private static final class Snapshot {
+        final long[] points;
+        final String[] owners;
+
+        Snapshot(long[] points, String[] owners) {
+            this.points = points;
+            this.owners = owners;
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(new long[0], new String[0]);
+
     private final int numberOfReplicas;
+    private final Map<String, Integer> weights = new LinkedHashMap<>();
+    private volatile Snapshot snapshot = EMPTY;
 
     public ConsistentHashing(int numberOfReplicas, List<String> nodes) {
         this.numberOfReplicas = numberOfReplicas;
@@ -14,9 +33,7 @@ public class ConsistentHashing {
     }
 
     private void add(String node) {
-        for (int i = 0; i < numberOfReplicas; i++) {
-            circle.put(hash(node.toString() + i), node);
-        }
+        addServer(node, 1);
     }
 
     public void removeServer(String serverId) {
@@ -26,7 +43,7 @@ public class ConsistentHashing {
 
 
     public boolean isEmpty() {
-        return circle.isEmpty();
+        return snapshot.points.length == 0;
     }
 
     public void addServer(String serverId) {
@@ -34,28 +51,66 @@ public class ConsistentHashing {
         // You may need to redistribute keys (client associations) here if necessary
     }
 
+    // A server with weight 2 gets twice the virtual nodes, and so about twice the keys
+    public synchronized void addServer(String serverId, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be at least 1: " + weight);
+        }
+        Integer previous = weights.put(serverId, weight);
+        if (previous == null || previous != weight) {
+            rebuild();
+        }
+    }
 
-    public void remove(String node) {
-        for (int i = 0; i < numberOfReplicas; i++) {
-            circle.remove(hash(node.toString() + i));
+    public synchronized void remove(String node) {
+        if (weights.remove(node) != null) {
+            rebuild();
         }
     }
 
     public String get(Object key) {
-        if (circle.isEmpty()) {
+        Snapshot current = snapshot;
+        if (current.points.length == 0) {
             return null;
         }
-        int hash = hash(key.toString());
-        if (!circle.containsKey(hash)) {
-            SortedMap<Integer, String> tailMap = circle.tailMap(hash);
-            hash = tailMap.isEmpty() ? circle.firstKey() : tailMap.firstKey();
+        int index = Arrays.binarySearch(current.points, hash(key.toString()));
+        if (index < 0) {
+            index = -index - 1;
+            if (index == current.points.length) {
+                index = 0; // wrap around the ring
+            }
+        }
+        return current.owners[index];
+    }
+
+    public Set<String> getServers() {
+        synchronized (this) {
+            return new LinkedHashSet<>(weights.keySet());
+        }
+    }
+
+    private void rebuild() {
+        List<Map.Entry<Long, String>> points = new ArrayList<>();
+        for (Map.Entry<String, Integer> server : weights.entrySet()) {
+            int virtualNodes = numberOfReplicas * server.getValue();
+            for (int i = 0; i < virtualNodes; i++) {
+                points.add(new AbstractMap.SimpleImmutableEntry<>(hash(server.getKey() + "#" + i), server.getKey()));
+            }
+        }
+        // Ties are practically impossible with 64-bit hashes, but break them by name so every
+        // client builds the same ring
+        points.sort(Map.Entry.<Long, String>comparingByKey().thenComparing(Map.Entry.comparingByValue()));
+
+        long[] hashes = new long[points.size()];
+        String[] owners = new String[points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            hashes[i] = points.get(i).getKey();
+            owners[i] = points.get(i).getValue();
         }
-        return circle.get(hash);
+        snapshot = new Snapshot(hashes, owners);
     }
 
-    private int hash(String key) {
-        int hashCode = key.hashCode();
-        int hashRingSize = 8; // The size of your hash ring
-        return Math.abs(hashCode) % hashRingSize;
+    static long hash(String key) {
+        return Murmur3.hash64(key);
     }
 }
@@ -0,0 +1,87 @@
+package org.example;
+
+import java.util.*;
+
+/**
+ * Distribution report and lookup microbenchmark for ConsistentHashing.
+ * Usage: ConsistentHashingBenchmark [servers] [keys]
+ */
+public class ConsistentHashingBenchmark {
+
+    public static void main(String[] args) {
+        int servers = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        List<String> serverIds = new ArrayList<>();
+        for (int i = 0; i < servers; i++) {
+            serverIds.add("file-server-" + i);
+        }
+        String[] keySet = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keySet[i] = "clinet" + i + "/file-" + i + ".json";
+        }
+
+        System.out.println("Distribution over " + servers + " servers, " + keys + " keys (load relative to mean)");
+        for (int virtualNodes : new int[]{1, 8, 32, 128, 512}) {
+            report(new ConsistentHashing(virtualNodes, serverIds), serverIds, keySet, "vnodes=" + virtualNodes);
+        }
+
+        ConsistentHashing weighted = new ConsistentHashing(128, serverIds);
+        weighted.addServer(serverIds.get(0), 2);
+        report(weighted, serverIds, keySet, "vnodes=128, " + serverIds.get(0) + " weight 2");
+
+        ConsistentHashing ring = new ConsistentHashing(128, serverIds);
+        String[] before = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            before[i] = ring.get(keySet[i]);
+        }
+        ring.removeServer(serverIds.get(servers - 1));
+        int moved = 0;
+        for (int i = 0; i < keys; i++) {
+            if (!before[i].equals(ring.get(keySet[i]))) {
+                moved++;
+            }
+        }
+        System.out.printf("Removing one server moved %.2f%% of keys (ideal %.2f%%)%n",
+                100.0 * moved / keys, 100.0 / servers);
+
+        benchmarkLookups(new ConsistentHashing(128, serverIds), keySet);
+    }
+
+    private static void report(ConsistentHashing ring, List<String> serverIds, String[] keySet, String label) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String key : keySet) {
+            counts.merge(ring.get(key), 1, Integer::sum);
+        }
+        double mean = (double) keySet.length / serverIds.size();
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        double sumSquares = 0;
+        for (String serverId : serverIds) {
+            double load = counts.getOrDefault(serverId, 0) / mean;
+            min = Math.min(min, load);
+            max = Math.max(max, load);
+            sumSquares += (load - 1) * (load - 1);
+        }
+        System.out.printf("  %-34s min=%.3f max=%.3f stddev=%.3f%n", label, min, max,
+                Math.sqrt(sumSquares / serverIds.size()));
+    }
+
+    private static void benchmarkLookups(ConsistentHashing ring, String[] keySet) {
+        long checksum = 0;
+        for (int warmup = 0; warmup < 3; warmup++) {
+            for (String key : keySet) {
+                checksum += ring.get(key).length();
+            }
+        }
+        int rounds = 5;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (String key : keySet) {
+                checksum += ring.get(key).length();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("Lookup: %.1f ns/op (checksum %d)%n", (double) elapsed / (rounds * keySet.length), checksum);
+    }
+}
@@ -0,0 +1,175 @@
+package org.example;
+
+import com.orbitz.consul.KeyValueClient;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.kv.Value;
+import com.orbitz.consul.option.QueryOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process mirror of every key under one Consul KV prefix, kept current with blocking
+ * queries on the prefix index. Reads are served from memory while the mirror has heard from
+ * Consul within maxStalenessMillis; after that they fall through to a direct KV read.
+ * Our own writes go into the mirror at once with the modify index Consul gave them, and a
+ * watch snapshot replaces an entry only when its copy of that key is at least as new.
+ */
+public class ConsulKvCache {
+    private static final Logger logger = LoggerFactory.getLogger(ConsulKvCache.class);
+
+    private final KeyValueClient kvClient;
+    private final String prefix;
+    private final int watchSeconds;
+    private final long maxStalenessMillis;
+
+    // A null json is a key we deleted that the watch may not have seen go yet
+    private static final class Entry {
+        final String json;
+        final long modifyIndex;
+
+        Entry(String json, long modifyIndex) {
+            this.json = json;
+            this.modifyIndex = modifyIndex;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile long lastSyncMillis;
+    private volatile boolean running = true;
+    private BigInteger index = BigInteger.ZERO;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ConsulKvCache(KeyValueClient kvClient, String prefix, int watchSeconds, long maxStalenessMillis) {
+        this.kvClient = kvClient;
+        this.prefix = prefix;
+        this.watchSeconds = watchSeconds;
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    void start() {
+        Thread watcher = new Thread(this::watchLoop, "consul-watch-" + prefix);
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    private void watchLoop() {
+        long backoffMillis = 1000;
+        while (running) {
+            try {
+                ConsulResponse<List<Value>> response = kvClient.getConsulResponseWithValues(prefix,
+                        QueryOptions.blockSeconds(watchSeconds, index).build());
+                BigInteger newIndex = response.getIndex();
+                // Consul may reset its index (e.g. after a snapshot restore); start over from zero
+                index = newIndex == null || newIndex.compareTo(index) < 0 ? BigInteger.ZERO : newIndex;
+
+                Map<String, Value> snapshot = new HashMap<>();
+                if (response.getResponse() != null) {
+                    for (Value value : response.getResponse()) {
+                        if (value.getValueAsString().isPresent()) {
+                            snapshot.put(value.getKey(), value);
+                        }
+                    }
+                }
+                merge(snapshot, newIndex != null ? newIndex.longValue() : 0);
+                lastSyncMillis = System.currentTimeMillis();
+                backoffMillis = 1000;
+            } catch (Exception e) {
+                logger.error("Watch on " + prefix + " failed: " + e.getMessage());
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, 30000);
+            }
+        }
+    }
+
+    // The snapshot may have been read before one of our writes committed: an entry we wrote
+    // later than the snapshot's copy of its key stays, and so does one the snapshot has not
+    // seen at all (snapshotIndex is older than it). Deleted keys stay deleted until Consul no
+    // longer has the entry we deleted.
+    private void merge(Map<String, Value> snapshot, long snapshotIndex) {
+        for (Value value : snapshot.values()) {
+            entries.compute(value.getKey(), (key, local) -> local != null && local.modifyIndex >= value.getModifyIndex()
+                    ? local : new Entry(value.getValueAsString().get(), value.getModifyIndex()));
+        }
+        entries.entrySet().removeIf(entry -> !snapshot.containsKey(entry.getKey())
+                && (entry.getValue().json == null || entry.getValue().modifyIndex <= snapshotIndex));
+    }
+
+    boolean isFresh() {
+        return System.currentTimeMillis() - lastSyncMillis <= maxStalenessMillis;
+    }
+
+    // key is the full KV key, including the prefix
+    Optional<String> get(String key) {
+        if (isFresh()) {
+            hits.incrementAndGet();
+            Entry entry = entries.get(key);
+            return Optional.ofNullable(entry != null ? entry.json : null);
+        }
+        misses.incrementAndGet();
+        return kvClient.getValueAsString(key);
+    }
+
+    Collection<String> values() {
+        if (isFresh()) {
+            hits.incrementAndGet();
+            List<String> values = new ArrayList<>();
+            for (Entry entry : entries.values()) {
+                if (entry.json != null) {
+                    values.add(entry.json);
+                }
+            }
+            return values;
+        }
+        misses.incrementAndGet();
+        return kvClient.getValuesAsString(prefix);
+    }
+
+    // Write-through for our own updates, so this server reads them before the watch fires;
+    // modifyIndex is the one Consul returned for the write
+    void put(String key, String json, long modifyIndex) {
+        entries.merge(key, new Entry(json, modifyIndex),
+                (local, written) -> local.modifyIndex > written.modifyIndex ? local : written);
+    }
+
+    // Marks the key deleted; the tombstone keeps the index of the entry it replaced, so the
+    // watch can tell that entry from one written after the delete
+    void remove(String key) {
+        entries.compute(key, (k, local) -> new Entry(null, local != null ? local.modifyIndex : 0));
+    }
+
+    // For writes made outside a metadata transaction, which return no index: reads the key
+    // back to mirror it with the index it has now
+    void refresh(String key) {
+        Optional<Value> value = kvClient.getValue(key);
+        if (value.isPresent() && value.get().getValueAsString().isPresent()) {
+            put(key, value.get().getValueAsString().get(), value.get().getModifyIndex());
+        } else {
+            remove(key);
+        }
+    }
+
+    String metrics() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long total = hitCount + missCount;
+        return String.format("cache{prefix=%s} hits=%d misses=%d hitRate=%.3f entries=%d stalenessMs=%d",
+                prefix, hitCount, missCount, total == 0 ? 0.0 : (double) hitCount / total,
+                entries.values().stream().filter(entry -> entry.json != null).count(), System.currentTimeMillis() - lastSyncMillis);
+    }
+}
@@ -0,0 +1,102 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.orbitz.consul.KeyValueClient;
+import com.orbitz.consul.model.kv.Value;
+import com.orbitz.consul.option.ImmutableDeleteOptions;
+import com.orbitz.consul.option.ImmutablePutOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps LeaseManager's leases in Consul under leases/<fileName>, and the grant epoch under
+ * lease-epoch. Every write is a check-and-set against the modify index it read, and a lease
+ * is never overwritten by one with a smaller token, so a slow write from a former owner
+ * cannot undo a newer grant. Writes go through one background thread, off the grant path.
+ */
+final class ConsulLeaseStore implements LeaseManager.Store {
+    private static final Logger logger = LoggerFactory.getLogger(ConsulLeaseStore.class);
+    private static final String EPOCH_KEY = "lease-epoch";
+    private static final String PREFIX = "leases/";
+
+    private final KeyValueClient kvClient;
+    private final Gson gson = new Gson();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lease-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ConsulLeaseStore(KeyValueClient kvClient) {
+        this.kvClient = kvClient;
+    }
+
+    @Override
+    public long nextEpoch() throws IOException {
+        try {
+            for (int attempt = 0; attempt < MetadataBatcher.MAX_CAS_RETRIES; attempt++) {
+                Optional<Value> current = kvClient.getValue(EPOCH_KEY);
+                long index = current.map(Value::getModifyIndex).orElse(0L); // 0 creates the key only if absent
+                long epoch = current.flatMap(Value::getValueAsString).map(Long::parseLong).orElse(0L) + 1;
+                if (kvClient.putValue(EPOCH_KEY, Long.toString(epoch), 0, ImmutablePutOptions.builder().cas(index).build())) {
+                    return epoch;
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Cannot take a lease epoch: " + e.getMessage(), e);
+        }
+        throw new IOException("Cannot take a lease epoch: too many concurrent updates");
+    }
+
+    @Override
+    public LeaseManager.Lease load(String fileName) throws IOException {
+        try {
+            return kvClient.getValue(PREFIX + fileName).flatMap(Value::getValueAsString)
+                    .map(json -> gson.fromJson(json, LeaseManager.Lease.class)).orElse(null);
+        } catch (RuntimeException e) {
+            throw new IOException("Cannot load the lease on " + fileName + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void save(String fileName, long token, LeaseManager.Lease lease) {
+        writer.execute(() -> {
+            try {
+                write(fileName, token, lease);
+            } catch (RuntimeException e) {
+                // Only failover reads these, and the lease expires on its own
+                logger.error("Could not persist the lease on " + fileName + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private void write(String fileName, long token, LeaseManager.Lease lease) {
+        String key = PREFIX + fileName;
+        for (int attempt = 0; attempt < MetadataBatcher.MAX_CAS_RETRIES; attempt++) {
+            Optional<Value> current = kvClient.getValue(key);
+            LeaseManager.Lease stored = current.flatMap(Value::getValueAsString)
+                    .map(json -> gson.fromJson(json, LeaseManager.Lease.class)).orElse(null);
+            if (stored != null && stored.token > token) {
+                return; // granted again since, by this server or a newer owner
+            }
+            long index = current.map(Value::getModifyIndex).orElse(0L);
+            if (lease == null) {
+                if (stored == null) {
+                    return;
+                }
+                kvClient.deleteKey(key, ImmutableDeleteOptions.builder().cas(index).build());
+                if (!kvClient.getValue(key).filter(value -> value.getModifyIndex() == index).isPresent()) {
+                    return;
+                }
+            } else if (kvClient.putValue(key, gson.toJson(lease), 0, ImmutablePutOptions.builder().cas(index).build())) {
+                return;
+            }
+        }
+        logger.error("Gave up persisting the lease on " + fileName + " after " + MetadataBatcher.MAX_CAS_RETRIES + " conflicts");
+    }
+}
@@ -0,0 +1,255 @@
+package org.example;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * rsync-style deltas. The basis is cut into fixed-size blocks, each signed with a rolling
+ * Adler-32 style checksum and an MD5. The new content is scanned one byte at a time with the
+ * rolling checksum; wherever a window matches a basis block (weak checksum first, confirmed by
+ * MD5) the delta says "copy block i", and everything else is sent as literal bytes.
+ *
+ * Delta format: int blockSize, long targetLength, then operations until END:
+ * COPY int firstBlock int blockCount | DATA int length bytes.
+ */
+final class DeltaSync {
+    static final byte END = 0;
+    static final byte COPY = 1;
+    static final byte DATA = 2;
+    static final int MIN_BLOCK_SIZE = 512;
+    static final int MAX_BLOCK_SIZE = 64 * 1024;
+    // The target is scanned through a buffer this many blocks long, at most 1 MB
+    static final int WINDOW_BLOCKS = 16;
+
+    private DeltaSync() {
+    }
+
+    // About sqrt(length), as rsync does: few signatures for big files, fine matches for small ones
+    static int blockSizeFor(long basisLength) {
+        int size = (int) Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, (long) Math.sqrt(basisLength)));
+        return size & ~7;
+    }
+
+    // Writes the delta from basis to target to out. Neither file is read into memory: the basis
+    // is signed block by block as it is read, and the target scanned through a window of
+    // WINDOW_BLOCKS blocks, with literal bytes written out whenever the window moves on.
+    static void delta(Path basis, Path target, OutputStream out) throws IOException {
+        int blockSize = blockSizeFor(Files.size(basis));
+        Map<Integer, List<Integer>> blocksByChecksum = new HashMap<>();
+        List<byte[]> strong = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(basis))) {
+            byte[] block = new byte[blockSize];
+            while (in.readNBytes(block, 0, blockSize) == blockSize) {
+                blocksByChecksum.computeIfAbsent(checksum(block, 0, blockSize), k -> new ArrayList<>()).add(strong.size());
+                strong.add(md5(block, 0, blockSize));
+            }
+        }
+
+        try (InputStream in = Files.newInputStream(target)) {
+            DataOutputStream delta = new DataOutputStream(new BufferedOutputStream(out));
+            delta.writeInt(blockSize);
+            delta.writeLong(Files.size(target));
+
+            byte[] window = new byte[WINDOW_BLOCKS * blockSize];
+            int end = 0; // window[0, end) holds the target bytes read but not yet written out
+            boolean eof = false;
+            int copyStart = -1;
+            int copyCount = 0;
+            int literalStart = 0;
+            int position = 0;
+            int a = 0;
+            int b = 0;
+            boolean rolling = false;
+            while (true) {
+                if (position + blockSize >= end && !eof) {
+                    // Pending literals end here (a run of copies is never pending alongside them)
+                    writeData(delta, window, literalStart, position - literalStart);
+                    System.arraycopy(window, position, window, 0, end - position);
+                    end -= position;
+                    position = 0;
+                    literalStart = 0;
+                    int read = 0;
+                    while (end < window.length && (read = in.read(window, end, window.length - end)) >= 0) {
+                        end += read;
+                    }
+                    eof = read < 0;
+                }
+                if (position + blockSize > end) {
+                    break;
+                }
+                if (!rolling) {
+                    int sum = checksum(window, position, blockSize);
+                    a = sum & 0xffff;
+                    b = sum >>> 16;
+                    rolling = true;
+                }
+                int match = -1;
+                List<Integer> candidates = blocksByChecksum.get((b << 16) | a);
+                if (candidates != null) {
+                    byte[] windowHash = md5(window, position, blockSize);
+                    for (int candidate : candidates) {
+                        if (Arrays.equals(windowHash, strong.get(candidate))) {
+                            match = candidate;
+                            break;
+                        }
+                    }
+                }
+                if (match >= 0) {
+                    writeData(delta, window, literalStart, position - literalStart);
+                    if (copyCount > 0 && match == copyStart + copyCount) {
+                        copyCount++;
+                    } else {
+                        writeCopy(delta, copyStart, copyCount);
+                        copyStart = match;
+                        copyCount = 1;
+                    }
+                    position += blockSize;
+                    literalStart = position;
+                    rolling = false;
+                } else {
+                    if (copyCount > 0) {
+                        // Literal bytes follow, so the run of copies ends here
+                        writeCopy(delta, copyStart, copyCount);
+                        copyCount = 0;
+                    }
+                    if (position + blockSize < end) {
+                        int leaving = window[position] & 0xff;
+                        int entering = window[position + blockSize] & 0xff;
+                        a = (a - leaving + entering) & 0xffff;
+                        b = (b - blockSize * leaving + a) & 0xffff;
+                    }
+                    position++;
+                }
+            }
+            writeCopy(delta, copyStart, copyCount);
+            writeData(delta, window, literalStart, end - literalStart);
+            delta.writeByte(END);
+            delta.flush();
+        }
+    }
+
+    // Rebuilds the target into output from the basis file and a delta made against it
+    static void apply(Path basis, byte[] delta, Path output) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        int blockSize = in.readInt();
+        long targetLength = in.readLong();
+        try (FileChannel source = FileChannel.open(basis, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(output, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+            while (true) {
+                byte operation = in.readByte();
+                if (operation == END) {
+                    break;
+                } else if (operation == COPY) {
+                    long from = (long) in.readInt() * blockSize;
+                    long count = (long) in.readInt() * blockSize;
+                    if (from + count > source.size()) {
+                        throw new IOException("Delta copies past the end of the basis");
+                    }
+                    long copied = 0;
+                    while (copied < count) {
+                        copied += source.transferTo(from + copied, count - copied, target);
+                    }
+                    written += count;
+                } else if (operation == DATA) {
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    ByteBuffer chunk = ByteBuffer.wrap(data);
+                    while (chunk.hasRemaining()) {
+                        target.write(chunk);
+                    }
+                    written += data.length;
+                } else {
+                    throw new IOException("Unknown delta operation " + operation);
+                }
+            }
+            if (written != targetLength) {
+                throw new IOException("Delta produced " + written + " bytes, expected " + targetLength);
+            }
+        }
+    }
+
+    // Rebuilds the target from a basis held in memory, for files small enough to live there
+    static byte[] apply(byte[] basis, byte[] delta) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        int blockSize = in.readInt();
+        long targetLength = in.readLong();
+        if (targetLength > Integer.MAX_VALUE) {
+            throw new IOException("Delta target of " + targetLength + " bytes does not fit in memory");
+        }
+        byte[] target = new byte[(int) targetLength];
+        int written = 0;
+        while (true) {
+            byte operation = in.readByte();
+            if (operation == END) {
+                break;
+            } else if (operation == COPY) {
+                long from = (long) in.readInt() * blockSize;
+                long count = (long) in.readInt() * blockSize;
+                if (from + count > basis.length || written + count > target.length) {
+                    throw new IOException("Delta copies past the end of the basis or the target");
+                }
+                System.arraycopy(basis, (int) from, target, written, (int) count);
+                written += (int) count;
+            } else if (operation == DATA) {
+                int length = in.readInt();
+                if (written + (long) length > target.length) {
+                    throw new IOException("Delta writes past the end of the target");
+                }
+                in.readFully(target, written, length);
+                written += length;
+            } else {
+                throw new IOException("Unknown delta operation " + operation);
+            }
+        }
+        if (written != targetLength) {
+            throw new IOException("Delta produced " + written + " bytes, expected " + targetLength);
+        }
+        return target;
+    }
+
+    private static void writeCopy(DataOutputStream out, int firstBlock, int blockCount) throws IOException {
+        if (blockCount > 0) {
+            out.writeByte(COPY);
+            out.writeInt(firstBlock);
+            out.writeInt(blockCount);
+        }
+    }
+
+    private static void writeData(DataOutputStream out, byte[] target, int offset, int length) throws IOException {
+        if (length > 0) {
+            out.writeByte(DATA);
+            out.writeInt(length);
+            out.write(target, offset, length);
+        }
+    }
+
+    // Adler-32 without the modulus tricks: a = sum of bytes, b = sum of running a, both mod 2^16
+    static int checksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += a;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    private static byte[] md5(byte[] data, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(data, offset, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Byte-bounded in-memory cache of whole file contents, evicted with W-TinyLFU: new entries
+ * land in a small LRU window, and an entry leaving the window only enters the main segmented
+ * LRU (probation + protected) if a frequency sketch says it is requested more often than the
+ * entry it would push out. One-off reads of cold files therefore cannot flush the hot set.
+ *
+ * Contents can be held on or off heap. Writers must call invalidate() after changing a file;
+ * loads of that file that started before the invalidation are not admitted, so a slow read
+ * can never put stale contents back. Generations are kept per stripe of keys, so writes to
+ * one file do not keep loads of every other file out of the cache.
+ */
+public class FileContentCache {
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int GENERATION_STRIPES = 1024;
+
+    private static final class Entry {
+        final String key;
+        final ByteBuffer content;
+
+        Entry(String key, ByteBuffer content) {
+            this.key = key;
+            this.content = content;
+        }
+
+        int weight() {
+            return content.capacity();
+        }
+    }
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final boolean offHeap;
+    private final long windowMax;
+    private final long protectedMax;
+
+    // Access-ordered, eldest first
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    private final FrequencySketch sketch;
+
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public FileContentCache(long maxBytes, int maxEntryBytes, boolean offHeap) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = (int) Math.min(maxEntryBytes, maxBytes);
+        this.offHeap = offHeap;
+        this.windowMax = Math.max(maxBytes * WINDOW_PERCENT / 100, this.maxEntryBytes);
+        this.protectedMax = (maxBytes - windowMax) * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, maxBytes / 4096)));
+    }
+
+    boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    // Files larger than this are streamed from disk and never cached
+    int maxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    // Take this before reading a file from disk and pass it to put()
+    long generation(String key) {
+        return generations.get(stripe(key));
+    }
+
+    private static int stripe(String key) {
+        return (int) Murmur3.hash64(key) & (GENERATION_STRIPES - 1);
+    }
+
+    // Returns a read-only view of the contents, or null on a miss
+    ByteBuffer get(String key) {
+        synchronized (this) {
+            sketch.increment(key);
+            Entry entry = window.get(key);
+            if (entry == null) {
+                entry = protectedSegment.get(key);
+            }
+            if (entry == null) {
+                entry = probation.remove(key);
+                if (entry != null) {
+                    probationBytes -= entry.weight();
+                    promote(entry);
+                }
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.content.asReadOnlyBuffer();
+        }
+    }
+
+    // Caches content read from disk, unless the file was invalidated since loadGeneration
+    boolean put(String key, byte[] content, long loadGeneration) {
+        if (!isEnabled() || content.length > maxEntryBytes) {
+            return false;
+        }
+        ByteBuffer buffer;
+        if (offHeap) {
+            buffer = ByteBuffer.allocateDirect(content.length);
+            buffer.put(content).flip();
+        } else {
+            buffer = ByteBuffer.wrap(content);
+        }
+        synchronized (this) {
+            if (generations.get(stripe(key)) != loadGeneration) {
+                return false;
+            }
+            removeEntry(key);
+            Entry entry = new Entry(key, buffer);
+            window.put(key, entry);
+            windowBytes += entry.weight();
+            while (windowBytes > windowMax && !window.isEmpty()) {
+                Entry candidate = removeEldest(window);
+                windowBytes -= candidate.weight();
+                admit(candidate);
+            }
+            return true;
+        }
+    }
+
+    void invalidate(String key) {
+        synchronized (this) {
+            generations.incrementAndGet(stripe(key));
+            if (removeEntry(key)) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    // An entry leaving the window competes with the main segment's LRU victims on frequency
+    private void admit(Entry candidate) {
+        if (candidate.weight() > maxBytes - windowMax) {
+            rejections.incrementAndGet(); // would not fit even in an empty main segment
+            return;
+        }
+        // The candidate has to beat every entry it would displace, eldest probation entries
+        // first, before any of them is evicted
+        int candidateFrequency = sketch.frequency(candidate.key);
+        long excess = probationBytes + protectedBytes + candidate.weight() - (maxBytes - windowMax);
+        int fromProbation = 0;
+        int fromProtected = 0;
+        Iterator<Entry> probationOrder = probation.values().iterator();
+        Iterator<Entry> protectedOrder = protectedSegment.values().iterator();
+        while (excess > 0) {
+            Entry victim;
+            if (probationOrder.hasNext()) {
+                victim = probationOrder.next();
+                fromProbation++;
+            } else {
+                victim = protectedOrder.next(); // the main segments hold more than the excess
+                fromProtected++;
+            }
+            if (candidateFrequency <= sketch.frequency(victim.key)) {
+                rejections.incrementAndGet();
+                return;
+            }
+            excess -= victim.weight();
+        }
+        for (int i = 0; i < fromProbation; i++) {
+            probationBytes -= removeEldest(probation).weight();
+            evictions.incrementAndGet();
+        }
+        for (int i = 0; i < fromProtected; i++) {
+            protectedBytes -= removeEldest(protectedSegment).weight();
+            evictions.incrementAndGet();
+        }
+        probation.put(candidate.key, candidate);
+        probationBytes += candidate.weight();
+    }
+
+    // A second hit moves an entry to protected; protected overflow drops back to probation
+    private void promote(Entry entry) {
+        protectedSegment.put(entry.key, entry);
+        protectedBytes += entry.weight();
+        while (protectedBytes > protectedMax && protectedSegment.size() > 1) {
+            Entry demoted = removeEldest(protectedSegment);
+            protectedBytes -= demoted.weight();
+            probation.put(demoted.key, demoted);
+            probationBytes += demoted.weight();
+        }
+    }
+
+    private boolean removeEntry(String key) {
+        Entry entry;
+        if ((entry = window.remove(key)) != null) {
+            windowBytes -= entry.weight();
+        } else if ((entry = probation.remove(key)) != null) {
+            probationBytes -= entry.weight();
+        } else if ((entry = protectedSegment.remove(key)) != null) {
+            protectedBytes -= entry.weight();
+        }
+        return entry != null;
+    }
+
+    private static Entry removeEldest(LinkedHashMap<String, Entry> segment) {
+        Iterator<Entry> eldest = segment.values().iterator();
+        Entry entry = eldest.next();
+        eldest.remove();
+        return entry;
+    }
+
+    synchronized long size() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    String metrics() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        int entries;
+        long bytes;
+        synchronized (this) {
+            entries = window.size() + probation.size() + protectedSegment.size();
+            bytes = size();
+        }
+        return String.format("contentCache hits=%d misses=%d hitRate=%.3f evictions=%d rejections=%d invalidations=%d entries=%d bytes=%d maxBytes=%d",
+                hitCount, misses.get(), total == 0 ? 0.0 : (double) hitCount / total, evictions.get(),
+                rejections.get(), invalidations.get(), entries, bytes, maxBytes);
+    }
+
+    /**
+     * Count-min sketch with four rows of 4-bit-range counters (kept in bytes, capped at 15).
+     * Every counter is halved after 10 increments per slot, so old popularity fades.
+     */
+    static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final long[] SEEDS = {0x97cb3127L, 0xd87c5a3bL, 0x9e3779b9L, 0xc2b2ae35L};
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+            counters = new byte[ROWS][size];
+            mask = size - 1;
+            sampleSize = 10 * size;
+        }
+
+        void increment(String key) {
+            long hash = Murmur3.hash64(key);
+            boolean added = false;
+            for (int row = 0; row < ROWS; row++) {
+                int index = index(hash, row);
+                if (counters[row][index] < 15) {
+                    counters[row][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            long hash = Murmur3.hash64(key);
+            int frequency = Integer.MAX_VALUE;
+            for (int row = 0; row < ROWS; row++) {
+                frequency = Math.min(frequency, counters[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(long hash, int row) {
+            return (int) Murmur3.fmix(hash + SEEDS[row]) & mask;
+        }
+
+        private void reset() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
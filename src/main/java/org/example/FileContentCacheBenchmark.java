@@ -0,0 +1,113 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Read throughput with and without FileContentCache on a Zipfian key distribution.
+ * Usage: FileContentCacheBenchmark [files] [fileBytes] [zipfExponent] [threads] [reads]
+ */
+public class FileContentCacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int fileBytes = args.length > 1 ? Integer.parseInt(args[1]) : 16 * 1024;
+        double exponent = args.length > 2 ? Double.parseDouble(args[2]) : 0.99;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        int reads = args.length > 4 ? Integer.parseInt(args[4]) : 400_000;
+
+        Path directory = Files.createTempDirectory("content-cache-bench");
+        try {
+            byte[] content = new byte[fileBytes];
+            new Random(1).nextBytes(content);
+            for (int i = 0; i < files; i++) {
+                Files.write(directory.resolve("file-" + i), content);
+            }
+            int[] keys = zipfKeys(files, exponent, reads, new Random(42));
+            long dataBytes = (long) files * fileBytes;
+            System.out.printf("%d files x %d bytes, zipf s=%.2f, %d threads, %d reads%n",
+                    files, fileBytes, exponent, threads, reads);
+
+            run("disk only", null, directory, keys, threads);
+            for (int percent : new int[]{1, 5, 10, 25}) {
+                long budget = dataBytes * percent / 100;
+                FileContentCache cache = new FileContentCache(budget, fileBytes, false);
+                run("cache " + percent + "% of data", cache, directory, keys, threads);
+                System.out.println("    " + cache.metrics());
+            }
+            FileContentCache offHeap = new FileContentCache(dataBytes / 10, fileBytes, true);
+            run("off-heap cache 10% of data", offHeap, directory, keys, threads);
+        } finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void run(String label, FileContentCache cache, Path directory, int[] keys, int threads) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicLong bytes = new AtomicLong();
+        int perThread = keys.length / threads;
+        long start = System.nanoTime();
+        Future<?>[] futures = new Future<?>[threads];
+        for (int t = 0; t < threads; t++) {
+            int from = t * perThread;
+            futures[t] = pool.submit(() -> {
+                long read = 0;
+                for (int i = from; i < from + perThread; i++) {
+                    read += read(cache, directory, "file-" + keys[i]);
+                }
+                bytes.addAndGet(read);
+                return null;
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        double seconds = elapsed / 1e9;
+        System.out.printf("  %-28s %,10.0f reads/s %8.1f MB/s%n", label,
+                perThread * threads / seconds, bytes.get() / seconds / (1024 * 1024));
+    }
+
+    // Mirrors FileServer.sendFileContent without the socket
+    private static int read(FileContentCache cache, Path directory, String fileName) throws IOException {
+        if (cache != null) {
+            ByteBuffer cached = cache.get(fileName);
+            if (cached != null) {
+                return cached.remaining();
+            }
+        }
+        long generation = cache == null ? 0 : cache.generation(fileName);
+        byte[] content = Files.readAllBytes(directory.resolve(fileName));
+        if (cache != null) {
+            cache.put(fileName, content, generation);
+        }
+        return content.length;
+    }
+
+    // Rank r (0-based) is drawn with probability proportional to 1 / (r + 1)^s
+    private static int[] zipfKeys(int n, double exponent, int count, Random random) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int rank = 0; rank < n; rank++) {
+            sum += 1.0 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        int[] keys = new int[count];
+        for (int i = 0; i < count; i++) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            keys[i] = index >= 0 ? index : Math.min(-index - 1, n - 1);
+        }
+        return keys;
+    }
+}
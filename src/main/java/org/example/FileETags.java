@@ -0,0 +1,88 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-derived ETags for local files: the first 128 bits of the SHA-256 of the contents,
+ * so every server holding the same bytes hands out the same tag. A tag is computed once per
+ * change and remembered together with the size and modification time it was computed at.
+ */
+final class FileETags {
+
+    private static final class Tag {
+        final long size;
+        final long modified;
+        final String value;
+
+        Tag(long size, long modified, String value) {
+            this.size = size;
+            this.modified = modified;
+            this.value = value;
+        }
+    }
+
+    private final Map<String, Tag> tags = new ConcurrentHashMap<>();
+
+    String get(String fileName, File file) throws IOException {
+        long size = file.length();
+        long modified = file.lastModified();
+        Tag tag = tags.get(fileName);
+        if (tag != null && tag.size == size && tag.modified == modified) {
+            return tag.value;
+        }
+        String value = digest(file);
+        // Only remember it if the file didn't change while we were hashing it
+        if (file.length() == size && file.lastModified() == modified) {
+            tags.put(fileName, new Tag(size, modified, value));
+        }
+        return value;
+    }
+
+    void invalidate(String fileName) {
+        tags.remove(fileName);
+    }
+
+    // The tag the server would hand out for these bytes
+    static String of(byte[] content) {
+        MessageDigest sha256 = sha256();
+        sha256.update(content);
+        return hex(sha256.digest());
+    }
+
+    static String digest(File file) throws IOException {
+        MessageDigest sha256 = sha256();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.CHUNK_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                sha256.update(buffer);
+                buffer.clear();
+            }
+        }
+        return hex(sha256.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(32);
+        for (int i = 0; i < 16; i++) {
+            hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,84 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client-side cache of which servers hold each file, filled from LOCATE, so a file's requests
+ * can go straight to one of its holders instead of through a server that would have to fetch
+ * it first. Entries expire after ttlMillis; a holder that refused a connection is skipped for
+ * downMillis, so requests fall back to the connected server instead of trying it every time.
+ */
+final class FileLocations {
+
+    interface Locator {
+        // The file's active holders, primary first; empty if the file is unknown
+        List<BlockLayout.Location> locate(String fileName) throws IOException;
+    }
+
+    private static final class Located {
+        final List<BlockLayout.Location> holders;
+        final long expiresAt;
+
+        Located(List<BlockLayout.Location> holders, long expiresAt) {
+            this.holders = holders;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final long downMillis;
+    private final Map<String, Located> located = new ConcurrentHashMap<>();
+    private final Map<String, Long> downUntil = new ConcurrentHashMap<>();
+    private final AtomicLong direct = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+
+    FileLocations(long ttlMillis, long downMillis) {
+        this.ttlMillis = ttlMillis;
+        this.downMillis = downMillis;
+    }
+
+    // The first reachable holder of fileName, or null to use the connected server
+    BlockLayout.Location owner(String fileName, Locator locator) {
+        long now = System.currentTimeMillis();
+        Located entry = located.get(fileName);
+        if (entry == null || entry.expiresAt <= now) {
+            try {
+                lookups.incrementAndGet();
+                entry = new Located(locator.locate(fileName), now + ttlMillis);
+                located.put(fileName, entry);
+            } catch (IOException e) {
+                fallbacks.incrementAndGet();
+                return null; // e.g. a server without LOCATE, which can still proxy
+            }
+        }
+        for (BlockLayout.Location holder : entry.holders) {
+            Long until = downUntil.get(holder.serverId);
+            if (until == null || until <= now) {
+                direct.incrementAndGet();
+                return holder;
+            }
+        }
+        fallbacks.incrementAndGet();
+        return null;
+    }
+
+    // holder refused a connection; forget where fileName is and avoid holder for a while
+    void failed(String fileName, BlockLayout.Location holder) {
+        located.remove(fileName);
+        downUntil.put(holder.serverId, System.currentTimeMillis() + downMillis);
+    }
+
+    void invalidate(String fileName) {
+        located.remove(fileName);
+    }
+
+    String stats() {
+        return "routing direct=" + direct.get() + " fallbacks=" + fallbacks.get() + " lookups=" + lookups.get()
+                + " cached=" + located.size();
+    }
+}
@@ -15,11 +15,28 @@ import java.text.SimpleDateFormat;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,12 +48,72 @@ public class FileServer {
     static String serverId;
     static String serviceName = "file-server3";
     static int numberOfReplicas = 2;
-    static int leaseDuration = 600000;
+    static long blockSize = Long.getLong("dfs.blockSize", BlockLayout.DEFAULT_BLOCK_SIZE);
+    static long leaseTtlMillis = Long.getLong("dfs.leaseTtlMillis", 30000L); // renewed every third of it while a WRITE is open
+    static int leaseRenewalThreads = Integer.getInteger("dfs.leaseRenewalThreads", 4);
+    static String connectionEngineMode = System.getProperty("dfs.engine", "thread");
+    static int workerThreads = Integer.getInteger("dfs.workers", 64);
+    static int maxPendingConnections = Integer.getInteger("dfs.maxPending", 1024);
+    static int idleConnectionTimeout = Integer.getInteger("dfs.idleTimeout", 60000);
+    static int maxFramedConnections = Integer.getInteger("dfs.maxFramedConnections", 256); // nio only, each has a reader thread
+    static String replicationMode = System.getProperty("dfs.replicationMode", "sequential"); // sequential or chain
+    static PlacementStrategy placementStrategy = PlacementStrategy.create(System.getProperty("dfs.placement", "leastFileCount"));
+    static int writeQuorum = Integer.getInteger("dfs.writeQuorum", 2); // copies, including the local one, acked before replying
+    static int replicaWriteTimeout = Integer.getInteger("dfs.replicaWriteTimeout", 30000);
     private static final Logger logger = LoggerFactory.getLogger(FileServer.class);
 
     private static Map<String, FileMetadata> fileMetadataMap = new HashMap<>();
-    private  static KeyValueClient kvClient = Consul.builder().build().keyValueClient();
-    private static Map<String, Long> temporaryFiles = new HashMap<>();
+    private static final Consul consul = Consul.builder().build();
+    private  static KeyValueClient kvClient = consul.keyValueClient();
+    static int metadataWatchSeconds = Integer.getInteger("dfs.metadataWatchSeconds", 10);
+    static long metadataMaxStaleness = Long.getLong("dfs.metadataMaxStaleness", 30000L);
+    private static final ConsulKvCache fileMetadataCache = new ConsulKvCache(kvClient, "files/", metadataWatchSeconds, metadataMaxStaleness);
+    private static final ConsulKvCache serverInfoCache = new ConsulKvCache(kvClient, "server-info/", metadataWatchSeconds, metadataMaxStaleness);
+    static long metadataBatchWindowMillis = Long.getLong("dfs.metadataBatchWindowMillis", 2L);
+    private static final MetadataBatcher metadataBatcher = new MetadataBatcher(kvClient, metadataBatchWindowMillis,
+            FileServer::applyFileCountDelta, FileServer::onMetadataCommitted);
+    static long contentCacheBytes = Long.getLong("dfs.cacheBytes", 64L * 1024 * 1024); // 0 disables the content cache
+    static int contentCacheMaxEntryBytes = Integer.getInteger("dfs.cacheMaxEntryBytes", 4 * 1024 * 1024);
+    private static final FileContentCache contentCache = new FileContentCache(contentCacheBytes, contentCacheMaxEntryBytes,
+            Boolean.getBoolean("dfs.cacheOffHeap"));
+    private static final MappedFileRegistry mappedFiles = new MappedFileRegistry();
+    static final int MAX_SEEK_BYTES = 1024 * 1024;
+    private static final FileETags fileETags = new FileETags();
+    static final long NOT_MODIFIED = -2;
+    static final String LEASE_LOST = "Lease expired before the update arrived, the file was not changed.";
+    static long proxyCacheBytes = Long.getLong("dfs.proxyCacheBytes", 1024L * 1024 * 1024);
+    private static ProxyFileCache proxyCache; // per-server directory, created in main()
+    static boolean hedgedReads = !"false".equals(System.getProperty("dfs.hedgedReads"));
+    private static final ReplicaSelector replicaSelector = new ReplicaSelector(Long.getLong("dfs.hedgeMinDelayMillis", 5L));
+    private static final ExecutorService hedgeExecutor = Executors.newCachedThreadPool();
+    private static final ExecutorService frameExecutor = Executors.newFixedThreadPool(workerThreads);
+    private static ConnectionReaders connectionReaders; // set in startServer()
+    private static final ConnectionPool connectionPool = new ConnectionPool();
+    private static final ExecutorService replicationExecutor = Executors.newFixedThreadPool(workerThreads);
+    // fileName -> replicas that missed an update and still need the current content
+    private static final Map<String, Set<String>> pendingRepairs = new ConcurrentHashMap<>();
+    private static BlockChecksums blockChecksums; // its directory is per server, so main() creates it
+    static long scrubBytesPerSecond = Long.getLong("dfs.scrubBytesPerSecond", 8L * 1024 * 1024);
+    static long scrubRescanMillis = Long.getLong("dfs.scrubRescanMillis", TimeUnit.DAYS.toMillis(7));
+    // Local copies being replaced because their checksums failed
+    private static final Set<String> corruptCopyRepairs = ConcurrentHashMap.newKeySet();
+    private static final LeaseManager leases = new LeaseManager(leaseTtlMillis, new ConsulLeaseStore(kvClient));
+    // Each renewal waits at most a third of the TTL, so a slow grantor delays the others on a
+    // thread by that much at worst instead of past their own expiry
+    private static final ScheduledExecutorService leaseRenewals = Executors.newScheduledThreadPool(leaseRenewalThreads);
+    private static final AtomicLong writeSessions = new AtomicLong();
+    // Never removed: a lock dropped while an append waits on it would let the next one run beside it
+    private static final Map<String, Object> appendLocks = new ConcurrentHashMap<>();
+    private static final int MAX_APPEND_BYTES = Frame.MAX_PAYLOAD_SIZE - (2 + 65535 + 8 + 4);
+    static boolean durableWrites = Boolean.getBoolean("dfs.durableWrites");
+    static long groupCommitMicros = Long.getLong("dfs.groupCommitMicros", 0L);
+    private static final GroupCommit groupCommit = durableWrites
+            ? new GroupCommit(groupCommitMicros, Integer.getInteger("dfs.groupCommitForceThreads", 8)) : null;
+    static boolean segmentStorage = "segments".equals(System.getProperty("dfs.storage", "files"));
+    static int segmentMaxFileBytes = Integer.getInteger("dfs.segmentMaxFileBytes", 64 * 1024);
+    static long segmentBytes = Long.getLong("dfs.segmentBytes", 64L * 1024 * 1024);
+    static double segmentCompactRatio = Double.parseDouble(System.getProperty("dfs.segmentCompactRatio", "0.5"));
+    private static SegmentStore segments; // small local copies with dfs.storage=segments, opened in main()
 
 
     private static class ServerInfo  {
@@ -116,25 +193,41 @@ public class FileServer {
         Date creationDate;
         String serverId;
         Set<String> replicatedNodes;
-        String lesseeServerId;
-        boolean isLeased;
-        String leasedBy;
-        long leaseExpiryTime;
+        long blockSize;
+        List<BlockLayout.Block> blocks;
+        long version; // changes whenever the content does, so copies can tell they are stale
 
         FileMetadata(String fileName, long fileSize, Date creationDate,String serverId) {
             this.fileName = fileName;
             this.fileSize = fileSize;
             this.creationDate = creationDate;
             this.serverId = serverId;
+            this.version = creationDate.getTime(); // a file recreated under the same name gets a new one
             this.replicatedNodes = new HashSet<>();
-            this.isLeased = false;
-            this.leaseExpiryTime =0;
         }
 
         void addReplicatedNode(String nodeId) {
             replicatedNodes.add(nodeId);
         }
 
+        // Primary first, then the replicas
+        List<String> holders() {
+            List<String> holders = new ArrayList<>();
+            holders.add(serverId);
+            for (String nodeId : replicatedNodes) {
+                if (!nodeId.equals(serverId)) {
+                    holders.add(nodeId);
+                }
+            }
+            return holders;
+        }
+
+        // Recomputes the block list after the size or the set of holders changed
+        void planBlocks(long blockSize) {
+            this.blockSize = blockSize;
+            this.blocks = BlockLayout.plan(fileSize, blockSize, holders());
+        }
+
         String toJson() {
             Gson gson = new Gson();
             return gson.toJson(this);
@@ -152,8 +245,25 @@ public class FileServer {
 
         serverId = "file-server-" + args[0];
         int port = Integer.parseInt(args[1]);       // Port number
+        blockChecksums = new BlockChecksums(new File("Checksums/" + serverId));
+        if (segmentStorage) {
+            try {
+                segments = new SegmentStore(new File("Segments/" + serverId), segmentBytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot open the segment store", e); // its files would be missing
+            }
+        }
+        proxyCache = new ProxyFileCache(new File("Cache/" + serverId), proxyCacheBytes, fileName -> {
+            contentCache.invalidate(fileName);
+            mappedFiles.invalidate(fileName);
+        });
+        if (args.length > 2) {
+            connectionEngineMode = args[2];           // thread, nio or virtual
+        }
 
         registerToConsul(serverId, "127.0.0.1", port, false); //server is active
+        fileMetadataCache.start();
+        serverInfoCache.start();
 
 
         // Register with Consul
@@ -175,39 +285,122 @@ public class FileServer {
 
     }
 
-    private static String requestLease(String fileName, String serverId) {
-        Optional<String> metadataJson = kvClient.getValueAsString("files/" + fileName);
-        FileMetadata metadata = metadataJson.map(FileMetadata::fromJson).orElse(null);
-
-        if (metadata != null) {
-            long currentTime = System.currentTimeMillis();
-            if (!metadata.isLeased || (metadata.leaseExpiryTime != 0 && currentTime > metadata.leaseExpiryTime)) {
-                metadata.isLeased = true;
-                metadata.leasedBy = serverId;
-                metadata.leaseExpiryTime = currentTime + leaseDuration;
-
-                kvClient.putValue("files/" + fileName, metadata.toJson());
-                return "Lease acquired successfully.";
-            } else {
-                // Convert leaseExpiryTime to a readable date format
-                SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                String readableDate = dateFormat.format(new Date(metadata.leaseExpiryTime));
-                return "Lease not acquired. File is currently locked. Lease expires at: " + readableDate;
+    // WRITE: holds the file's lease for the whole session, renewing it in the background while
+    // the client edits. Each session is its own holder, so two editors on one server still
+    // exclude each other; the lease is released however the session ends.
+    private static void handleWriteSession(DataInputStream dataInputStream, DataOutputStream dataOutputStream, String fileName) throws IOException {
+        String holder = serverId + "/" + writeSessions.incrementAndGet();
+        LeaseManager.Lease lease;
+        try {
+            lease = leaseRequest("ACQUIRE", fileName, holder, 0);
+        } catch (IOException e) {
+            logger.error("Lease on " + fileName + " could not be requested: " + e.getMessage());
+            dataOutputStream.writeUTF("Lease not acquired. " + e.getMessage());
+            return;
+        }
+        if (lease == null) {
+            dataOutputStream.writeUTF("Lease not acquired. Unable to find file metadata.");
+            return;
+        }
+        if (!lease.holder.equals(holder)) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            String readableDate = dateFormat.format(new Date(lease.expiresAt));
+            dataOutputStream.writeUTF("Lease not acquired. File is currently locked. Lease expires at: " + readableDate);
+            return;
+        }
+        long renewEvery = Math.max(1, leaseTtlMillis / 3);
+        ScheduledFuture<?> renewal = leaseRenewals.scheduleAtFixedRate(() -> {
+            if (!renewLease(fileName, lease)) {
+                logger.error("Lease on " + fileName + " was lost by " + holder);
+            }
+        }, renewEvery, renewEvery, TimeUnit.MILLISECONDS);
+        try {
+            handleReadRequest(dataInputStream, dataOutputStream, fileName, "WRITE", lease);
+        } finally {
+            renewal.cancel(false);
+            try {
+                leaseRequest("RELEASE", fileName, holder, lease.token);
+            } catch (IOException e) {
+                logger.info("Lease on " + fileName + " not released, it expires in " + leaseTtlMillis + " ms: " + e.getMessage());
             }
         }
-        return "Lease not acquired. Unable to find file metadata.";
     }
 
+    // Extends lease, and tells whether the session still holds it: an update is only applied
+    // after this passes, so a writer whose lease expired cannot overwrite a newer one
+    private static boolean renewLease(String fileName, LeaseManager.Lease lease) {
+        try {
+            LeaseManager.Lease current = leaseRequest("RENEW", fileName, lease.holder, lease.token);
+            return current != null && current.isHeldBy(lease.holder, lease.token);
+        } catch (IOException e) {
+            logger.error("Lease on " + fileName + " could not be renewed: " + e.getMessage());
+            return false;
+        }
+    }
 
-    private static void releaseLease(String fileName) {
-        Optional<String> metadataJson = kvClient.getValueAsString("files/" + fileName);
-        FileMetadata metadata = metadataJson.map(FileMetadata::fromJson).orElse(null);
+    // Leases are granted by the first active holder of the file, the primary unless it is
+    // down. Returns the lease in force after the action, or null if there is none (or no file).
+    private static LeaseManager.Lease leaseRequest(String action, String fileName, String holder, long token) throws IOException {
+        FileMetadata metadata = getCachedFileMetadata(fileName);
+        if (metadata == null) {
+            return null;
+        }
+        String grantor = firstActiveHolder(metadata);
+        if (grantor == null) {
+            throw new IOException("No active holder of " + fileName + " can grant its lease");
+        }
+        if (grantor.equals(serverId)) {
+            return applyLeaseAction(action, fileName, holder, token);
+        }
+        // A renewal answered later than its interval is of no use: the lease may be gone by then
+        long timeoutMillis = action.equals("RENEW") ? Math.max(1, leaseTtlMillis / 3)
+                : TimeUnit.SECONDS.toMillis(FramedConnection.REQUEST_TIMEOUT_SECONDS);
+        DataInputStream in = connectionTo(grantor).call(Opcode.LEASE, out -> {
+            out.writeUTF(action);
+            out.writeUTF(fileName);
+            out.writeUTF(holder);
+            out.writeLong(token);
+        }, timeoutMillis);
+        String leaseHolder = in.readUTF();
+        long leaseToken = in.readLong();
+        long expiresAt = in.readLong();
+        return leaseHolder.isEmpty() ? null : new LeaseManager.Lease(leaseHolder, leaseToken, expiresAt);
+    }
 
-        if (metadata != null) {
-            metadata.isLeased = false;
-            metadata.leasedBy = null;
-            metadata.leaseExpiryTime =0;
-            kvClient.putValue("files/" + fileName, metadata.toJson());
+    // The primary unless it is down, then the first active replica; null if none is active
+    private static String firstActiveHolder(FileMetadata metadata) {
+        for (String candidate : metadata.holders()) {
+            ServerInfo info = candidate.equals(serverId) ? null : getServerDetailsFromConsul(candidate);
+            if (candidate.equals(serverId) || (info != null && !info.isServerInactive())) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    // LEASE from a server that has a WRITE session open: action, fileName, holder and token;
+    // answered with the lease in force (an empty holder if none), its token and expiry
+    private static void handleLeaseRequest(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        String action = dataInputStream.readUTF();
+        String fileName = dataInputStream.readUTF();
+        String holder = dataInputStream.readUTF();
+        long token = dataInputStream.readLong();
+        LeaseManager.Lease lease = applyLeaseAction(action, fileName, holder, token);
+        dataOutputStream.writeUTF(lease != null ? lease.holder : "");
+        dataOutputStream.writeLong(lease != null ? lease.token : 0);
+        dataOutputStream.writeLong(lease != null ? lease.expiresAt : 0);
+    }
+
+    private static LeaseManager.Lease applyLeaseAction(String action, String fileName, String holder, long token) throws IOException {
+        switch (action) {
+            case "ACQUIRE":
+                return leases.acquire(fileName, holder);
+            case "RENEW":
+                return leases.renew(fileName, holder, token);
+            case "RELEASE":
+                return leases.release(fileName, holder, token);
+            default:
+                throw new IOException("Unknown lease action: " + action);
         }
     }
 
@@ -222,24 +415,36 @@ public class FileServer {
         }
     }
 
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String response = fileMetadataCache.metrics() + "\n" + serverInfoCache.metrics() + "\n"
+                    + contentCache.metrics() + "\n" + blockChecksums.metrics() + "\n"
+                    + proxyCache.metrics() + "\n" + replicaSelector.metrics() + "\n" + leases.metrics() + "\n"
+                    + (segments != null ? segments.metrics() + "\n" : "")
+                    + (groupCommit != null ? groupCommit.metrics() + "\n" : "")
+                    + connectionReaders.metrics() + "\n";
+            exchange.sendResponseHeaders(200, response.getBytes().length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(response.getBytes());
+            os.close();
+        }
+    }
+
     private static void startServer(int port) throws IOException {
         HttpServer httpServer = HttpServer.create(new InetSocketAddress(port+1000), 0);
         httpServer.createContext("/health", new HealthCheckHandler());
+        httpServer.createContext("/metrics", new MetricsHandler());
         httpServer.setExecutor(null);
         httpServer.start();
         logger.info("HTTP Server started on port: " + port);
         System.out.println("HTTP Server started on port: " + port);
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Socket Server started, listening on: " + port);
-
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                logger.info("Client connected: " + clientSocket.getInetAddress());
-                System.out.println("Client connected: " + clientSocket.getInetAddress());
-
-                new Thread(() -> handleClient(clientSocket)).start();
-            }
+        ConnectionEngine engine = ConnectionEngine.create(connectionEngineMode, workerThreads, maxPendingConnections);
+        connectionReaders = new ConnectionReaders(engine, maxFramedConnections);
+        logger.info("Using connection engine: " + connectionEngineMode);
+        try {
+            engine.serve(port, FileServer::handleClient);
         } catch (IOException e) {
             System.out.println("Socket Server exception: " + e.getMessage());
             logger.error("Socket Server exception: " + e.getMessage());
@@ -248,21 +453,37 @@ public class FileServer {
 
     }
     private static void updateFileMetadataInConsul(String fileName, FileMetadata metadata) {
-        Consul consul = Consul.builder().build();
-        KeyValueClient kvClient = consul.keyValueClient();
-
         String metadataJson = metadata.toJson(); // Convert to JSON
-        kvClient.putValue("files/" + fileName, metadataJson);
+        metadataBatcher.commit(new MetadataBatcher.Batch().put("files/" + fileName, metadataJson));
+    }
+
+    private static String applyFileCountDelta(String serverInfoJson, int delta) {
+        ServerInfo info = ServerInfo.fromJson(serverInfoJson);
+        info.setFileCount(Math.max(info.getFileCount() + delta, 0));
+        return info.toJson();
+    }
+
+    // Keeps the local mirrors in step with what the batcher committed
+    private static void onMetadataCommitted(String key, String json, long modifyIndex) {
+        ConsulKvCache cache = key.startsWith("server-info/") ? serverInfoCache : fileMetadataCache;
+        if (json == null) {
+            cache.remove(key);
+        } else {
+            cache.put(key, json, modifyIndex);
+        }
     }
 
     private static FileMetadata getFileMetadataFromConsul(String fileName) {
-        Consul consul = Consul.builder().build();
-        KeyValueClient kvClient = consul.keyValueClient();
 
         Optional<String> metadataJson = kvClient.getValueAsString("files/"+ fileName);
         return metadataJson.map(FileMetadata::fromJson).orElse(null);
     }
 
+    // Served from the watched in-memory mirror; may lag Consul by up to metadataMaxStaleness
+    private static FileMetadata getCachedFileMetadata(String fileName) {
+        return fileMetadataCache.get("files/" + fileName).map(FileMetadata::fromJson).orElse(null);
+    }
+
 
     private static void handleClient(Socket clientSocket) {
         String SAVE_DIRECTORY = "Files/"+serverId;
@@ -276,70 +497,28 @@ public class FileServer {
             }
         }
 
-        try (DataInputStream dataInputStream = new DataInputStream(clientSocket.getInputStream());
-             DataOutputStream dataOutputStream = new DataOutputStream(clientSocket.getOutputStream())) {
-
-            String command = dataInputStream.readUTF(); // Read the command (CREATE or UPLOAD)
-            String fileName ;
+        boolean handedOff = false;
+        try {
+            DataInputStream dataInputStream = new FileTransfer.ChannelInputStream(clientSocket);
+            DataOutputStream dataOutputStream = new FileTransfer.ChannelOutputStream(clientSocket);
 
-            switch (command) {
-                case "CREATE":
-                    handleFileCreation(dataInputStream,dataOutputStream, SAVE_DIRECTORY);
-                    dataOutputStream.writeUTF("File created successfully.");
-                    break;
-                case "UPLOAD":
-                    handleFileUpload(dataInputStream, SAVE_DIRECTORY);
-                    dataOutputStream.writeUTF("File uploaded successfully.");
-                    break;
-                case "REPLICATE":
-                    handleFileReplicate(dataInputStream, SAVE_DIRECTORY);
-                    dataOutputStream.writeUTF("File Replication successfully.");
-                    break;
-                case "READ":
-                     fileName = dataInputStream.readUTF();
-                    handleReadRequest(dataInputStream, dataOutputStream,fileName,"READ");
-                    break;
-                case "WRITE":
-                    fileName = dataInputStream.readUTF();
-                    String leaseResponse = requestLease(fileName, serverId);
-                    if (leaseResponse.startsWith("Lease acquired")) {
-                        handleReadRequest(dataInputStream, dataOutputStream, fileName, "WRITE");
-                    } else {
-                        dataOutputStream.writeUTF(leaseResponse); // Send the lease response to the client
-                    }
-                    break;
-                case "READFROMSERVER":
-                    handleReadFromServerRequest(dataInputStream,dataOutputStream);
-                    break;
-                case "EDITED_CONTENT":
-                    handleEditedContent(dataInputStream, dataOutputStream);
-                    break;
-                case "UPDATE_REPLICA":
-                    handleUpdateReplica(dataInputStream);
-                    dataOutputStream.writeUTF("Replica updated successfully.");
-                    break;
-                case "DELETE":
-                    fileName = dataInputStream.readUTF();
-                    handleFileDeletion(dataOutputStream, fileName);
-                    break;
-                case "DELETE_REPLICA":
-                    String replicaFileName = dataInputStream.readUTF();
-                    deleteLocalFile(replicaFileName);
-                    break;
-                case "OPEN":
-                    fileName = dataInputStream.readUTF();
-                    handleReadRequest(dataInputStream, dataOutputStream,fileName,"OPEN");
-                    break;
-                default:
-                    dataOutputStream.writeUTF("Unknown command.");
+            String command = dataInputStream.readUTF(); // Read the command (CREATE, UPLOAD, ... or FRAMED)
+            if (Frame.HANDSHAKE.equals(command)) {
+                handedOff = connectionReaders.continueWith(clientSocket, () -> serveFramedConnection(clientSocket, SAVE_DIRECTORY));
+                return;
             }
+            dispatchCommand(command, dataInputStream, dataOutputStream, SAVE_DIRECTORY);
+            dataOutputStream.flush();
+            handedOff = serveKeepAlive(clientSocket, dataInputStream, dataOutputStream, SAVE_DIRECTORY);
         } catch (IOException e) {
             System.out.println("Error handling client: " + e.getMessage());
             logger.error("Error handling client: " + e.getMessage());
             e.printStackTrace();
         } finally {
             try {
-                clientSocket.close();
+                if (!handedOff) {
+                    clientSocket.close();
+                }
             } catch (IOException e) {
                 System.out.println("Error closing client socket: " + e.getMessage());
                 logger.error("Error closing client socket: " + e.getMessage());
@@ -347,16 +526,190 @@ public class FileServer {
         }
     }
 
+    private static void dispatchCommand(String command, DataInputStream dataInputStream, DataOutputStream dataOutputStream, String SAVE_DIRECTORY) throws IOException {
+        String fileName ;
+
+        switch (command) {
+            case "CREATE":
+                handleFileCreation(dataInputStream,dataOutputStream, SAVE_DIRECTORY);
+                dataOutputStream.writeUTF("File created successfully.");
+                break;
+            case "UPLOAD":
+                handleFileUpload(dataInputStream, SAVE_DIRECTORY);
+                dataOutputStream.writeUTF("File uploaded successfully.");
+                break;
+            case "REPLICATE":
+                handleFileReplicate(dataInputStream, SAVE_DIRECTORY);
+                dataOutputStream.writeUTF("File Replication successfully.");
+                break;
+            case "REPLICATE_CHAIN":
+                handleChainReplicate(dataInputStream, dataOutputStream, SAVE_DIRECTORY);
+                break;
+            case "READ":
+                 fileName = dataInputStream.readUTF();
+                handleReadRequest(dataInputStream, dataOutputStream,fileName,"READ", null);
+                break;
+            case "WRITE":
+                fileName = dataInputStream.readUTF();
+                handleWriteSession(dataInputStream, dataOutputStream, fileName);
+                break;
+            case "READFROMSERVER":
+                handleReadFromServerRequest(dataInputStream,dataOutputStream);
+                break;
+            case "EDITED_CONTENT":
+                handleEditedContent(dataInputStream, dataOutputStream);
+                break;
+            case "UPDATE_REPLICA":
+                handleUpdateReplica(dataInputStream);
+                dataOutputStream.writeUTF("Replica updated successfully.");
+                break;
+            case "DELETE":
+                fileName = dataInputStream.readUTF();
+                handleFileDeletion(dataOutputStream, fileName);
+                break;
+            case "DELETE_REPLICA":
+                String replicaFileName = dataInputStream.readUTF();
+                deleteLocalFile(replicaFileName);
+                break;
+            case "OPEN":
+                fileName = dataInputStream.readUTF();
+                handleReadRequest(dataInputStream, dataOutputStream,fileName,"OPEN", null);
+                break;
+            case "READ_RANGE":
+                handleReadRangeRequest(dataInputStream, dataOutputStream);
+                break;
+            case "READ_CONDITIONAL":
+                handleConditionalRead(dataInputStream, dataOutputStream);
+                break;
+            case "BLOCKS":
+                handleBlocksRequest(dataInputStream, dataOutputStream);
+                break;
+            case "DELTA_REPLICA":
+                handleDeltaReplica(dataInputStream, dataOutputStream);
+                break;
+            case "CODECS":
+                handleCodecNegotiation(dataInputStream, dataOutputStream);
+                break;
+            case "LOCATE":
+                handleLocateRequest(dataInputStream, dataOutputStream);
+                break;
+            case "LEASE":
+                handleLeaseRequest(dataInputStream, dataOutputStream);
+                break;
+            case "APPEND":
+                handleAppendRequest(dataInputStream, dataOutputStream);
+                break;
+            case "APPEND_REPLICA":
+                handleAppendReplica(dataInputStream, dataOutputStream);
+                break;
+            default:
+                dataOutputStream.writeUTF("Unknown command.");
+        }
+    }
+
+    // Answers a client's codec offer and switches this connection's bodies to the chosen codec
+    private static void handleCodecNegotiation(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        Codec chosen = Codec.choose(dataInputStream.readUTF());
+        dataOutputStream.writeUTF(chosen.wireName);
+        dataOutputStream.flush();
+        if (dataInputStream instanceof FileTransfer.CodecInputStream && dataOutputStream instanceof FileTransfer.CodecOutputStream) {
+            ((FileTransfer.CodecInputStream) dataInputStream).codec = chosen;
+            ((FileTransfer.CodecOutputStream) dataOutputStream).codec = chosen;
+        }
+    }
+
+    // Every command is length-delimited, so the connection stays open for the next one
+    // until the peer closes it or leaves it idle. Between commands it is parked with the
+    // engine where the engine can; returns true if it was, and the engine then owns the socket.
+    // The streams are unbuffered, so nothing of the next command is left behind in them.
+    private static boolean serveKeepAlive(Socket clientSocket, DataInputStream dataInputStream, DataOutputStream dataOutputStream, String SAVE_DIRECTORY) throws IOException {
+        while (!connectionReaders.park(clientSocket, idleConnectionTimeout,
+                () -> serveNextCommand(clientSocket, dataInputStream, dataOutputStream, SAVE_DIRECTORY)
+                        && serveKeepAlive(clientSocket, dataInputStream, dataOutputStream, SAVE_DIRECTORY))) {
+            if (!serveNextCommand(clientSocket, dataInputStream, dataOutputStream, SAVE_DIRECTORY)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns false once the peer has closed the connection or left it idle
+    private static boolean serveNextCommand(Socket clientSocket, DataInputStream dataInputStream, DataOutputStream dataOutputStream, String SAVE_DIRECTORY) throws IOException {
+        clientSocket.setSoTimeout(idleConnectionTimeout);
+        String command;
+        try {
+            command = dataInputStream.readUTF();
+        } catch (EOFException | SocketTimeoutException e) {
+            return false;
+        }
+        clientSocket.setSoTimeout(0);
+        dispatchCommand(command, dataInputStream, dataOutputStream, SAVE_DIRECTORY);
+        dataOutputStream.flush();
+        return true;
+    }
+
+    // Reads frames until the peer disconnects; each frame runs on the frame pool and its
+    // response is written back with the same request id, in whatever order they finish.
+    private static void serveFramedConnection(Socket clientSocket, String SAVE_DIRECTORY) throws IOException {
+        DataInputStream frameInput = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+        DataOutputStream frameOutput = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+        Codec codec = Codec.NONE;
+
+        while (true) {
+            Frame request;
+            try {
+                request = Frame.readFrom(frameInput);
+            } catch (EOFException e) {
+                return; // peer closed the connection
+            }
+            if (request.opcode == Opcode.CODECS) {
+                // Answered inline, the client waits for it before sending anything else
+                codec = Codec.choose(new String(request.payload, StandardCharsets.UTF_8));
+                synchronized (frameOutput) {
+                    new Frame(request.requestId, Opcode.CODECS, codec.wireName.getBytes(StandardCharsets.UTF_8)).writeTo(frameOutput);
+                }
+                continue;
+            }
+            Codec responseCodec = codec;
+            frameExecutor.execute(() -> {
+                Frame response;
+                try {
+                    if (!request.opcode.multiplexable) {
+                        throw new IOException(request.opcode.command + " needs a dedicated connection");
+                    }
+                    ByteArrayOutputStream responseBuffer = new ByteArrayOutputStream();
+                    dispatchCommand(request.opcode.command,
+                            new DataInputStream(new ByteArrayInputStream(request.payload)),
+                            new DataOutputStream(responseBuffer), SAVE_DIRECTORY);
+                    if (responseBuffer.size() > Frame.MAX_PAYLOAD_SIZE) {
+                        throw new IOException(request.opcode.command + " response of " + responseBuffer.size()
+                                + " bytes does not fit in a frame, use a dedicated connection");
+                    }
+                    response = new Frame(request.requestId, request.opcode, responseBuffer.toByteArray());
+                } catch (Exception e) {
+                    logger.error("Error handling framed " + request.opcode.command + ": " + e.getMessage());
+                    String message = e.getMessage() == null ? e.toString() : e.getMessage();
+                    response = new Frame(request.requestId, Opcode.ERROR, message.getBytes());
+                }
+                try {
+                    synchronized (frameOutput) {
+                        response.writeTo(frameOutput, responseCodec);
+                    }
+                } catch (IOException e) {
+                    logger.error("Error writing framed response: " + e.getMessage());
+                }
+            });
+        }
+    }
+
 
     private static void handleEditedContent(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
         String fileName = dataInputStream.readUTF();
         int contentLength = dataInputStream.readInt();
         byte[] contentBytes = new byte[contentLength];
         dataInputStream.readFully(contentBytes);
-        String editedContent = new String(contentBytes);
 
-        File file = new File("Files/" + serverId, fileName);
-        Files.write(file.toPath(), editedContent.getBytes());
+        writeLocalCopy(fileName, contentBytes); // as sent, a round trip through String would mangle binary files
 
 
 
@@ -369,249 +722,1208 @@ public class FileServer {
         String fileName = dataInputStream.readUTF();
         File file = new File("Files/" + serverId, fileName);
 
-        if (file.exists()) {
-            // Send file content back to the requester
-            byte[] fileContent = Files.readAllBytes(file.toPath());
-            dataOutputStream.writeInt(fileContent.length);
-            dataOutputStream.write(fileContent);
+        byte[] segmentContent = segmentCopy(fileName);
+        if (segmentContent != null) {
+            FileTransfer.sendBuffer(ByteBuffer.wrap(segmentContent), dataOutputStream);
+        } else if (file.exists()) {
+            // Stream file content back to the requester
+            sendFileContent(fileName, file, dataOutputStream);
         } else {
-            dataOutputStream.writeInt(0); // Indicate file not found
+            dataOutputStream.writeLong(-1); // Indicate file not found
+        }
+    }
+
+    // Every write or delete of a local file goes through here so no cached view outlives it.
+    // Writers that know the new checksums record them afterwards with recordChecksums.
+    private static void localCopyChanged(String fileName) {
+        contentCache.invalidate(fileName);
+        mappedFiles.invalidate(fileName);
+        fileETags.invalidate(fileName);
+        blockChecksums.remove(fileName);
+    }
+
+    // The content of fileName's local copy if it lives in the segment store, otherwise null.
+    // Segment records carry their own CRC32C, so a corrupt one is repaired like a plain file.
+    private static byte[] segmentCopy(String fileName) throws IOException {
+        if (segments == null) {
+            return null;
+        }
+        try {
+            return segments.read(fileName);
+        } catch (BlockChecksums.ChecksumException e) {
+            logger.error(e.getMessage());
+            repairCorruptCopy(fileName);
+            throw blockChecksums.mismatch(fileName, e.block);
         }
     }
 
+    private static boolean hasLocalCopy(String fileName) {
+        return (segments != null && segments.contains(fileName)) || new File("Files/" + serverId, fileName).exists();
+    }
+
+    private static byte[] readLocalCopy(String fileName) throws IOException {
+        byte[] content = segmentCopy(fileName);
+        return content != null ? content : Files.readAllBytes(new File("Files/" + serverId, fileName).toPath());
+    }
+
+    // Replaces fileName's local copy: in the segment store if it is small enough, otherwise as
+    // a plain file, dropping whichever of the two held the previous version
+    private static void writeLocalCopy(String fileName, byte[] content) throws IOException {
+        File file = new File("Files/" + serverId, fileName);
+        if (segments != null && content.length <= segmentMaxFileBytes) {
+            segments.put(fileName, content);
+            durable(segments);
+            Files.deleteIfExists(file.toPath());
+            localCopyChanged(fileName);
+            return;
+        }
+        // Written beside the file and renamed over it, so readers never see a partial copy
+        File written = new File(file.getParentFile(), file.getName() + ".write");
+        try {
+            Files.write(written.toPath(), content);
+            durable(GroupCommit.file(written.toPath())); // before the rename, or a crash could leave it empty
+            Files.move(written.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            durable(GroupCommit.file(file.toPath()));
+        } finally {
+            written.delete();
+        }
+        if (segments != null && segments.delete(fileName)) {
+            durable(segments); // or the old record would shadow the file again after a crash
+        }
+        localCopyChanged(fileName);
+        recordChecksums(fileName, file, BlockChecksums.compute(content));
+    }
+
+    // For writers that stream a local copy to a plain file: a small one then moves into the
+    // segment store, a large one replaces whatever version the store still had
+    private static void settleLocalCopy(String fileName, File file) {
+        if (segments == null || !file.exists()) {
+            return;
+        }
+        try {
+            if (file.length() <= segmentMaxFileBytes) {
+                segments.put(fileName, Files.readAllBytes(file.toPath()));
+                durable(segments);
+                Files.delete(file.toPath());
+                localCopyChanged(fileName);
+            } else if (segments.delete(fileName)) {
+                durable(segments);
+                localCopyChanged(fileName);
+            }
+        } catch (IOException e) {
+            logger.error("Cannot settle the local copy of " + fileName + " in the segment store: " + e.getMessage());
+        }
+    }
+
+    // With dfs.durableWrites, returns once what was written to target is on disk. Callers
+    // acknowledge a write only after this; concurrent writers share the forces of a batch.
+    private static void durable(GroupCommit.Target target) throws IOException {
+        if (groupCommit != null) {
+            groupCommit.sync(target);
+        }
+    }
+
+    // A file without checksums is still served; the scrubber computes them later
+    private static void recordChecksums(String fileName, File file, int[] blocks) {
+        try {
+            blockChecksums.record(fileName, file, blocks);
+        } catch (IOException e) {
+            logger.error("Cannot record checksums of " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    // Hot files are served from the content cache; files too large for it stream from disk.
+    // Bytes loaded into the cache are checked against the file's checksums on the way in, and
+    // a corrupt copy is served from another holder while it is repaired.
+    private static void sendFileContent(String fileName, File file, DataOutputStream dataOutputStream) throws IOException {
+        ByteBuffer cached = contentCache.get(fileName);
+        if (cached != null) {
+            FileTransfer.sendBuffer(cached, dataOutputStream);
+            return;
+        }
+        long generation = contentCache.generation(fileName);
+        if (!contentCache.isEnabled() || file.length() > contentCache.maxEntryBytes()) {
+            try {
+                FileTransfer.sendFile(file, dataOutputStream, blockChecksums.expected(fileName, file));
+            } catch (BlockChecksums.ChecksumException e) {
+                logger.error(blockChecksums.mismatch(fileName, e.block).getMessage());
+                repairCorruptCopy(fileName);
+                throw e; // part of the file is already on the wire
+            }
+            return;
+        }
+        byte[] content = Files.readAllBytes(file.toPath());
+        try {
+            blockChecksums.verify(fileName, file, content);
+        } catch (BlockChecksums.ChecksumException e) {
+            logger.error(e.getMessage());
+            repairCorruptCopy(fileName);
+            if (relayFromHolders(fileName, false, out -> {
+                out.writeUTF("READFROMSERVER");
+                out.writeUTF(fileName);
+            }, dataOutputStream)) {
+                return;
+            }
+            throw e;
+        }
+        contentCache.put(fileName, content, generation);
+        FileTransfer.sendBuffer(ByteBuffer.wrap(content), dataOutputStream);
+    }
+
+    // Replaces a local copy that failed its checksums with one from another holder, accepting
+    // only a copy whose checksums match the ones recorded when the file was written
+    private static void repairCorruptCopy(String fileName) {
+        if (!corruptCopyRepairs.add(fileName)) {
+            return;
+        }
+        replicationExecutor.execute(() -> {
+            try {
+                File localFile = new File("Files/" + serverId, fileName);
+                int[] expected = blockChecksums.expected(fileName, localFile);
+                for (String holder : holdersOf(fileName)) {
+                    if (fetchVerifiedCopy(holder, fileName, localFile, expected)) {
+                        blockChecksums.repaired();
+                        logger.info("Repaired corrupt copy of " + fileName + " from " + holder);
+                        return;
+                    }
+                }
+                logger.error("No healthy copy of " + fileName + " found, the local copy stays corrupt");
+            } finally {
+                corruptCopyRepairs.remove(fileName);
+            }
+        });
+    }
+
+    private static boolean fetchVerifiedCopy(String holderId, String fileName, File localFile, int[] expected) {
+        ServerInfo serverInfo = getServerDetailsFromConsul(holderId);
+        if (serverInfo == null || serverInfo.isServerInactive()) {
+            return false;
+        }
+        File repaired = new File(localFile.getParentFile(), localFile.getName() + ".repair");
+        ConnectionPool.StreamConnection connection = null;
+        try {
+            connection = connectionPool.borrowStream(holderId, serverInfo.getAddress(), serverInfo.getPort());
+            connection.out.writeUTF("READFROMSERVER");
+            connection.out.writeUTF(fileName);
+            connection.out.flush();
+            long fileLength = connection.in.readLong();
+            if (fileLength < 0) {
+                connectionPool.releaseStream(holderId, connection);
+                return false;
+            }
+            BlockChecksums.Accumulator sums = new BlockChecksums.Accumulator();
+            FileTransfer.receiveToFile(connection.in, fileLength, repaired.toPath(), sums);
+            connectionPool.releaseStream(holderId, connection);
+            connection = null;
+            int[] blocks = sums.finish();
+            if (expected != null && !Arrays.equals(expected, blocks)) {
+                logger.error(holderId + "'s copy of " + fileName + " does not match the recorded checksums either");
+                return false;
+            }
+            Files.move(repaired.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            localCopyChanged(fileName);
+            recordChecksums(fileName, localFile, blocks);
+            settleLocalCopy(fileName, localFile);
+            return true;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            logger.error("Fetching " + fileName + " from " + holderId + " for repair failed: " + e.getMessage());
+            return false;
+        } finally {
+            repaired.delete();
+        }
+    }
+
+    // READ_RANGE(fileName, offset, length): a long byte count, then the bytes. The count is
+    // clipped to the end of the file and is -1 if no server has the file or the range is invalid.
+    // Files this server doesn't hold are relayed from a holder without being staged on disk.
+    private static void handleReadRangeRequest(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        String fileName = dataInputStream.readUTF();
+        long offset = dataInputStream.readLong();
+        long length = dataInputStream.readLong();
+        if (offset < 0 || length < 0) {
+            dataOutputStream.writeLong(-1);
+            return;
+        }
+
+        byte[] segmentContent = segmentCopy(fileName);
+        if (segmentContent != null) {
+            int start = (int) Math.min(offset, segmentContent.length);
+            int count = (int) Math.min(length, segmentContent.length - start);
+            FileTransfer.sendBuffer(ByteBuffer.wrap(segmentContent, start, count), dataOutputStream);
+            return;
+        }
+        File localFile = new File("Files/" + serverId, fileName);
+        if (localFile.exists()) {
+            sendFileRange(fileName, localFile, offset, length, dataOutputStream);
+            return;
+        }
+        if (relayFromHolders(fileName, false, out -> {
+            out.writeUTF("READ_RANGE");
+            out.writeUTF(fileName);
+            out.writeLong(offset);
+            out.writeLong(length);
+        }, dataOutputStream)) {
+            return;
+        }
+        dataOutputStream.writeLong(-1);
+    }
+
+    private static void sendFileRange(String fileName, File file, long offset, long length, DataOutputStream dataOutputStream) throws IOException {
+        ByteBuffer cached = contentCache.get(fileName);
+        if (cached != null) {
+            int start = (int) Math.min(offset, cached.remaining());
+            int count = (int) Math.min(length, cached.remaining() - start);
+            cached.position(start).limit(start + count);
+            FileTransfer.sendBuffer(cached, dataOutputStream);
+            return;
+        }
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            long count = Math.max(0, Math.min(length, size - offset));
+            dataOutputStream.writeLong(count);
+            FileTransfer.transferTo(fileChannel, offset, count, dataOutputStream);
+        }
+    }
+
+    // Sends one request to the holders of fileName and relays the first answer, an optional
+    // UTF header, a long count and that many bytes, without staging it on disk. Returns false,
+    // having written nothing, if no holder is reachable or has the file.
+    private static boolean relayFromHolders(String fileName, boolean withHeader,
+                                            FramedConnection.PayloadWriter request, DataOutputStream dataOutputStream) throws IOException {
+        HolderResponse response = requestFromHolders(fileName, withHeader, request);
+        if (response == null) {
+            return false;
+        }
+        try {
+            if (withHeader) {
+                dataOutputStream.writeUTF(response.header);
+            }
+            dataOutputStream.writeLong(response.count);
+            if (response.count > 0) {
+                FileTransfer.copy(response.connection.in, response.count, dataOutputStream);
+            }
+            connectionPool.releaseStream(response.holderId, response.connection);
+            return true;
+        } catch (IOException e) {
+            response.connection.close(); // the client already has the header, so this can't fall back
+            throw e;
+        }
+    }
+
+    /**
+     * A holder's answer to a read, with its connection positioned at the body. Whoever gets
+     * one must read the body and release the connection, or close it.
+     */
+    private static final class HolderResponse {
+        final String holderId;
+        final ConnectionPool.StreamConnection connection;
+        final String header;
+        final long count;
+
+        HolderResponse(String holderId, ConnectionPool.StreamConnection connection, String header, long count) {
+            this.holderId = holderId;
+            this.connection = connection;
+            this.header = header;
+            this.count = count;
+        }
+    }
+
+    /**
+     * One request to one holder, up to the end of its header. Cancelling it closes the
+     * connection, which also unblocks a read in progress.
+     */
+    private static final class ReadAttempt implements Callable<HolderResponse> {
+        final String holderId;
+        final String fileName;
+        final boolean withHeader;
+        final FramedConnection.PayloadWriter request;
+        private ConnectionPool.StreamConnection connection;
+        private boolean cancelled;
+
+        ReadAttempt(String holderId, String fileName, boolean withHeader, FramedConnection.PayloadWriter request) {
+            this.holderId = holderId;
+            this.fileName = fileName;
+            this.withHeader = withHeader;
+            this.request = request;
+        }
+
+        @Override
+        public HolderResponse call() {
+            ServerInfo serverInfo = getServerDetailsFromConsul(holderId);
+            if (serverInfo == null || serverInfo.isServerInactive()) {
+                return null;
+            }
+            long start = replicaSelector.start(holderId);
+            ConnectionPool.StreamConnection borrowed = null;
+            try {
+                borrowed = connectionPool.borrowStream(holderId, serverInfo.getAddress(), serverInfo.getPort());
+                synchronized (this) {
+                    if (cancelled) {
+                        throw new IOException("cancelled");
+                    }
+                    connection = borrowed;
+                }
+                request.write(borrowed.out);
+                borrowed.out.flush();
+                String header = withHeader ? borrowed.in.readUTF() : null;
+                long count = borrowed.in.readLong();
+                replicaSelector.finish(holderId, start, true);
+                if (count == -1) {
+                    connectionPool.releaseStream(holderId, borrowed);
+                    return null;
+                }
+                return new HolderResponse(holderId, borrowed, header, count);
+            } catch (IOException e) {
+                if (borrowed != null) {
+                    borrowed.close();
+                }
+                synchronized (this) {
+                    if (cancelled) {
+                        replicaSelector.abandon(holderId);
+                        return null;
+                    }
+                }
+                logger.error("Read of " + fileName + " from " + holderId + " failed: " + e.getMessage());
+                replicaSelector.finish(holderId, start, false);
+                return null;
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (connection != null) {
+                connection.close(); // a loser that already answered has an unread body, so it can't be pooled
+            }
+        }
+    }
+
+    // Asks the holders in ReplicaSelector order, one at a time, until one has the file. If the
+    // current one hasn't answered within the hedge delay, one more holder is asked in parallel
+    // and the slower of the two is cancelled.
+    private static HolderResponse requestFromHolders(String fileName, boolean withHeader, FramedConnection.PayloadWriter request) throws IOException {
+        List<String> holders = replicaSelector.order(holdersOf(fileName));
+        CompletionService<HolderResponse> responses = new ExecutorCompletionService<>(hedgeExecutor);
+        Map<Future<HolderResponse>, ReadAttempt> attempts = new HashMap<>();
+        ReadAttempt hedge = null;
+        int next = 0;
+        try {
+            while (true) {
+                if (attempts.isEmpty()) {
+                    if (next == holders.size()) {
+                        return null;
+                    }
+                    ReadAttempt attempt = new ReadAttempt(holders.get(next++), fileName, withHeader, request);
+                    attempts.put(responses.submit(attempt), attempt);
+                }
+                boolean canHedge = hedgedReads && hedge == null && next < holders.size();
+                Future<HolderResponse> done = canHedge
+                        ? responses.poll(replicaSelector.hedgeDelayNanos(), TimeUnit.NANOSECONDS)
+                        : responses.take();
+                if (done == null) {
+                    hedge = new ReadAttempt(holders.get(next++), fileName, withHeader, request);
+                    attempts.put(responses.submit(hedge), hedge);
+                    continue;
+                }
+                ReadAttempt attempt = attempts.remove(done);
+                HolderResponse response = done.get();
+                if (response != null) {
+                    if (hedge != null) {
+                        replicaSelector.hedged(attempt == hedge);
+                    }
+                    return response;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading " + fileName);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause()); // ReadAttempt reports failures as null
+        } finally {
+            attempts.values().forEach(ReadAttempt::cancel);
+        }
+    }
+
+    // READ_CONDITIONAL(fileName, knownETag): the file's ETag, then a long count and the bytes.
+    // The count is NOT_MODIFIED, with no bytes, when the caller's copy is current, and -1 (with
+    // an empty tag) when no server has the file.
+    private static void handleConditionalRead(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        String fileName = dataInputStream.readUTF();
+        String knownETag = dataInputStream.readUTF();
+
+        byte[] segmentContent = segmentCopy(fileName);
+        if (segmentContent != null) {
+            String eTag = FileETags.of(segmentContent);
+            dataOutputStream.writeUTF(eTag);
+            if (eTag.equals(knownETag)) {
+                dataOutputStream.writeLong(NOT_MODIFIED);
+            } else {
+                FileTransfer.sendBuffer(ByteBuffer.wrap(segmentContent), dataOutputStream);
+            }
+            return;
+        }
+        File localFile = new File("Files/" + serverId, fileName);
+        if (localFile.exists()) {
+            String eTag = fileETags.get(fileName, localFile);
+            dataOutputStream.writeUTF(eTag);
+            if (eTag.equals(knownETag)) {
+                dataOutputStream.writeLong(NOT_MODIFIED);
+            } else {
+                sendFileContent(fileName, localFile, dataOutputStream);
+            }
+            return;
+        }
+        if (relayFromHolders(fileName, true, out -> {
+            out.writeUTF("READ_CONDITIONAL");
+            out.writeUTF(fileName);
+            out.writeUTF(knownETag);
+        }, dataOutputStream)) {
+            return;
+        }
+        dataOutputStream.writeUTF("");
+        dataOutputStream.writeLong(-1);
+    }
+
+    // The active holders of a file, primary first, so clients can send its requests to a server
+    // that has it instead of one that would proxy them: int count, then UTF id, UTF address, int port each
+    private static void handleLocateRequest(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        String fileName = dataInputStream.readUTF();
+        FileMetadata metadata = getCachedFileMetadata(fileName);
+        List<BlockLayout.Location> locations = new ArrayList<>();
+        if (metadata != null) {
+            for (String holder : metadata.holders()) {
+                ServerInfo info = getServerDetailsFromConsul(holder);
+                if (info != null && !info.isServerInactive()) {
+                    locations.add(new BlockLayout.Location(holder, info.getAddress(), info.getPort()));
+                }
+            }
+        }
+        dataOutputStream.writeInt(locations.size());
+        for (BlockLayout.Location location : locations) {
+            dataOutputStream.writeUTF(location.serverId);
+            dataOutputStream.writeUTF(location.address);
+            dataOutputStream.writeInt(location.port);
+        }
+    }
+
+    // BLOCKS(fileName): an int length and the file's BlockLayout as JSON (length 0 if unknown),
+    // with the address of every server named in it so the client can read blocks directly
+    private static void handleBlocksRequest(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        String fileName = dataInputStream.readUTF();
+        FileMetadata metadata = getCachedFileMetadata(fileName);
+        if (metadata == null) {
+            dataOutputStream.writeInt(0);
+            return;
+        }
+        List<BlockLayout.Block> blocks = metadata.blocks;
+        if (blocks == null) {
+            // Written before block layouts existed
+            blocks = BlockLayout.plan(metadata.fileSize, blockSize, metadata.holders());
+        }
+        BlockLayout layout = new BlockLayout(fileName, metadata.fileSize,
+                metadata.blockSize > 0 ? metadata.blockSize : blockSize, blocks);
+        for (String holder : metadata.holders()) {
+            ServerInfo info = getServerDetailsFromConsul(holder);
+            if (info != null && !info.isServerInactive()) {
+                layout.servers.put(holder, new BlockLayout.Location(holder, info.getAddress(), info.getPort()));
+            }
+        }
+        byte[] json = layout.toJson().getBytes(StandardCharsets.UTF_8);
+        dataOutputStream.writeInt(json.length);
+        dataOutputStream.write(json);
+    }
+
+    // Primary first, then the replicas, leaving out this server
+    private static List<String> holdersOf(String fileName) {
+        FileMetadata metadata = getCachedFileMetadata(fileName);
+        if (metadata == null) {
+            return new ArrayList<>();
+        }
+        List<String> holders = metadata.holders();
+        holders.remove(serverId);
+        return holders;
+    }
+
     private static void handleFileReplicate(DataInputStream dataInputStream, String saveDirectory) throws IOException{
         String fileName = dataInputStream.readUTF();
+        long fileSize = dataInputStream.readLong();
         File directory = new File(saveDirectory);
         if (!directory.exists()) {
             directory.mkdir();
         }
         File file = new File(directory, fileName);
 
+        receiveOrDiscard(dataInputStream, fileName, fileSize, file);
+        settleLocalCopy(fileName, file);
+//        FileMetadata metadata = new FileMetadata(fileName, file.length(), new Date());
+//        updateFileMetadataInConsul(fileName, metadata);
+    }
+
 
-        try (BufferedOutputStream fileOutputStream = new BufferedOutputStream(new FileOutputStream(file))) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = dataInputStream.read(buffer)) != -1) {
-                fileOutputStream.write(buffer, 0, bytesRead);
+    // writeLease is the session's lease in WRITE mode, null otherwise
+    private static void handleReadRequest(DataInputStream dataInputStream, DataOutputStream dataOutputStream, String fileName,String mode, LeaseManager.Lease writeLease) throws IOException {
+        File localFile = new File("Files/" + serverId, fileName);
+        dataOutputStream.writeUTF(mode+" Running");
+        FileMetadata metadata = getCachedFileMetadata(fileName);
+
+
+        boolean isPrimaryOrReplica = metadata != null &&
+                (metadata.serverId.equals(serverId) || metadata.replicatedNodes.contains(serverId));
+
+        if (segments != null && segments.contains(fileName)) {
+            if (isPrimaryOrReplica) {
+                serveSegmentCopy(fileName, dataOutputStream, dataInputStream, mode, writeLease);
+                return;
             }
+            segments.delete(fileName); // a stray copy, dropped like a plain one below
+            localCopyChanged(fileName);
         }
-//        FileMetadata metadata = new FileMetadata(fileName, file.length(), new Date());
-//        updateFileMetadataInConsul(fileName, metadata);
+
+        // A plain copy on a server that is not a holder is stray: dropped before it is served,
+        // the read then goes on as for a server without a copy
+        if (localFile.exists() && !isPrimaryOrReplica) {
+            boolean deleted = localFile.delete();
+            localCopyChanged(fileName);
+            if (deleted) {
+                logger.info("Deleted inconsistent file copy: " + fileName);
+            } else {
+                logger.error("Failed to delete inconsistent file copy: " + fileName);
+            }
+        }
+
+        if (localFile.exists()) {
+            sendReadToServer(fileName, localFile, dataOutputStream, dataInputStream, mode, writeLease);
+        } else if (metadata != null && !metadata.serverId.equals(serverId)) {
+            // Serve it from the proxy cache, fetching it from a holder if needed
+            serveThroughProxyCache(fileName, metadata, dataOutputStream, dataInputStream, mode, writeLease);
+        } else {
+            fileNotFound(dataOutputStream, mode, fileName);
+        }
+    }
+
+    private static void startCleanupTask() {
+        logger.info("starting cleanup task");
+        ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+        executorService.scheduleAtFixedRate(FileServer::repairLaggingReplicas, 1, 1, TimeUnit.MINUTES);
+
+        // A pass can take hours at the scrub rate, so it gets its own thread
+        ChecksumScrubber scrubber = new ChecksumScrubber(blockChecksums, new File("Files/" + serverId),
+                scrubBytesPerSecond, scrubRescanMillis, TimeUnit.MINUTES.toMillis(1), FileServer::repairCorruptCopy);
+        Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(scrubber, 5, 10, TimeUnit.MINUTES);
+        if (segments != null) {
+            // Compaction copies whole segments, which must not hold up replica repairs
+            Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(() -> {
+                try {
+                    segments.compact(segmentCompactRatio);
+                } catch (IOException e) {
+                    logger.error("Segment compaction failed: " + e.getMessage());
+                }
+            }, 10, 10, TimeUnit.MINUTES);
+        }
+    }
+
+    // UPDATE_REPLICA(fileName, long length, bytes) on a dedicated connection, like REPLICATE.
+    // The new content is received next to the local copy and renamed over it once complete,
+    // so readers never see a partial file and a short transfer leaves the old copy in place.
+    private static void handleUpdateReplica(DataInputStream dataInputStream) throws IOException {
+        String fileName = dataInputStream.readUTF();
+        long contentLength = dataInputStream.readLong();
+        File localFile = new File("Files/" + serverId, fileName);
+        File updated = new File(localFile.getParentFile(), localFile.getName() + ".update");
+        try {
+            BlockChecksums.Accumulator sums = new BlockChecksums.Accumulator();
+            FileTransfer.receiveToFile(dataInputStream, contentLength, updated.toPath(), sums);
+            durable(GroupCommit.file(updated.toPath())); // before the rename, or a crash could leave it empty
+            Files.move(updated.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            durable(GroupCommit.file(localFile.toPath()));
+            localCopyChanged(fileName);
+            recordChecksums(fileName, localFile, sums.finish());
+        } finally {
+            updated.delete();
+        }
+        settleLocalCopy(fileName, localFile);
+
+        // Optionally, log or print a message confirming the update
+        logger.info("Replica updated: " + fileName);
+        System.out.println("Replica updated: " + fileName);
+    }
+
+    // Non-holders serve reads from a copy in the proxy cache. Concurrent readers share one
+    // fetch, and the copy is kept for later reads until the file's metadata version changes.
+    private static void serveThroughProxyCache(String fileName, FileMetadata metadata, DataOutputStream dataOutputStream, DataInputStream dataInputStream, String mode, LeaseManager.Lease writeLease) throws IOException {
+        ProxyFileCache.Entry copy;
+        try {
+            copy = proxyCache.acquire(fileName, metadata.version, target -> fetchFromHolders(fileName, target));
+        } catch (IOException e) {
+            logger.error("No holder could provide " + fileName + ": " + e.getMessage());
+            fileNotFound(dataOutputStream, mode, fileName);
+            return;
+        }
+        try {
+            sendReadToServer(fileName, copy.file, dataOutputStream, dataInputStream, mode, writeLease);
+        } finally {
+            proxyCache.release(copy);
+        }
+    }
+
+    private static void sendReadToServer(String fileName, File localFile, DataOutputStream dataOutputStream, DataInputStream dataInputStream, String mode, LeaseManager.Lease writeLease) throws IOException{
+        if (localFile.exists() ) {
+            if(mode.equals("OPEN")) {
+                serveOpenSession(fileName, localFile, dataOutputStream, dataInputStream);
+            } else if (mode.equals("READ")) {
+                sendFileContent(fileName, localFile, dataOutputStream);
+            } else if (mode.equals("WRITE")) {
+                sendFileContent(fileName, localFile, dataOutputStream);
+                String command_new = dataInputStream.readUTF();
+                if ("EDITED_CONTENT".equals(command_new)) {
+                    dataOutputStream.writeUTF(updateFileContent(dataInputStream, fileName, writeLease));
+                } else if ("EDITED_DELTA".equals(command_new)) {
+                    dataOutputStream.writeUTF(updateFileFromDelta(dataInputStream, fileName, localFile, writeLease));
+                }
+            }
+        } else {
+            fileNotFound(dataOutputStream, mode, fileName);
+        }
+
+    }
+
+    // After the mode line, READ and WRITE clients read a long length (-1 for no file) and OPEN
+    // clients a status line, which is "FILE OPENED" when there is one
+    private static void fileNotFound(DataOutputStream dataOutputStream, String mode, String fileName) throws IOException {
+        if (mode.equals("OPEN")) {
+            dataOutputStream.writeUTF("File not found: " + fileName);
+        } else {
+            dataOutputStream.writeLong(-1);
+        }
+    }
+
+    // sendReadToServer for a local copy in the segment store. Such copies are small, so OPEN
+    // sessions read the whole record again for each SEEK instead of mapping it.
+    private static void serveSegmentCopy(String fileName, DataOutputStream dataOutputStream, DataInputStream dataInputStream, String mode, LeaseManager.Lease writeLease) throws IOException {
+        byte[] content = segmentCopy(fileName);
+        if (content == null) {
+            fileNotFound(dataOutputStream, mode, fileName); // deleted since the caller looked
+        } else if (mode.equals("OPEN")) {
+            dataOutputStream.writeUTF("FILE OPENED");
+            dataOutputStream.writeLong(content.length);
+            dataOutputStream.flush();
+            while (true) {
+                String command = dataInputStream.readUTF();
+                if (command.equals("CLOSE")) {
+                    break;
+                } else if (!command.equals("SEEK")) {
+                    throw new IOException("Unknown command in OPEN session: " + command);
+                }
+                long offset = dataInputStream.readLong();
+                int length = dataInputStream.readInt();
+                content = segmentCopy(fileName);
+                if (content == null || offset < 0 || length < 0 || offset > content.length) {
+                    dataOutputStream.writeLong(-1);
+                    dataOutputStream.flush();
+                    continue;
+                }
+                int count = (int) Math.min(Math.min(length, MAX_SEEK_BYTES), content.length - offset);
+                FileTransfer.sendBuffer(ByteBuffer.wrap(content, (int) offset, count), dataOutputStream);
+            }
+        } else if (mode.equals("READ")) {
+            FileTransfer.sendBuffer(ByteBuffer.wrap(content), dataOutputStream);
+        } else if (mode.equals("WRITE")) {
+            FileTransfer.sendBuffer(ByteBuffer.wrap(content), dataOutputStream);
+            String command = dataInputStream.readUTF();
+            if ("EDITED_CONTENT".equals(command)) {
+                dataOutputStream.writeUTF(updateFileContent(dataInputStream, fileName, writeLease));
+            } else if ("EDITED_DELTA".equals(command)) {
+                dataOutputStream.writeUTF(updateFileFromDelta(dataInputStream, fileName, null, writeLease));
+            }
+        }
+    }
+
+    // SEEK(offset, length) is answered from a mapping shared with every other session on the
+    // file: a long byte count (at most MAX_SEEK_BYTES, -1 past the end) and then the raw bytes
+    private static void serveOpenSession(String fileName, File localFile, DataOutputStream dataOutputStream, DataInputStream dataInputStream) throws IOException {
+        MappedFileRegistry.Mapping mapping = mappedFiles.acquire(fileName, localFile);
+        try {
+            dataOutputStream.writeUTF("FILE OPENED");
+            dataOutputStream.writeLong(mapping.size);
+            dataOutputStream.flush();
+            while (true) {
+                String command = dataInputStream.readUTF();
+                if (command.equals("CLOSE")) {
+                    break;
+                } else if (command.equals("SEEK")) {
+                    long offset = dataInputStream.readLong();
+                    int length = dataInputStream.readInt();
+                    if (mapping.isStale()) {
+                        // The file was rewritten since the last read, map the new contents
+                        mappedFiles.release(mapping);
+                        mapping = null;
+                        mapping = mappedFiles.acquire(fileName, localFile);
+                    }
+                    if (offset < 0 || length < 0 || offset > mapping.size) {
+                        dataOutputStream.writeLong(-1);
+                        dataOutputStream.flush();
+                        continue;
+                    }
+                    int count = (int) Math.min(Math.min(length, MAX_SEEK_BYTES), mapping.size - offset);
+                    FileTransfer.sendBuffer(mapping.slice(offset, count), dataOutputStream);
+                } else {
+                    throw new IOException("Unknown command in OPEN session: " + command);
+                }
+            }
+        } finally {
+            if (mapping != null) {
+                mappedFiles.release(mapping);
+            }
+        }
+    }
+
+    private static String updateFileContent(DataInputStream dataInputStream, String fileName, LeaseManager.Lease writeLease) throws IOException {
+        int contentLength = dataInputStream.readInt();
+        byte[] contentBytes = new byte[contentLength];
+        dataInputStream.readFully(contentBytes);
+        if (!renewLease(fileName, writeLease)) {
+            return LEASE_LOST;
+        }
+
+        // Fetch metadata to determine the primary server
+        FileMetadata metadata = getFileMetadataFromConsul(fileName);
+        if (metadata == null) {
+            logger.error("File metadata not found for: " + fileName);
+            return "File metadata not found for: " + fileName;
+        }
+
+        // Update the local file if this server holds a copy, otherwise the primary gets it with the replicas
+        int localCopies = 0;
+        if (metadata.serverId.equals(serverId)  || metadata.replicatedNodes.contains(serverId) ) {
+            writeLocalCopy(fileName, contentBytes);
+            localCopies = 1;
+        }
+        return replicateUpdate(fileName, metadata, localCopies, contentBytes.length,
+                nodeId -> sendUpdatedFileToReplica(nodeId, fileName, contentBytes));
     }
 
+    // EDITED_DELTA: the ETag of the copy the client edited, the ETag of the result, and an
+    // rsync-style delta against that copy. The delta is applied to the local copy (a holder's,
+    // or the one staged for this WRITE) and forwarded as is to the other holders, so a small
+    // edit to a large file moves kilobytes. A holder whose copy differs gets the full content.
+    private static String updateFileFromDelta(DataInputStream dataInputStream, String fileName, File basis, LeaseManager.Lease writeLease) throws IOException {
+        String basisETag = dataInputStream.readUTF();
+        String targetETag = dataInputStream.readUTF();
+        byte[] delta = new byte[dataInputStream.readInt()];
+        dataInputStream.readFully(delta);
+        if (!renewLease(fileName, writeLease)) {
+            return LEASE_LOST;
+        }
 
-    private static void handleReadRequest(DataInputStream dataInputStream, DataOutputStream dataOutputStream, String fileName,String mode) throws IOException {
-        File localFile = new File("Files/" + serverId, fileName);
-        dataOutputStream.writeUTF(mode+" Running");
         FileMetadata metadata = getFileMetadataFromConsul(fileName);
-
-
-        boolean isPrimaryOrReplica = metadata != null &&
-                (metadata.serverId.equals(serverId) || metadata.replicatedNodes.contains(serverId));
-
-        // Check if file exists locally
-        if (!localFile.exists()) {
-
-            if (metadata != null && !metadata.serverId.equals(serverId)) {
-                // Fetch file from the server where it's located
-                try {
-                    fetchFileFromServer(metadata.serverId, fileName, localFile,dataOutputStream,dataInputStream,mode);
-                } catch (Exception e) {
-                    System.out.println("Primary server is down. Selecting a new primary server.");
-                    selectNewPrimaryServerAndRead(fileName, dataOutputStream, dataInputStream, mode, metadata);
-                }
-            }
-        }else{
-            sendReadToServer(fileName,dataOutputStream,dataInputStream,mode);
+        if (metadata == null) {
+            logger.error("File metadata not found for: " + fileName);
+            return "File metadata not found for: " + fileName;
         }
 
-        if (localFile.exists() && !isPrimaryOrReplica) {
-            boolean deleted = localFile.delete();
-            if (deleted) {
-                logger.info("Deleted inconsistent file copy: " + fileName);
+        boolean holder = metadata.serverId.equals(serverId) || metadata.replicatedNodes.contains(serverId);
+        File localFile = new File("Files/" + serverId, fileName);
+        byte[] rebuiltContent;
+        try {
+            if (holder) {
+                applyDeltaToLocalCopy(fileName, localFile, basisETag, targetETag, delta);
+                rebuiltContent = null; // read from the local copy only if a replica needs all of it
             } else {
-                logger.error("Failed to delete inconsistent file copy: " + fileName);
+                // The basis is the proxy cache's copy, which must stay what was fetched
+                rebuiltContent = rebuildFromDelta(fileName, basis, basisETag, targetETag, delta);
             }
-            dataOutputStream.writeUTF("File not found");
-            return;
+        } catch (IOException e) {
+            logger.error("Delta write of " + fileName + " failed: " + e.getMessage());
+            return "Delta could not be applied (" + e.getMessage() + "), resend the full content.";
         }
-
+        long newSize = holder ? (segments != null && segments.contains(fileName) ? segments.size(fileName) : localFile.length())
+                : rebuiltContent.length;
+        return replicateUpdate(fileName, metadata, holder ? 1 : 0, newSize, nodeId ->
+                sendDeltaToReplica(nodeId, fileName, basisETag, targetETag, delta)
+                        || (holder ? sendLocalCopyToReplica(nodeId, fileName) : sendUpdatedFileToReplica(nodeId, fileName, rebuiltContent)));
     }
 
-    private static void startCleanupTask() {
-        logger.info("starting cleanup task");
-        ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
-        executorService.scheduleAtFixedRate(FileServer::cleanupTemporaryFiles, 1, 1, TimeUnit.HOURS);
+    private static byte[] rebuildFromDelta(String fileName, File basis, String basisETag, String targetETag, byte[] delta) throws IOException {
+        if (!FileETags.digest(basis).equals(basisETag)) {
+            throw new IOException("cached copy of " + fileName + " is not the delta's basis");
+        }
+        File rebuilt = new File(basis.getParentFile(), basis.getName() + ".delta");
+        try {
+            DeltaSync.apply(basis.toPath(), delta, rebuilt.toPath());
+            byte[] content = Files.readAllBytes(rebuilt.toPath());
+            if (!FileETags.of(content).equals(targetETag)) {
+                throw new IOException("rebuilt " + fileName + " does not match the expected content");
+            }
+            return content;
+        } finally {
+            rebuilt.delete();
+        }
     }
 
-    private static void cleanupTemporaryFiles() {
-        long oneHourAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
-        temporaryFiles.entrySet().removeIf(entry -> {
-            if (entry.getValue() < oneHourAgo) {
-                new File("Files/" + serverId, entry.getKey()).delete();
-                return true;
+    // Rebuilds the file next to the local copy, checks it against targetETag, then swaps it in
+    private static void applyDeltaToLocalCopy(String fileName, File localFile, String basisETag, String targetETag, byte[] delta) throws IOException {
+        byte[] segmentContent = segmentCopy(fileName);
+        if (segmentContent != null) {
+            if (!FileETags.of(segmentContent).equals(basisETag)) {
+                throw new IOException("local copy of " + fileName + " is not the delta's basis");
+            }
+            byte[] rebuilt = DeltaSync.apply(segmentContent, delta);
+            if (!FileETags.of(rebuilt).equals(targetETag)) {
+                throw new IOException("rebuilt " + fileName + " does not match the expected content");
+            }
+            writeLocalCopy(fileName, rebuilt);
+            return;
+        }
+        if (!localFile.exists() || !fileETags.get(fileName, localFile).equals(basisETag)) {
+            throw new IOException("local copy of " + fileName + " is not the delta's basis");
+        }
+        File rebuilt = new File(localFile.getParentFile(), localFile.getName() + ".delta");
+        int[] blocks;
+        try {
+            DeltaSync.apply(localFile.toPath(), delta, rebuilt.toPath());
+            if (!FileETags.digest(rebuilt).equals(targetETag)) {
+                throw new IOException("rebuilt " + fileName + " does not match the expected content");
             }
+            blocks = BlockChecksums.compute(rebuilt);
+            durable(GroupCommit.file(rebuilt.toPath())); // before the rename, or a crash could leave it empty
+            Files.move(rebuilt.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            durable(GroupCommit.file(localFile.toPath()));
+        } finally {
+            rebuilt.delete();
+            localCopyChanged(fileName);
+        }
+        recordChecksums(fileName, localFile, blocks);
+        settleLocalCopy(fileName, localFile);
+    }
+
+    private static boolean sendDeltaToReplica(String nodeId, String fileName, String basisETag, String targetETag, byte[] delta) {
+        try {
+            connectionTo(nodeId).call(Opcode.DELTA_REPLICA, out -> {
+                out.writeUTF(fileName);
+                out.writeUTF(basisETag);
+                out.writeUTF(targetETag);
+                out.writeInt(delta.length);
+                out.write(delta);
+            });
+            return true;
+        } catch (IOException e) {
+            logger.info("Delta update of " + fileName + " on " + nodeId + " failed, sending full content: " + e.getMessage());
             return false;
-        });
+        }
     }
 
-    private static void handleUpdateReplica(DataInputStream dataInputStream) throws IOException {
+    private static void handleDeltaReplica(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
         String fileName = dataInputStream.readUTF();
-        int contentLength = dataInputStream.readInt();
-        byte[] contentBytes = new byte[contentLength];
-        dataInputStream.readFully(contentBytes);
-
-        File file = new File("Files/" + serverId, fileName);
-        Files.write(file.toPath(), contentBytes);
-
-        // Optionally, log or print a message confirming the update
-        logger.info("Replica updated: " + fileName);
-        System.out.println("Replica updated: " + fileName);
+        String basisETag = dataInputStream.readUTF();
+        String targetETag = dataInputStream.readUTF();
+        byte[] delta = new byte[dataInputStream.readInt()];
+        dataInputStream.readFully(delta);
+        applyDeltaToLocalCopy(fileName, new File("Files/" + serverId, fileName), basisETag, targetETag, delta);
+        logger.info("Replica updated from delta: " + fileName);
+        dataOutputStream.writeUTF("Replica updated successfully.");
     }
 
-    private static void  selectNewPrimaryServerAndRead(String fileName, DataOutputStream dataOutputStream, DataInputStream dataInputStream, String mode,FileMetadata metadata) throws IOException {
-        ServerInfo newPrimaryServer = selectServerBasedOnFileCount(metadata);
+    // Pushes an update that is already applied locally (localCopies is 0 or 1) to the other
+    // holders and waits for the write quorum
+    private static String replicateUpdate(String fileName, FileMetadata metadata, int localCopies, long newSize, Predicate<String> sendToReplica) {
+        List<String> targets = new ArrayList<>();
+        if (!metadata.serverId.equals(serverId)) {
+            targets.add(metadata.serverId);
+        }
+        for (String replicatedNodeId : metadata.replicatedNodes) {
+            if (!replicatedNodeId.equals(serverId)) { // Don't send to self
+                targets.add(replicatedNodeId);
+            }
+        }
 
-        if (newPrimaryServer != null) {
-            // Update the primary server in metadata and save it in Consul
-            metadata.serverId = newPrimaryServer.serverId;
-            metadata.replicatedNodes.remove(metadata.serverId);
-            List<ServerInfo> replicationTargets = selectServersForReplicationFail(1,metadata);
-            File file = new File("Files/" + serverId, fileName);
-           // updateFileMetadataInConsul(fileName, metadata);
+        int required = Math.min(writeQuorum, localCopies + targets.size());
+        boolean quorumReached = sendUpdateToQuorum(fileName, targets, required - localCopies, sendToReplica);
 
-            // Fetch the file from the new primary server
-            fetchFileFromServer(newPrimaryServer.serverId, fileName, new File("Files/" + serverId, fileName), dataOutputStream, dataInputStream, mode);
-            replicateFileToNodes(file, fileName, metadata, replicationTargets);
+        // Record the new version (and block list, if the size changed) once the quorum has the
+        // new content; cached copies elsewhere go stale. The change is applied to the metadata
+        // as Consul has it then, so a replica added meanwhile is kept.
+        MetadataBatcher.Batch batch = new MetadataBatcher.Batch().update("files/" + fileName, currentJson -> {
+            if (currentJson == null) {
+                return null; // deleted meanwhile
+            }
+            FileMetadata current = FileMetadata.fromJson(currentJson);
+            current.version++;
+            if (current.fileSize != newSize) {
+                current.fileSize = newSize;
+                current.planBlocks(blockSize);
+            }
+            return current.toJson();
+        });
+        if (!metadataBatcher.commit(batch)) {
+            logger.error("New version of " + fileName + " not recorded, cached copies may serve the old one");
+        }
+        proxyCache.invalidate(fileName);
 
-        } else {
-            dataOutputStream.writeUTF("Failed to find a new primary server for the file.");
+        if (!quorumReached) {
+            logger.error("Write quorum of " + required + " not reached for: " + fileName);
+            return "File updated, but the write quorum of " + required + " was not reached.";
         }
+        logger.info("File updated successfully: " + fileName);
+        System.out.println("File updated successfully: " + fileName);
+        return "File updated successfully.";
     }
 
-    private static ServerInfo selectServerBasedOnFileCount(FileMetadata metadata) {
-        // Logic to select a server with the least file count
-        String selectedServerId = null;
-        int minFileCount = Integer.MAX_VALUE;
-        ServerInfo selectedNode = null;
+    // Sends the update to every target at once and waits only for the first `needed` acks.
+    // Replicas that fail, or that are still running when the quorum is reached and then fail,
+    // are recorded in pendingRepairs and caught up by repairLaggingReplicas.
+    private static boolean sendUpdateToQuorum(String fileName, List<String> targets, int needed, Predicate<String> sendToReplica) {
+        if (needed <= 0 && targets.isEmpty()) {
+            return true;
+        }
+        CountDownLatch acks = new CountDownLatch(Math.max(needed, 0));
+        AtomicInteger failures = new AtomicInteger();
+        int tolerableFailures = targets.size() - needed;
+        for (String nodeId : targets) {
+            replicationExecutor.execute(() -> {
+                boolean updated;
+                try {
+                    updated = sendToReplica.test(nodeId);
+                } catch (RuntimeException e) {
+                    logger.error("Update of " + fileName + " on " + nodeId + " failed: " + e.getMessage());
+                    updated = false;
+                }
+                if (updated) {
+                    Set<String> laggingNodes = pendingRepairs.get(fileName);
+                    if (laggingNodes != null) {
+                        laggingNodes.remove(nodeId); // this write superseded any earlier miss
+                    }
+                    acks.countDown();
+                    return;
+                }
+                pendingRepairs.computeIfAbsent(fileName, name -> ConcurrentHashMap.newKeySet()).add(nodeId);
+                if (failures.incrementAndGet() > tolerableFailures) {
+                    // The quorum can no longer be met, stop waiting for it
+                    while (acks.getCount() > 0) {
+                        acks.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            return acks.await(replicaWriteTimeout, TimeUnit.MILLISECONDS) && failures.get() <= tolerableFailures;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-        for (String serverId : metadata.replicatedNodes) {
-            ServerInfo info = getServerDetailsFromConsul(serverId);
-            if (info != null && !info.isServerInactive() && info.getFileCount() < minFileCount) {
-                minFileCount = info.getFileCount();
-                selectedNode = info;
-                selectedServerId = serverId;
+    private static void repairLaggingReplicas() {
+        for (String fileName : pendingRepairs.keySet()) {
+            Set<String> laggingNodes = pendingRepairs.get(fileName);
+            if (laggingNodes == null || !hasLocalCopy(fileName)) {
+                pendingRepairs.remove(fileName);
+                continue;
+            }
+            laggingNodes.removeIf(nodeId -> sendLocalCopyToReplica(nodeId, fileName));
+            if (laggingNodes.isEmpty()) {
+                pendingRepairs.remove(fileName, laggingNodes);
             }
         }
-
-        return selectedNode; // Returns the ID of the server with the lowest file count
     }
 
+    // APPEND(fileName, bytes): adds the bytes to the end of the file, answered with the offset
+    // they landed at (-1 if they were not appended) and a message. Appends are applied by the
+    // server that grants the file's leases, one at a time per file, without taking a lease:
+    // they are refused only while a WRITE session holds one. The holders get just the new
+    // range and the offset it belongs at; one whose copy has another length gets the whole file.
+    private static void handleAppendRequest(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        String fileName = dataInputStream.readUTF();
+        byte[] appended = new byte[appendLength(dataInputStream.readInt())];
+        dataInputStream.readFully(appended);
+
+        FileMetadata metadata = getCachedFileMetadata(fileName);
+        String appender = metadata != null ? firstActiveHolder(metadata) : null;
+        if (appender == null) {
+            dataOutputStream.writeLong(-1);
+            dataOutputStream.writeUTF(metadata == null ? "File not found: " + fileName : "No active holder of " + fileName);
+            return;
+        }
+        if (!appender.equals(serverId)) {
+            DataInputStream in = connectionTo(appender).call(Opcode.APPEND, out -> {
+                out.writeUTF(fileName);
+                out.writeInt(appended.length);
+                out.write(appended);
+            });
+            dataOutputStream.writeLong(in.readLong());
+            dataOutputStream.writeUTF(in.readUTF());
+            return;
+        }
+
+        synchronized (appendLocks.computeIfAbsent(fileName, name -> new Object())) {
+            LeaseManager.Lease lease = leases.current(fileName);
+            if (lease != null) {
+                dataOutputStream.writeLong(-1);
+                dataOutputStream.writeUTF("File is currently locked for writing, retry after " + new Date(lease.expiresAt));
+                return;
+            }
+            // The cache has the version the previous append recorded, written through by replicateUpdate
+            metadata = getCachedFileMetadata(fileName);
+            if (metadata == null || !hasLocalCopy(fileName)) {
+                dataOutputStream.writeLong(-1);
+                dataOutputStream.writeUTF("File not found: " + fileName);
+                return;
+            }
+            long offset = appendToLocalCopy(fileName, appended);
+            String result = replicateUpdate(fileName, metadata, 1, offset + appended.length, nodeId ->
+                    sendAppendToReplica(nodeId, fileName, offset, appended)
+                            || sendLocalCopyToReplica(nodeId, fileName));
+            dataOutputStream.writeLong(offset);
+            dataOutputStream.writeUTF(result);
+        }
+    }
 
+    // An append is forwarded and replicated in one frame, so it must fit in one along with
+    // the longest file name writeUTF allows, its offset and its length
+    private static int appendLength(int length) throws IOException {
+        if (length < 0 || length > MAX_APPEND_BYTES) {
+            throw new IOException("Append of " + length + " bytes is outside 0.." + MAX_APPEND_BYTES);
+        }
+        return length;
+    }
 
-    private static void sendReadToServer(String fileName,DataOutputStream dataOutputStream,DataInputStream dataInputStream, String mode) throws IOException{
-        File localFile = new File("Files/" + serverId, fileName);
-        if (localFile.exists() ) {
-            if(mode.equals("OPEN")) {
-                dataOutputStream.writeUTF("FILE OPENED");
-                while (true) {
-                    String command = dataInputStream.readUTF();
-                    if (command.equals("CLOSE")) {
-                        break;
-                    } else if (command.equals("SEEK")) {
-                        int seekPos = dataInputStream.readInt();
-                        try (RandomAccessFile randomAccessFile = new RandomAccessFile(localFile, "r")) {
-                            if (seekPos > randomAccessFile.length()) {
-                                dataOutputStream.writeUTF("Seek position is beyond the file length.");
-                            } else {
-                                randomAccessFile.seek(seekPos);
-                                byte[] buffer = new byte[1024]; // Read up to 1024 bytes
-                                int bytesRead = randomAccessFile.read(buffer);
-                                String content = new String(buffer, 0, bytesRead);
-                                dataOutputStream.writeUTF(content);
-                            }
-                        } catch (FileNotFoundException e) {
-                            logger.error("File not found: " + fileName);
-                            dataOutputStream.writeUTF("File not found: " + fileName);
-                        } catch (IOException e) {
-                            logger.error("IO Error: " + e.getMessage());
-                            dataOutputStream.writeUTF("IO Error: " + e.getMessage());
-                        }
+    // Adds appended to the end of the local copy and returns the offset it starts at. A plain
+    // file is opened in append mode and its checksums extended from its last block; a copy in
+    // the segment store is rewritten, moving out of it if it grows past the size limit.
+    private static long appendToLocalCopy(String fileName, byte[] appended) throws IOException {
+        byte[] segmentContent = segmentCopy(fileName);
+        if (segmentContent != null) {
+            byte[] content = Arrays.copyOf(segmentContent, segmentContent.length + appended.length);
+            System.arraycopy(appended, 0, content, segmentContent.length, appended.length);
+            writeLocalCopy(fileName, content);
+            return segmentContent.length;
+        }
+        File file = new File("Files/" + serverId, fileName);
+        long offset = file.length();
+        int[] blocks = blockChecksums.expected(fileName, file);
+        byte[] lastBlock = new byte[blocks != null ? (int) (offset % BlockChecksums.BLOCK_SIZE) : 0];
+        if (lastBlock.length > 0) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.wrap(lastBlock);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset - lastBlock.length + buffer.position()) < 0) {
+                        throw new EOFException(fileName + " shrank while appending to it");
                     }
                 }
-            } else if (mode.equals("READ")) {
-                byte[] fileContent = Files.readAllBytes(localFile.toPath());
-                dataOutputStream.writeInt(fileContent.length);
-                dataOutputStream.write(fileContent);
-            } else if (mode.equals("WRITE")) {
-                byte[] fileContent = Files.readAllBytes(localFile.toPath());
-                dataOutputStream.writeInt(fileContent.length);
-                dataOutputStream.write(fileContent);
-                String command_new = dataInputStream.readUTF();
-                if ("EDITED_CONTENT".equals(command_new)) {
-                    updateFileContent(dataInputStream, fileName);
-                }
             }
-        } else {
-            dataOutputStream.writeInt(0); // Indicate file not found
+            if (BlockChecksums.crc(lastBlock, 0, lastBlock.length) != blocks[blocks.length - 1]) {
+                blocks = null; // the tail is already corrupt, leave it to the scrubber
+            }
         }
-
+        Files.write(file.toPath(), appended, StandardOpenOption.APPEND);
+        durable(GroupCommit.file(file.toPath()));
+        localCopyChanged(fileName);
+        if (blocks != null) {
+            recordChecksums(fileName, file, BlockChecksums.append(blocks, lastBlock, appended));
+        }
+        settleLocalCopy(fileName, file);
+        return offset;
     }
 
-    private static void updateFileContent(DataInputStream dataInputStream, String fileName) throws IOException {
-        int contentLength = dataInputStream.readInt();
-        byte[] contentBytes = new byte[contentLength];
-        dataInputStream.readFully(contentBytes);
-
-        // Fetch metadata to determine the primary server
-        FileMetadata metadata = getFileMetadataFromConsul(fileName);
-        if (metadata == null) {
-            logger.error("File metadata not found for: " + fileName);
-            return;
+    private static boolean sendAppendToReplica(String nodeId, String fileName, long offset, byte[] appended) {
+        try {
+            String reply = connectionTo(nodeId).call(Opcode.APPEND_REPLICA, out -> {
+                out.writeUTF(fileName);
+                out.writeLong(offset);
+                out.writeInt(appended.length);
+                out.write(appended);
+            }).readUTF();
+            if (!reply.equals("Replica updated successfully.")) {
+                logger.info("Append to " + fileName + " on " + nodeId + " refused, sending full content: " + reply);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            logger.info("Append to " + fileName + " on " + nodeId + " failed, sending full content: " + e.getMessage());
+            return false;
         }
+    }
 
-        // Update the local file if this server is the primary server
-        if (metadata.serverId.equals(serverId)  || metadata.replicatedNodes.contains(serverId) ) {
-            File localFile = new File("Files/" + serverId, fileName);
-            Files.write(localFile.toPath(), contentBytes);
-        } else {
-            // Send the updated content to the primary server
-            sendUpdatedFileToReplica(metadata.serverId, fileName, contentBytes);
+    // APPEND_REPLICA(fileName, offset, bytes) from the appending holder; applied only if the
+    // local copy ends exactly at offset, so a replica that missed an append never gets a gap
+    private static void handleAppendReplica(DataInputStream dataInputStream, DataOutputStream dataOutputStream) throws IOException {
+        String fileName = dataInputStream.readUTF();
+        long offset = dataInputStream.readLong();
+        byte[] appended = new byte[appendLength(dataInputStream.readInt())];
+        dataInputStream.readFully(appended);
+        synchronized (appendLocks.computeIfAbsent(fileName, name -> new Object())) {
+            long length = segments != null && segments.contains(fileName) ? segments.size(fileName)
+                    : new File("Files/" + serverId, fileName).exists() ? new File("Files/" + serverId, fileName).length() : -1;
+            if (length != offset) {
+                dataOutputStream.writeUTF("Local copy of " + fileName + " has " + length + " bytes, the append starts at " + offset);
+                return;
+            }
+            appendToLocalCopy(fileName, appended);
         }
+        dataOutputStream.writeUTF("Replica updated successfully.");
+    }
 
-        // Release the lease after updating the primary server
-        releaseLease(fileName);
+    private static boolean sendUpdatedFileToReplica(String nodeId, String fileName, byte[] fileContent) {
+        return sendUpdatedFileToReplica(nodeId, fileName, out -> FileTransfer.sendBuffer(ByteBuffer.wrap(fileContent), out));
+    }
 
-        // Update the replicas
-        for (String replicatedNodeId : metadata.replicatedNodes) {
-            if (!replicatedNodeId.equals(serverId)) { // Don't send to self
-                sendUpdatedFileToReplica(replicatedNodeId, fileName, contentBytes);
+    // Streams this holder's local copy, checked against its checksums on the way out
+    private static boolean sendLocalCopyToReplica(String nodeId, String fileName) {
+        return sendUpdatedFileToReplica(nodeId, fileName, out -> {
+            byte[] segmentContent = segmentCopy(fileName);
+            if (segmentContent != null) {
+                FileTransfer.sendBuffer(ByteBuffer.wrap(segmentContent), out);
+                return;
             }
-        }
-
-            logger.info("File updated successfully: " + fileName);
-            System.out.println("File updated successfully: " + fileName);
+            File file = new File("Files/" + serverId, fileName);
+            try {
+                FileTransfer.sendFile(file, out, blockChecksums.expected(fileName, file));
+            } catch (BlockChecksums.ChecksumException e) {
+                logger.error(blockChecksums.mismatch(fileName, e.block).getMessage());
+                repairCorruptCopy(fileName);
+                throw e; // the replica discards the partial copy
+            }
+        });
     }
 
-    private static void sendUpdatedFileToReplica(String nodeId, String fileName, byte[] fileContent) {
+    // Whole files go on a dedicated connection with a long length, as REPLICATE does: a frame
+    // is capped at Frame.MAX_FRAME_SIZE and would hold up every request multiplexed behind it
+    private static boolean sendUpdatedFileToReplica(String nodeId, String fileName, FramedConnection.PayloadWriter body) {
         ServerInfo serverInfo = getServerDetailsFromConsul(nodeId);
         if (serverInfo == null) {
-            logger.error("Replica server info not found for node ID: " + nodeId);
-            return;
+            logger.error("Server details not found for server ID: " + nodeId);
+            return false;
         }
-
-        try (Socket socket = new Socket(serverInfo.getAddress(), serverInfo.getPort());
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-            out.writeUTF("UPDATE_REPLICA");
-            out.writeUTF(fileName);
-            out.writeInt(fileContent.length);
-            out.write(fileContent);
+        ConnectionPool.StreamConnection connection = null;
+        try {
+            connection = connectionPool.borrowStream(nodeId, serverInfo.getAddress(), serverInfo.getPort());
+            connection.out.writeUTF("UPDATE_REPLICA");
+            connection.out.writeUTF(fileName);
+            body.write(connection.out);
+            connection.out.flush();
+            connection.in.readUTF();
+            connectionPool.releaseStream(nodeId, connection);
+            return true;
         } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
             logger.error("Error occurred while updating replica on node " + nodeId + ": " + e.getMessage());
+            return false;
         }
     }
     private static void deleteLocalFile(String fileName) {
         File file = new File("Files/" + serverId, fileName);
+        localCopyChanged(fileName);
+        leases.forget(fileName);
+        if (segments != null) {
+            try {
+                segments.delete(fileName);
+            } catch (IOException e) {
+                logger.info("Failed to delete replica from the segment store: " + fileName);
+            }
+        }
         if (file.exists()) {
             if (!file.delete()) {
                 logger.info("Failed to delete replica: " + fileName);
@@ -620,42 +1932,36 @@ public class FileServer {
         }
     }
 
-    private static void fetchFileFromServer(String serverId, String fileName, File localFile,DataOutputStream dataOutputStream,DataInputStream dataInputStream,String mode) throws IOException {
-        ServerInfo serverInfo = getServerDetailsFromConsul(serverId);
-        if (serverInfo == null) {
-            logger.error("Server details not found for server ID: " + serverId);
-            throw new IOException("Server details not found for server ID: " + serverId);
-        }
-
-        String serverAddress = serverInfo.getAddress();
-        int serverPort = serverInfo.getPort();
-
-        // Connect to the server and request the file
-        try (Socket socket = new Socket(serverAddress, serverPort);
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-             DataInputStream in = new DataInputStream(socket.getInputStream())) {
-
+    // Fetches the file into target from whichever holder answers first
+    private static void fetchFromHolders(String fileName, File target) throws IOException {
+        HolderResponse response = requestFromHolders(fileName, false, out -> {
             out.writeUTF("READFROMSERVER");
             out.writeUTF(fileName);
+        });
+        if (response == null) {
+            throw new IOException("No holder could provide " + fileName);
+        }
+        try {
+            FileTransfer.receiveToFile(response.connection.in, response.count, target.toPath());
+            connectionPool.releaseStream(response.holderId, response.connection);
+        } catch (IOException e) {
+            response.connection.close();
+            throw e;
+        }
+    }
 
-            int fileLength = in.readInt();
-            if (fileLength > 0) {
-                byte[] fileContent = new byte[fileLength];
-                in.readFully(fileContent);
-                Files.write(localFile.toPath(), fileContent);
-                temporaryFiles.put(fileName, System.currentTimeMillis());
-                sendReadToServer(fileName,dataOutputStream,dataInputStream,mode);
-            } else {
-                logger.error("File not found on remote server");
-                throw new IOException("File not found on remote server");
-            }
+    private static FramedConnection connectionTo(String nodeId) throws IOException {
+        ServerInfo serverInfo = getServerDetailsFromConsul(nodeId);
+        if (serverInfo == null) {
+            logger.error("Server details not found for server ID: " + nodeId);
+            throw new IOException("Server details not found for server ID: " + nodeId);
         }
+        return connectionPool.get(nodeId, serverInfo.getAddress(), serverInfo.getPort());
     }
 
     private static ServerInfo getServerDetailsFromConsul(String serverId) {
-        KeyValueClient kvClient = Consul.builder().build().keyValueClient();
         String key = "server-info/" + serverId;
-        Optional<String> value = kvClient.getValueAsString(key);
+        Optional<String> value = serverInfoCache.get(key);
         if (value.isPresent()) {
             return ServerInfo.fromJson(value.get());
         }
@@ -665,40 +1971,58 @@ public class FileServer {
 
     private static void handleFileUpload(DataInputStream dataInputStream, String saveDirectory) throws IOException {
         String fileName = dataInputStream.readUTF();
+        long fileSize = dataInputStream.readLong();
         File directory = new File(saveDirectory);
         if (!directory.exists()) {
             directory.mkdir();
         }
         File file = new File(directory, fileName);
 
-
-        try (BufferedOutputStream fileOutputStream = new BufferedOutputStream(new FileOutputStream(file))) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = dataInputStream.read(buffer)) != -1) {
-                fileOutputStream.write(buffer, 0, bytesRead);
-            }
-        }
+        receiveOrDiscard(dataInputStream, fileName, fileSize, file);
         FileMetadata metadata = new FileMetadata(fileName, file.length(), new Date(),serverId);
-        updateFileMetadataInConsul(fileName, metadata);
+        MetadataBatcher.Batch batch = new MetadataBatcher.Batch().adjustFileCount(serverId, 1);
 
-        updateFileCountInConsul(serverId, true);
+        List<ServerInfo> replicationTargets = selectServersForReplication(fileName, numberOfReplicas);
+        replicateFileToNodes(file, fileName, metadata, replicationTargets, batch);
 
-        List<ServerInfo> replicationTargets = selectServersForReplication(numberOfReplicas);
-        replicateFileToNodes(file, fileName, metadata, replicationTargets);
+        // Metadata, replica list and every file count go to Consul in one transaction
+        metadata.planBlocks(blockSize);
+        metadataBatcher.commit(batch.put("files/" + fileName, metadata.toJson()));
+        settleLocalCopy(fileName, file); // only now, replication streamed the plain file
     }
 
 
+    // A short transfer leaves no partial file behind and never gets metadata
+    private static void receiveOrDiscard(DataInputStream dataInputStream, String fileName, long fileSize, File file) throws IOException {
+        try {
+            BlockChecksums.Accumulator sums = new BlockChecksums.Accumulator();
+            FileTransfer.receiveToFile(dataInputStream, fileSize, file.toPath(), sums);
+            localCopyChanged(fileName);
+            recordChecksums(fileName, file, sums.finish());
+            durable(GroupCommit.file(file.toPath()));
+        } catch (IOException e) {
+            localCopyChanged(fileName);
+            if (!file.delete()) {
+                logger.error("Failed to remove partial file: " + file);
+            }
+            throw e;
+        }
+    }
+
     private static void handleFileDeletion(DataOutputStream dataOutputStream, String fileName) throws IOException {
         // Check if the file exists locally
         File file = new File("Files/" + serverId, fileName);
-        boolean localFileExists = file.exists();
+        boolean inSegments = segments != null && segments.contains(fileName);
+        boolean localFileExists = inSegments || file.exists();
 
         // Fetch metadata from Consul
         FileMetadata metadata = getFileMetadataFromConsul(fileName);
         if (metadata != null) {
             // Delete the file if it exists locally
-            boolean deleteSuccess = localFileExists && file.delete();
+            boolean deleteSuccess = localFileExists && (inSegments ? segments.delete(fileName) : file.delete());
+            localCopyChanged(fileName);
+            proxyCache.invalidate(fileName);
+            leases.forget(fileName);
 
             // Request deletion from the primary server and replicas
             metadata.replicatedNodes.forEach(nodeId -> deleteReplicaOnNode(nodeId, fileName));
@@ -706,24 +2030,24 @@ public class FileServer {
                 deleteReplicaOnNode(metadata.serverId, fileName);
             }
 
-            // Delete metadata from Consul
-            kvClient.deleteKey("files/" + fileName);
+            // Delete metadata and update the local file count in one Consul transaction
+            MetadataBatcher.Batch batch = new MetadataBatcher.Batch().delete("files/" + fileName).delete("leases/" + fileName);
+            if (localFileExists) {
+                batch.adjustFileCount(serverId, -1);
+            }
+            metadataBatcher.commit(batch);
 
             if (deleteSuccess || !localFileExists) {
                 dataOutputStream.writeUTF("File and its replicas deleted successfully.");
             } else {
                 dataOutputStream.writeUTF("Failed to delete the file.");
             }
-
-            // Update file count in Consul if the file existed locally
-            if (localFileExists) {
-                updateFileCountInConsul(serverId, false);
-            }
         } else {
             // Handle case where file metadata is not found in Consul
             if (localFileExists) {
                 // Delete the file locally if it exists without metadata
-                boolean deleteSuccess = file.delete();
+                boolean deleteSuccess = inSegments ? segments.delete(fileName) : file.delete();
+                localCopyChanged(fileName);
                 if (deleteSuccess) {
                     dataOutputStream.writeUTF("Local file without metadata deleted successfully.");
                 } else {
@@ -739,16 +2063,8 @@ public class FileServer {
 
 
     private static void deleteReplicaOnNode(String nodeId, String fileName) {
-        ServerInfo serverInfo = getServerDetailsFromConsul(nodeId);
-
-        String serverAddress = serverInfo.getAddress();
-        int serverPort = serverInfo.getPort();
-
-        try (Socket socket = new Socket(serverAddress, serverPort);
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-
-            out.writeUTF("DELETE_REPLICA");
-            out.writeUTF(fileName);
+        try {
+            connectionTo(nodeId).call(Opcode.DELETE_REPLICA, out -> out.writeUTF(fileName));
         } catch (IOException e) {
             System.out.println("Error occurred while deleting replica on node " + nodeId + ": " + e.getMessage());
         }
@@ -773,33 +2089,49 @@ public class FileServer {
             try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
                 writer.write(fileContent);
             }
+            localCopyChanged(fileName);
+            recordChecksums(fileName, file, BlockChecksums.compute(file));
+            durable(GroupCommit.file(file.toPath()));
 
             FileMetadata metadata = new FileMetadata(fileName, file.length(), new Date(),serverId);
-            updateFileMetadataInConsul(fileName, metadata);
+            MetadataBatcher.Batch batch = new MetadataBatcher.Batch().adjustFileCount(serverId, 1);
 
-            updateFileCountInConsul(serverId, true);
+            List<ServerInfo> replicationTargets = selectServersForReplication(fileName, numberOfReplicas);
+            replicateFileToNodes(file, fileName, metadata, replicationTargets, batch);
 
-            List<ServerInfo> replicationTargets = selectServersForReplication(numberOfReplicas);
-            replicateFileToNodes(file, fileName, metadata, replicationTargets);
+            // Metadata, replica list and every file count go to Consul in one transaction
+            metadata.planBlocks(blockSize);
+            metadataBatcher.commit(batch.put("files/" + fileName, metadata.toJson()));
+            settleLocalCopy(fileName, file); // only now, replication streamed the plain file
         }
 
     }
 
-    private static void replicateFileToNodes(File file, String fileName, FileMetadata metadata, List<ServerInfo> replicationTargets) {
+    // Records each successful replica in the batch; the caller commits it once at the end
+    private static void replicateFileToNodes(File file, String fileName, FileMetadata metadata, List<ServerInfo> replicationTargets, MetadataBatcher.Batch batch) {
+        replicationTargets = replicationTargets.stream().filter(Objects::nonNull).collect(Collectors.toList());
+        if ("chain".equals(replicationMode) && replicationTargets.size() > 1) {
+            for (String nodeId : sendFileDownChain(replicationTargets, fileName, file)) {
+                metadata.addReplicatedNode(nodeId);
+                metadata.planBlocks(blockSize);
+                batch.put("files/" + file.getName(), metadata.toJson());
+                batch.adjustFileCount(nodeId, 1);
+            }
+            return;
+        }
         for (ServerInfo target : replicationTargets) {
             boolean success = sendFileToNode(target, fileName, file);
             if (success) {
                 metadata.addReplicatedNode(target.getServerId()); // Assuming getServerId() exists in ServerInfo
-                // Update metadata in Consul again after successful replication
-                updateFileMetadataInConsul(file.getName(), metadata);
-                updateFileCountInConsul(target.getServerId(),true);
+                metadata.planBlocks(blockSize);
+                batch.put("files/" + file.getName(), metadata.toJson());
+                batch.adjustFileCount(target.getServerId(), 1);
             }
         }
     }
 
 
     private static void registerToConsul(String serverId, String address, int port, boolean serverInactive) {
-        KeyValueClient kvClient = Consul.builder().build().keyValueClient();
         String key = "server-info/" + serverId;
 
         List<String> serverKeys  = kvClient.getKeys("server-info/");
@@ -819,10 +2151,10 @@ public class FileServer {
         ServerInfo info = new ServerInfo(serverId, address, port, 0, false, isFirstServer);
 
         kvClient.putValue(key, info.toJson());
+        serverInfoCache.refresh(key);
     }
 
     private static void updateServerStatusInConsul(String serverId, boolean serverInactive) {
-        KeyValueClient kvClient = Consul.builder().build().keyValueClient();
         String key = "server-info/" + serverId;
 
         Optional<String> currentValue = kvClient.getValueAsString(key);
@@ -831,6 +2163,7 @@ public class FileServer {
             info.setServerInactive(serverInactive);
 
             kvClient.putValue(key, info.toJson());
+            serverInfoCache.refresh(key);
         }
     }
 
@@ -838,72 +2171,185 @@ public class FileServer {
 
 
     private static void updateFileCountInConsul(String serverId, boolean increment) {
-        KeyValueClient kvClient = Consul.builder().build().keyValueClient();
-        String key = "server-info/" + serverId;
-        Optional<String> currentValue = kvClient.getValueAsString(key);
-        if (currentValue.isPresent()) {
-            ServerInfo info = ServerInfo.fromJson(currentValue.get());
-            int currentCount = info.getFileCount();
-            currentCount = increment ? currentCount + 1 : Math.max(currentCount - 1, 0);
-            info.setFileCount(currentCount);
-            kvClient.putValue(key, info.toJson());
-        }
+        metadataBatcher.commit(new MetadataBatcher.Batch().adjustFileCount(serverId, increment ? 1 : -1));
     }
 
 
-    private static List<ServerInfo> selectServersForReplication(int numberOfReplicas) {
-        KeyValueClient kvClient = Consul.builder().build().keyValueClient();
-        List<String> serverIds = kvClient.getKeys("server-info/");
-        Map<String, Integer> fileCountMap = new HashMap<>();
+    private static List<ServerInfo> selectServersForReplication(String fileName, int numberOfReplicas) {
+        return selectReplicaTargets(fileName, numberOfReplicas, Collections.singleton(serverId)); // Exclude the current server
+    }
 
-        // Fetch file count for each active server and populate the map
-        for (String eachServerId : serverIds) {
-            if (!eachServerId.equals("server-info/"+serverId)) { // Exclude the current server
-                kvClient.getValueAsString(eachServerId).ifPresent(json -> {
-                    ServerInfo info = ServerInfo.fromJson(json);
-                    if (!info.isServerInactive()) { // Check if server is active
-                        fileCountMap.put(info.getServerId(), info.getFileCount());
-                    }
-                });
+    // Candidates come from the in-memory server-info mirror, so choosing targets costs no KV calls
+    private static List<ServerInfo> selectReplicaTargets(String fileName, int numberOfReplicas, Set<String> excluded) {
+        Map<String, ServerInfo> activeServers = new HashMap<>();
+        Map<String, Integer> fileCountMap = new HashMap<>();
+        for (String json : serverInfoCache.values()) {
+            ServerInfo info = ServerInfo.fromJson(json);
+            if (!info.isServerInactive() && !excluded.contains(info.getServerId())) { // Check if server is active
+                activeServers.put(info.getServerId(), info);
+                fileCountMap.put(info.getServerId(), info.getFileCount());
             }
         }
 
-
-        // Sort the entries by file count and select the top servers with the least file count
-        return fileCountMap.entrySet().stream()
-                .sorted(Map.Entry.comparingByValue())
-                .limit(numberOfReplicas)
-                .map(entry -> getServerDetailsFromConsul(entry.getKey()))
+        return placementStrategy.select(fileName, fileCountMap, numberOfReplicas).stream()
+                .map(activeServers::get)
                 .collect(Collectors.toList());
     }
-    private static List<ServerInfo> selectServersForReplicationFail(int numberOfReplicas,FileMetadata metadata) {
-        KeyValueClient kvClient = Consul.builder().build().keyValueClient();
-        List<String> serverIds = kvClient.getKeys("server-info/"); // Get keys for all server info
 
-        Map<String, Integer> fileCountMap = new HashMap<>();
 
-        // Fetch file count for each active server and populate the map
-        for (String eachServerId : serverIds) {
-            if (!((metadata.replicatedNodes).contains(eachServerId.split("/")[1]) || metadata.serverId.equals(eachServerId.split("/")[1]))) { // Exclude the current server
-                kvClient.getValueAsString(eachServerId).ifPresent(json -> {
-                    ServerInfo info = ServerInfo.fromJson(json);
-                    if (!info.isServerInactive()) { // Check if server is active
-                        fileCountMap.put(info.getServerId(), info.getFileCount());
-                    }
-                });
+
+    // Streams the file to the first node of the chain, which writes and forwards each chunk to the
+    // next node as it arrives. Returns the nodes that acknowledged a complete copy.
+    private static List<String> sendFileDownChain(List<ServerInfo> chain, String fileName, File file) {
+        ServerInfo head = chain.get(0);
+        ConnectionPool.StreamConnection connection = null;
+        try {
+            connection = connectionPool.borrowStream(head.getServerId(), head.getAddress(), head.getPort());
+            connection.out.writeUTF("REPLICATE_CHAIN");
+            connection.out.writeUTF(fileName);
+            writeChain(connection.out, chain.subList(1, chain.size()));
+            FileTransfer.sendFile(file, connection.out);
+
+            List<String> stored = readChainAck(connection.in);
+            connectionPool.releaseStream(head.getServerId(), connection);
+            System.out.println("File replicated down chain " + fileName + " to " + stored);
+            return stored;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
             }
+            logger.error("Chain replication of " + fileName + " via " + head.getServerId() + " failed: " + e.getMessage());
+            return Collections.emptyList();
         }
+    }
 
+    private static void handleChainReplicate(DataInputStream dataInputStream, DataOutputStream dataOutputStream, String saveDirectory) throws IOException {
+        String fileName = dataInputStream.readUTF();
+        List<ServerInfo> downstream = readChain(dataInputStream);
+        long fileSize = dataInputStream.readLong();
+        File directory = new File(saveDirectory);
+        if (!directory.exists()) {
+            directory.mkdir();
+        }
+        File file = new File(directory, fileName);
 
-        // Sort the entries by file count and select the top servers with the least file count
-        return fileCountMap.entrySet().stream()
-                .sorted(Map.Entry.comparingByValue())
-                .limit(numberOfReplicas)
-                .map(entry -> getServerDetailsFromConsul(entry.getKey())) // Convert serverId to ServerInfo
-                .collect(Collectors.toList());
+        ConnectionPool.StreamConnection next = null;
+        if (!downstream.isEmpty()) {
+            ServerInfo nextNode = downstream.get(0);
+            try {
+                next = connectionPool.borrowStream(nextNode.getServerId(), nextNode.getAddress(), nextNode.getPort());
+                next.out.writeUTF("REPLICATE_CHAIN");
+                next.out.writeUTF(fileName);
+                writeChain(next.out, downstream.subList(1, downstream.size()));
+                next.out.writeLong(fileSize);
+            } catch (IOException e) {
+                logger.error("Cannot extend replication chain to " + nextNode.getServerId() + ": " + e.getMessage());
+                if (next != null) {
+                    next.close();
+                }
+                next = null;
+            }
+        }
+
+        BlockChecksums.Accumulator sums;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Each hop decodes with its upstream codec and re-encodes with its downstream one
+            InputStream body = FileTransfer.bodyInput(dataInputStream, fileSize);
+            OutputStream nextBody = next != null ? FileTransfer.bodyOutput(next.out) : null;
+            sums = new BlockChecksums.Accumulator();
+            byte[] buffer = new byte[FileTransfer.CHUNK_SIZE];
+            long received = 0;
+            while (received < fileSize) {
+                int bytesRead = body.read(buffer, 0, (int) Math.min(buffer.length, fileSize - received));
+                if (bytesRead == -1) {
+                    throw new EOFException("Connection closed after " + received + " of " + fileSize + " bytes");
+                }
+                if (next != null) {
+                    try {
+                        nextBody.write(buffer, 0, bytesRead);
+                    } catch (IOException e) {
+                        logger.error("Replication chain broken after " + serverId + ": " + e.getMessage());
+                        next.close();
+                        next = null;
+                    }
+                }
+                sums.update(buffer, 0, bytesRead);
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (chunk.hasRemaining()) {
+                    received += fileChannel.write(chunk, received);
+                }
+            }
+            if (next != null) {
+                try {
+                    nextBody.close();
+                } catch (IOException e) {
+                    logger.error("Replication chain broken after " + serverId + ": " + e.getMessage());
+                    next.close();
+                    next = null;
+                }
+            }
+        } catch (IOException e) {
+            if (next != null) {
+                next.close(); // downstream sees a short transfer and drops its partial copy
+            }
+            localCopyChanged(fileName);
+            if (!file.delete()) {
+                logger.error("Failed to remove partial file: " + file);
+            }
+            throw e;
+        }
+        localCopyChanged(fileName);
+        recordChecksums(fileName, file, sums.finish());
+        durable(GroupCommit.file(file.toPath())); // while the rest of the chain forces its copies
+
+        List<String> stored = new ArrayList<>();
+        stored.add(serverId);
+        if (next != null) {
+            ServerInfo nextNode = downstream.get(0);
+            try {
+                next.out.flush();
+                stored.addAll(readChainAck(next.in));
+                connectionPool.releaseStream(nextNode.getServerId(), next);
+            } catch (IOException e) {
+                logger.error("No chain ack from " + nextNode.getServerId() + ": " + e.getMessage());
+                next.close();
+            }
+        }
+        dataOutputStream.writeInt(stored.size());
+        for (String nodeId : stored) {
+            dataOutputStream.writeUTF(nodeId);
+        }
+        settleLocalCopy(fileName, file);
+        logger.info("Chain replica stored: " + fileName);
+    }
+
+    private static void writeChain(DataOutputStream out, List<ServerInfo> chain) throws IOException {
+        out.writeInt(chain.size());
+        for (ServerInfo node : chain) {
+            out.writeUTF(node.getServerId());
+            out.writeUTF(node.getAddress());
+            out.writeInt(node.getPort());
+        }
     }
 
+    private static List<ServerInfo> readChain(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        List<ServerInfo> chain = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            chain.add(new ServerInfo(in.readUTF(), in.readUTF(), in.readInt(), 0, false, false));
+        }
+        return chain;
+    }
 
+    private static List<String> readChainAck(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> stored = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            stored.add(in.readUTF());
+        }
+        return stored;
+    }
 
     private static boolean sendFileToNode(ServerInfo node,String fileName, File file) {
         if (!file.exists()) {
@@ -912,32 +2358,31 @@ public class FileServer {
         }
 
 
-        try (Socket socket = new Socket(node.getAddress(),node.getPort() );
-             DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
-             BufferedInputStream fileInputStream = new BufferedInputStream(new FileInputStream(file))) {
-
-            // Send the command and the filename
-            dataOutputStream.writeUTF("REPLICATE");
-            dataOutputStream.writeUTF(fileName);
+        ConnectionPool.StreamConnection connection = null;
+        try {
+            connection = connectionPool.borrowStream(node.getServerId(), node.getAddress(), node.getPort());
 
-            // Send the file data
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                dataOutputStream.write(buffer, 0, bytesRead);
-            }
+            // Send the command, the filename, then the size-prefixed file data
+            connection.out.writeUTF("REPLICATE");
+            connection.out.writeUTF(fileName);
+            FileTransfer.sendFile(file, connection.out);
+            String response = connection.in.readUTF();
+            connectionPool.releaseStream(node.getServerId(), connection);
 
-            System.out.println("File has sent replication  " + fileName);
+            System.out.println("File has sent replication  " + fileName + ": " + response);
+            return true;
         } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
             System.out.println("Error occurred: " + e.getMessage());
-            e.printStackTrace();
+            logger.error("Replication of " + fileName + " to " + node.getServerId() + " failed: " + e.getMessage());
+            return false;
         }
-        return true; // Placeholder for actual implementation
     }
 
 
     private static void registerServiceWithConsul(String serviceId, String serviceName, int port) {
-        Consul consul = Consul.builder().build();
         AgentClient agentClient = consul.agentClient();
 
         Registration.RegCheck regCheck = Registration.RegCheck.http(
@@ -964,14 +2409,12 @@ public class FileServer {
             // Update the new primary server's status in Consul
             updateServerStatusInConsul(newPrimaryServer.getServerId(), false, true);
         }
-        Consul consul = Consul.builder().build();
         AgentClient agentClient = consul.agentClient();
         agentClient.deregister(serverId);
         System.out.println("Deregistered service from Consul: " + serverId);
     }
 
     private static void updateServerStatusInConsul(String serverId, boolean serverInactive, boolean primaryServer) {
-        KeyValueClient kvClient = Consul.builder().build().keyValueClient();
         String key = "server-info/" + serverId;
 
         Optional<String> currentValue = kvClient.getValueAsString(key);
@@ -981,11 +2424,11 @@ public class FileServer {
             info.setPrimaryServer(primaryServer);
 
             kvClient.putValue(key, info.toJson());
+            serverInfoCache.refresh(key);
         }
     }
 
     private static ServerInfo selectNewPrimaryServer() {
-        KeyValueClient kvClient = Consul.builder().build().keyValueClient();
         List<String> serverIds = kvClient.getKeys("server-info/"); // Get keys for all server info
 
         List<ServerInfo> activeServers = new ArrayList<>();
@@ -0,0 +1,511 @@
+package org.example;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams file contents between disk and sockets with a 64-bit length header, so transfers
+ * use a fixed amount of heap however large the file is.
+ *
+ * Once a connection has negotiated a codec, the body after the header is a series of chunks
+ * of at most CHUNK_SIZE raw bytes: [byte codec][int rawLength][int storedLength][stored bytes].
+ * Content that looks compressed already, or whose first chunk barely shrinks, is sent in
+ * stored (codec NONE) chunks.
+ */
+final class FileTransfer {
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+    // Compression has to save at least a tenth of a chunk to be worth the receiver's CPU
+    static final double MIN_COMPRESSION_SAVING = 0.1;
+
+    private FileTransfer() {
+    }
+
+    /**
+     * A DataOutputStream that remembers the codec its connection negotiated.
+     */
+    static class CodecOutputStream extends DataOutputStream {
+        volatile Codec codec = Codec.NONE;
+
+        CodecOutputStream(OutputStream out) {
+            super(out);
+        }
+    }
+
+    /**
+     * The matching input side: bodies on this connection arrive chunked when codec is not NONE.
+     */
+    static class CodecInputStream extends DataInputStream {
+        volatile Codec codec = Codec.NONE;
+
+        CodecInputStream(InputStream in) {
+            super(in);
+        }
+    }
+
+    /**
+     * A DataOutputStream that also exposes the socket as a channel. When the socket came from
+     * a SocketChannel, FileChannel.transferTo can hand the copy to the kernel (sendfile).
+     */
+    static class ChannelOutputStream extends CodecOutputStream {
+        final WritableByteChannel channel;
+
+        ChannelOutputStream(Socket socket) throws IOException {
+            super(socket.getOutputStream());
+            this.channel = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+        }
+    }
+
+    /**
+     * The matching input side. Stays unbuffered so command headers read through the stream
+     * and bulk data read through the channel never disagree about the position.
+     */
+    static class ChannelInputStream extends CodecInputStream {
+        final ReadableByteChannel channel;
+
+        ChannelInputStream(Socket socket) throws IOException {
+            super(socket.getInputStream());
+            this.channel = socket.getChannel();
+        }
+    }
+
+    // Client side of CODECS: offers our codecs and switches both streams to the server's pick
+    static Codec negotiate(CodecOutputStream out, CodecInputStream in, java.util.List<Codec> offered) throws IOException {
+        if (offered.isEmpty() || (offered.size() == 1 && offered.get(0) == Codec.NONE)) {
+            return Codec.NONE;
+        }
+        out.writeUTF("CODECS");
+        out.writeUTF(Codec.toList(offered));
+        out.flush();
+        Codec chosen = Codec.fromName(in.readUTF());
+        if (chosen == null) {
+            throw new IOException("Server chose a codec we don't know");
+        }
+        out.codec = chosen;
+        in.codec = chosen;
+        return chosen;
+    }
+
+    static Codec codecOf(OutputStream out) {
+        return out instanceof CodecOutputStream ? ((CodecOutputStream) out).codec : Codec.NONE;
+    }
+
+    static boolean isChunked(InputStream in) {
+        return in instanceof CodecInputStream && ((CodecInputStream) in).codec != Codec.NONE;
+    }
+
+    // Writes the file length as a long followed by the file contents
+    static void sendFile(File file, DataOutputStream out) throws IOException {
+        sendFile(file, out, null);
+    }
+
+    // As above; blocks that pass through the heap are checked against blockChecksums if given
+    static void sendFile(File file, DataOutputStream out, int[] blockChecksums) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            out.writeLong(size);
+            transferTo(fileChannel, 0, size, out, blockChecksums);
+        }
+    }
+
+    // Same wire format as sendFile, for contents already in memory
+    static void sendBuffer(ByteBuffer content, DataOutputStream out) throws IOException {
+        out.writeLong(content.remaining());
+        Codec codec = codecOf(out);
+        if (codec != Codec.NONE) {
+            try (ChunkedOutputStream body = new ChunkedOutputStream(out, codec)) {
+                byte[] chunk = new byte[Math.min(CHUNK_SIZE, Math.max(content.remaining(), 1))];
+                while (content.hasRemaining()) {
+                    int length = Math.min(chunk.length, content.remaining());
+                    content.get(chunk, 0, length);
+                    body.write(chunk, 0, length);
+                }
+            }
+        } else if (out instanceof ChannelOutputStream) {
+            out.flush();
+            WritableByteChannel target = ((ChannelOutputStream) out).channel;
+            while (content.hasRemaining()) {
+                target.write(content);
+            }
+        } else if (content.hasArray()) {
+            out.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+        } else {
+            byte[] chunk = new byte[Math.min(CHUNK_SIZE, Math.max(content.remaining(), 1))];
+            while (content.hasRemaining()) {
+                int length = Math.min(chunk.length, content.remaining());
+                content.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+        out.flush();
+    }
+
+    static void transferTo(FileChannel fileChannel, long position, long count, DataOutputStream out) throws IOException {
+        transferTo(fileChannel, position, count, out, null);
+    }
+
+    // blockChecksums, if given, has one CRC32C per CHUNK_SIZE block of the file and position
+    // is block aligned. Every block sent is checked, so a checked transfer reads through a
+    // buffer instead of sendfile, which never lets us see the bytes.
+    static void transferTo(FileChannel fileChannel, long position, long count, DataOutputStream out, int[] blockChecksums) throws IOException {
+        Codec codec = codecOf(out);
+        if (codec != Codec.NONE) {
+            // Compressed bodies go through the heap a chunk at a time
+            try (ChunkedOutputStream body = new ChunkedOutputStream(out, codec)) {
+                ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                long sent = 0;
+                while (sent < count) {
+                    chunk.clear().limit((int) Math.min(CHUNK_SIZE, count - sent));
+                    while (chunk.hasRemaining()) {
+                        if (fileChannel.read(chunk, position + sent + chunk.position()) <= 0) {
+                            throw new EOFException("File shrank during transfer after " + (sent + chunk.position()) + " of " + count + " bytes");
+                        }
+                    }
+                    int read = chunk.position();
+                    verifyBlock(chunk.flip(), position + sent, blockChecksums);
+                    body.write(chunk.array(), 0, read);
+                    sent += read;
+                }
+            }
+            out.flush();
+            return;
+        }
+        out.flush();
+        WritableByteChannel target = out instanceof ChannelOutputStream
+                ? ((ChannelOutputStream) out).channel
+                : Channels.newChannel(out);
+        long sent = 0;
+        if (blockChecksums != null) {
+            // A direct buffer keeps the checked copy off the heap; CRC32C reads it in place
+            ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            while (sent < count) {
+                chunk.clear().limit((int) Math.min(CHUNK_SIZE, count - sent));
+                while (chunk.hasRemaining()) {
+                    if (fileChannel.read(chunk, position + sent + chunk.position()) <= 0) {
+                        throw new EOFException("File shrank during transfer after " + (sent + chunk.position()) + " of " + count + " bytes");
+                    }
+                }
+                chunk.flip();
+                verifyBlock(chunk, position + sent, blockChecksums);
+                sent += chunk.remaining();
+                while (chunk.hasRemaining()) {
+                    target.write(chunk);
+                }
+            }
+            out.flush();
+            return;
+        }
+        while (sent < count) {
+            long transferred = fileChannel.transferTo(position + sent, count - sent, target);
+            if (transferred <= 0 && position + sent >= fileChannel.size()) {
+                throw new EOFException("File shrank during transfer after " + sent + " of " + count + " bytes");
+            }
+            sent += transferred;
+        }
+        out.flush();
+    }
+
+    // Checks a block read from the file at blockStart, leaving the buffer's position alone
+    private static void verifyBlock(ByteBuffer block, long blockStart, int[] blockChecksums) throws BlockChecksums.ChecksumException {
+        if (blockChecksums == null) {
+            return;
+        }
+        int index = (int) (blockStart / CHUNK_SIZE);
+        if (index < blockChecksums.length && BlockChecksums.crc(block.duplicate()) != blockChecksums[index]) {
+            throw new BlockChecksums.ChecksumException("Checksum mismatch in block " + index, index);
+        }
+    }
+
+    // Reads exactly length bytes from the stream into the target file, replacing its contents.
+    // A short stream is an error, so a truncated upload never looks like a complete file.
+    static void receiveToFile(DataInputStream in, long length, Path target) throws IOException {
+        receiveToFile(in, length, target, null);
+    }
+
+    // As above, feeding every byte to checksums on the way to disk
+    static void receiveToFile(DataInputStream in, long length, Path target, BlockChecksums.Accumulator checksums) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            receiveToChannel(in, length, fileChannel, 0, checksums);
+        }
+    }
+
+    // Reads exactly length bytes into the file at position, leaving the rest of it alone
+    static void receiveToChannel(DataInputStream in, long length, FileChannel fileChannel, long position) throws IOException {
+        receiveToChannel(in, length, fileChannel, position, null);
+    }
+
+    // Checksumming needs the bytes in the heap, so it gives up the transferFrom path
+    static void receiveToChannel(DataInputStream in, long length, FileChannel fileChannel, long position,
+                                 BlockChecksums.Accumulator checksums) throws IOException {
+        ReadableByteChannel socketChannel = in instanceof ChannelInputStream ? ((ChannelInputStream) in).channel : null;
+        if (isChunked(in)) {
+            InputStream body = new ChunkedInputStream(in, length);
+            byte[] buffer = new byte[CHUNK_SIZE];
+            long received = 0;
+            int bytesRead;
+            while ((bytesRead = body.read(buffer)) != -1) {
+                if (checksums != null) {
+                    checksums.update(buffer, 0, bytesRead);
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (chunk.hasRemaining()) {
+                    received += fileChannel.write(chunk, position + received);
+                }
+            }
+        } else if (socketChannel != null && checksums == null) {
+            long received = 0;
+            while (received < length) {
+                long transferred = fileChannel.transferFrom(socketChannel, position + received, length - received);
+                if (transferred <= 0) {
+                    throw new EOFException("Connection closed after " + received + " of " + length + " bytes");
+                }
+                received += transferred;
+            }
+        } else {
+            byte[] buffer = new byte[(int) Math.min(RECEIVE_BUFFER_SIZE, Math.max(length, 1))];
+            long received = 0;
+            while (received < length) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+                if (bytesRead == -1) {
+                    throw new EOFException("Connection closed after " + received + " of " + length + " bytes");
+                }
+                if (checksums != null) {
+                    checksums.update(buffer, 0, bytesRead);
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (chunk.hasRemaining()) {
+                    received += fileChannel.write(chunk, position + received);
+                }
+            }
+        }
+    }
+
+    // Copies a body of length bytes, decoding it if in is chunked and encoding it if out has a codec
+    static void copy(DataInputStream in, long length, OutputStream out) throws IOException {
+        InputStream body = bodyInput(in, length);
+        Codec codec = codecOf(out);
+        OutputStream target = codec != Codec.NONE ? new ChunkedOutputStream((DataOutputStream) out, codec) : out;
+        byte[] buffer = new byte[(int) Math.min(CHUNK_SIZE, Math.max(length, 1))];
+        long remaining = length;
+        while (remaining > 0) {
+            int bytesRead = body.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (bytesRead == -1) {
+                throw new EOFException("Connection closed with " + remaining + " bytes outstanding");
+            }
+            target.write(buffer, 0, bytesRead);
+            remaining -= bytesRead;
+        }
+        if (target != out) {
+            target.close();
+        }
+        out.flush();
+    }
+
+    // The decoded bytes of a body whose length header has already been read
+    static InputStream bodyInput(DataInputStream in, long length) {
+        return isChunked(in) ? new ChunkedInputStream(in, length) : in;
+    }
+
+    // Where to write a body whose length header has already been written; close it when done
+    static OutputStream bodyOutput(DataOutputStream out) {
+        Codec codec = codecOf(out);
+        return codec != Codec.NONE ? new ChunkedOutputStream(out, codec) : new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.flush(); // the connection stays open
+            }
+        };
+    }
+
+    /**
+     * Splits a body into compressed chunks. close() writes the last chunk but leaves the
+     * connection open.
+     */
+    static final class ChunkedOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final Codec codec;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private byte[] compressed;
+        private int buffered;
+        private boolean firstChunk = true;
+        private boolean compressing = true;
+
+        ChunkedOutputStream(DataOutputStream out, Codec codec) {
+            this.out = out;
+            this.codec = codec;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer[buffered++] = (byte) b;
+            if (buffered == buffer.length) {
+                writeChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                int count = Math.min(length, buffer.length - buffered);
+                System.arraycopy(data, offset, buffer, buffered, count);
+                buffered += count;
+                offset += count;
+                length -= count;
+                if (buffered == buffer.length) {
+                    writeChunk();
+                }
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            if (buffered == 0) {
+                return;
+            }
+            if (firstChunk) {
+                compressing = !looksCompressed(buffer, buffered);
+            }
+            int storedLength = -1;
+            if (compressing) {
+                if (compressed == null) {
+                    compressed = new byte[CHUNK_SIZE];
+                }
+                // Only accept output that saves at least MIN_COMPRESSION_SAVING
+                int limit = (int) (buffered * (1 - MIN_COMPRESSION_SAVING));
+                storedLength = limit > 0 ? codec.compress(buffer, 0, buffered, compressed) : -1;
+                if (storedLength > limit) {
+                    storedLength = -1;
+                }
+                if (storedLength < 0 && firstChunk) {
+                    compressing = false; // incompressible content, don't spend CPU on the rest
+                }
+            }
+            firstChunk = false;
+            if (storedLength >= 0) {
+                out.writeByte(codec.id);
+                out.writeInt(buffered);
+                out.writeInt(storedLength);
+                out.write(compressed, 0, storedLength);
+            } else {
+                out.writeByte(Codec.NONE.id);
+                out.writeInt(buffered);
+                out.writeInt(buffered);
+                out.write(buffer, 0, buffered);
+            }
+            buffered = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush(); // a partial chunk waits for more data or close()
+        }
+
+        @Override
+        public void close() throws IOException {
+            writeChunk();
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads exactly length decoded bytes of a chunked body, then reports end of stream.
+     */
+    static final class ChunkedInputStream extends InputStream {
+        private final DataInputStream in;
+        private long remaining;
+        private byte[] chunk = new byte[0];
+        private byte[] stored = new byte[0];
+        private int chunkLength;
+        private int chunkPosition;
+
+        ChunkedInputStream(DataInputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (chunkPosition == chunkLength) {
+                if (remaining == 0) {
+                    return -1;
+                }
+                readChunk();
+            }
+            int count = Math.min(length, chunkLength - chunkPosition);
+            System.arraycopy(chunk, chunkPosition, target, offset, count);
+            chunkPosition += count;
+            return count;
+        }
+
+        private void readChunk() throws IOException {
+            Codec codec = Codec.fromId(in.readByte());
+            int rawLength = in.readInt();
+            int storedLength = in.readInt();
+            if (rawLength <= 0 || rawLength > CHUNK_SIZE || storedLength < 0 || storedLength > CHUNK_SIZE || rawLength > remaining) {
+                throw new IOException("Invalid chunk: raw " + rawLength + ", stored " + storedLength);
+            }
+            if (chunk.length < rawLength) {
+                chunk = new byte[CHUNK_SIZE];
+            }
+            if (codec == Codec.NONE) {
+                in.readFully(chunk, 0, rawLength);
+            } else {
+                if (stored.length < storedLength) {
+                    stored = new byte[CHUNK_SIZE];
+                }
+                in.readFully(stored, 0, storedLength);
+                codec.decompress(stored, 0, storedLength, chunk, rawLength);
+            }
+            chunkLength = rawLength;
+            chunkPosition = 0;
+            remaining -= rawLength;
+        }
+    }
+
+    // Magic numbers of formats that are already compressed
+    private static final byte[][] COMPRESSED_MAGIC = {
+            {0x1f, (byte) 0x8b},                               // gzip
+            {0x50, 0x4b, 0x03, 0x04},                          // zip, jar, docx
+            {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},            // zstd
+            {0x04, 0x22, 0x4d, 0x18},                          // lz4 frame
+            {0x42, 0x5a, 0x68},                                // bzip2
+            {(byte) 0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00},       // xz
+            {0x37, 0x7a, (byte) 0xbc, (byte) 0xaf},            // 7z
+            {(byte) 0x89, 0x50, 0x4e, 0x47},                   // png
+            {(byte) 0xff, (byte) 0xd8, (byte) 0xff},           // jpeg
+            {0x50, 0x41, 0x52, 0x31},                          // parquet
+    };
+
+    static boolean looksCompressed(byte[] data, int length) {
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (length >= magic.length) {
+                boolean matches = true;
+                for (int i = 0; i < magic.length && matches; i++) {
+                    matches = data[i] == magic[i];
+                }
+                if (matches) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,100 @@
+package org.example;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * One length-prefixed frame: [int length][long requestId][byte opcode][payload].
+ * The length covers everything after itself. Responses reuse the request id so a connection
+ * can carry many requests at once and answer them in any order.
+ *
+ * On a connection that negotiated a codec, large payloads may be compressed. The opcode byte
+ * then has COMPRESSED set and the payload is [byte codec][int rawLength][compressed bytes].
+ */
+public final class Frame {
+    static final String HANDSHAKE = "FRAMED";
+    static final int HEADER_SIZE = 9;
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    static final int MAX_PAYLOAD_SIZE = MAX_FRAME_SIZE - HEADER_SIZE;
+    static final int COMPRESSED = 0x80;
+    // Small payloads don't shrink enough to pay for the codec header and the CPU
+    static final int MIN_COMPRESSED_PAYLOAD = 1024;
+    private static final int CODEC_HEADER_SIZE = 5;
+
+    final long requestId;
+    final Opcode opcode;
+    final byte[] payload;
+
+    Frame(long requestId, Opcode opcode, byte[] payload) {
+        this.requestId = requestId;
+        this.opcode = opcode;
+        this.payload = payload;
+    }
+
+    // Callers sharing a stream must hold its lock so frames are not interleaved
+    void writeTo(DataOutputStream out) throws IOException {
+        writeTo(out, Codec.NONE);
+    }
+
+    // An oversized payload is refused before anything is written: the peer would reject its
+    // length and drop the connection, failing every other request multiplexed on it
+    void writeTo(DataOutputStream out, Codec codec) throws IOException {
+        if (payload.length > MAX_PAYLOAD_SIZE) {
+            throw new IOException(opcode.command + " payload of " + payload.length + " bytes exceeds the "
+                    + MAX_PAYLOAD_SIZE + " byte frame limit");
+        }
+        if (codec != Codec.NONE && payload.length >= MIN_COMPRESSED_PAYLOAD) {
+            byte[] compressed = new byte[payload.length - CODEC_HEADER_SIZE];
+            int compressedLength = codec.compress(payload, 0, payload.length, compressed);
+            if (compressedLength >= 0) {
+                out.writeInt(HEADER_SIZE + CODEC_HEADER_SIZE + compressedLength);
+                out.writeLong(requestId);
+                out.writeByte(opcode.code | COMPRESSED);
+                out.writeByte(codec.id);
+                out.writeInt(payload.length);
+                out.write(compressed, 0, compressedLength);
+                out.flush();
+                return;
+            }
+        }
+        out.writeInt(HEADER_SIZE + payload.length);
+        out.writeLong(requestId);
+        out.writeByte(opcode.code);
+        out.write(payload);
+        out.flush();
+    }
+
+    static Frame readFrom(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_SIZE || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        long requestId = in.readLong();
+        byte code = in.readByte();
+        Opcode opcode = Opcode.fromCode((byte) (code & ~COMPRESSED));
+        byte[] payload = new byte[length - HEADER_SIZE];
+        in.readFully(payload);
+        if (opcode == null) {
+            throw new IOException("Unknown opcode: " + code);
+        }
+        if ((code & COMPRESSED) != 0) {
+            payload = decompress(payload);
+        }
+        return new Frame(requestId, opcode, payload);
+    }
+
+    private static byte[] decompress(byte[] stored) throws IOException {
+        if (stored.length < CODEC_HEADER_SIZE) {
+            throw new IOException("Truncated compressed frame");
+        }
+        Codec codec = Codec.fromId(stored[0]);
+        int rawLength = ((stored[1] & 0xff) << 24) | ((stored[2] & 0xff) << 16) | ((stored[3] & 0xff) << 8) | (stored[4] & 0xff);
+        if (codec == Codec.NONE || rawLength < 0 || rawLength > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid compressed frame: codec " + codec + ", length " + rawLength);
+        }
+        byte[] payload = new byte[rawLength];
+        codec.decompress(stored, CODEC_HEADER_SIZE, stored.length - CODEC_HEADER_SIZE, payload, rawLength);
+        return payload;
+    }
+}
@@ -0,0 +1,152 @@
+package org.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side of the multiplexed protocol: one long-lived socket, any number of outstanding
+ * requests. A reader thread matches response frames to their request ids.
+ */
+public class FramedConnection implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(FramedConnection.class);
+    static final int REQUEST_TIMEOUT_SECONDS = 60;
+
+    interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Map<Long, CompletableFuture<Frame>> pending = new ConcurrentHashMap<>();
+    private final Codec codec;
+    private volatile boolean open = true;
+
+    private FramedConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.socket.setTcpNoDelay(true);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        out.writeUTF(Frame.HANDSHAKE);
+        out.flush();
+        this.codec = negotiateCodec(Codec.offered());
+
+        Thread reader = new Thread(this::readLoop, "framed-reader-" + socket.getRemoteSocketAddress());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Runs before the reader thread starts, so the answer can be read inline
+    private Codec negotiateCodec(List<Codec> offered) throws IOException {
+        if (offered.isEmpty() || (offered.size() == 1 && offered.get(0) == Codec.NONE)) {
+            return Codec.NONE;
+        }
+        new Frame(0, Opcode.CODECS, Codec.toList(offered).getBytes(StandardCharsets.UTF_8)).writeTo(out);
+        Frame response = Frame.readFrom(in);
+        Codec chosen = Codec.fromName(new String(response.payload, StandardCharsets.UTF_8));
+        if (response.opcode != Opcode.CODECS || chosen == null) {
+            throw new IOException("Codec negotiation with " + socket.getRemoteSocketAddress() + " failed");
+        }
+        return chosen;
+    }
+
+    static FramedConnection open(String address, int port) throws IOException {
+        return new FramedConnection(new Socket(address, port));
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    CompletableFuture<Frame> send(Opcode opcode, byte[] payload) {
+        CompletableFuture<Frame> response = new CompletableFuture<>();
+        if (!open) {
+            response.completeExceptionally(new IOException("Connection closed"));
+            return response;
+        }
+        if (payload.length > Frame.MAX_PAYLOAD_SIZE) {
+            // Refused here, so the connection stays usable for the other requests
+            response.completeExceptionally(new IOException(opcode.command + " payload of " + payload.length
+                    + " bytes exceeds the " + Frame.MAX_PAYLOAD_SIZE + " byte frame limit"));
+            return response;
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        pending.put(requestId, response);
+        try {
+            synchronized (out) {
+                new Frame(requestId, opcode, payload).writeTo(out, codec);
+            }
+        } catch (IOException e) {
+            pending.remove(requestId);
+            response.completeExceptionally(e);
+            close();
+        }
+        return response;
+    }
+
+    // Sends one request and blocks for its response, returned as a stream over the payload
+    DataInputStream call(Opcode opcode, PayloadWriter writer) throws IOException {
+        return call(opcode, writer, TimeUnit.SECONDS.toMillis(REQUEST_TIMEOUT_SECONDS));
+    }
+
+    DataInputStream call(Opcode opcode, PayloadWriter writer, long timeoutMillis) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writer.write(new DataOutputStream(buffer));
+        try {
+            Frame response = send(opcode, buffer.toByteArray()).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return new DataInputStream(new ByteArrayInputStream(response.payload));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (TimeoutException e) {
+            throw new IOException(opcode.command + " timed out after " + timeoutMillis + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(opcode.command + " interrupted");
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (open) {
+                Frame frame = Frame.readFrom(in);
+                CompletableFuture<Frame> response = pending.remove(frame.requestId);
+                if (response == null) {
+                    logger.error("Response for unknown request id " + frame.requestId);
+                } else if (frame.opcode == Opcode.ERROR) {
+                    response.completeExceptionally(new IOException(new String(frame.payload)));
+                } else {
+                    response.complete(frame);
+                }
+            }
+        } catch (IOException e) {
+            if (open) {
+                logger.error("Framed connection to " + socket.getRemoteSocketAddress() + " lost: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        IOException closed = new IOException("Connection closed");
+        pending.values().forEach(response -> response.completeExceptionally(closed));
+        pending.clear();
+    }
+}
@@ -0,0 +1,218 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes writes durable in batches instead of one fsync each. A writer writes as usual, then
+ * calls sync() with what it wrote to and blocks. One thread collects the syncs that arrive
+ * within windowMicros of the first, forces each distinct target once and wakes them all, so
+ * concurrent writers to the segment store share a single FileChannel.force. Plain files are
+ * separate inodes and each needs its own force, but a batch forces each file and the
+ * directories they were created in once, however many writes it covers, and forces the
+ * files in parallel. With a window of 0 a batch is whatever arrived during the last force.
+ */
+final class GroupCommit implements Closeable {
+
+    interface Target {
+        void force() throws IOException;
+    }
+
+    // A plain file; it is forced with its directory, so that a new or renamed file is found again
+    private static final class FileTarget implements Target {
+        final Path path;
+
+        FileTarget(Path path) {
+            this.path = path.toAbsolutePath();
+        }
+
+        @Override
+        public void force() throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                // deleted or moved since it was written, nothing of it left to keep
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof FileTarget && ((FileTarget) other).path.equals(path);
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode();
+        }
+    }
+
+    private static final class Request {
+        final Target target;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        Request(Target target) {
+            this.target = target;
+        }
+    }
+
+    private final long windowNanos;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread committer;
+    private final ExecutorService forcers;
+    private volatile boolean closed;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong forces = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    GroupCommit(long windowMicros, int forceThreads) {
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.forcers = Executors.newFixedThreadPool(forceThreads, runnable -> {
+            Thread thread = new Thread(runnable, "group-commit-force");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.committer = new Thread(this::run, "group-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    static Target file(Path path) {
+        return new FileTarget(path);
+    }
+
+    // Returns once everything written to target before the call is on disk
+    void sync(Target target) throws IOException {
+        if (closed) {
+            throw new IOException("Group commit is closed");
+        }
+        long start = System.nanoTime();
+        Request request = new Request(target);
+        queue.add(request);
+        try {
+            request.durable.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the group commit");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            syncs.incrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    // Syncs per force of a batch, the fsyncs group commit saved plus one
+    double averageBatch() {
+        long batched = batches.get();
+        return batched == 0 ? 0 : (double) syncs.get() / batched;
+    }
+
+    String metrics() {
+        long synced = syncs.get();
+        return "groupCommit windowUs=" + TimeUnit.NANOSECONDS.toMicros(windowNanos) + " syncs=" + synced
+                + " batches=" + batches.get() + " forces=" + forces.get()
+                + String.format(" avgBatch=%.1f avgWaitUs=%.0f", averageBatch(), synced == 0 ? 0 : waitNanos.get() / 1e3 / synced);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        committer.interrupt();
+        forcers.shutdown();
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                Request first = queue.take();
+                long deadline = System.nanoTime() + windowNanos;
+                batch.add(first);
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0) {
+                    Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+                queue.drainTo(batch);
+            } catch (InterruptedException e) {
+                break; // closed
+            }
+            commit(batch);
+            batch.clear();
+        }
+        IOException closing = new IOException("Group commit is closed");
+        queue.forEach(request -> request.durable.completeExceptionally(closing));
+        batch.forEach(request -> request.durable.completeExceptionally(closing));
+    }
+
+    private void commit(List<Request> batch) {
+        // Distinct targets are forced in parallel: for plain files that is one fsync each,
+        // and the device can work on them together
+        Map<Target, Future<IOException>> results = new LinkedHashMap<>();
+        for (Request request : batch) {
+            results.computeIfAbsent(request.target, target -> forcers.submit(() -> {
+                try {
+                    target.force();
+                    forces.incrementAndGet();
+                    return null;
+                } catch (IOException e) {
+                    return e;
+                } catch (RuntimeException e) {
+                    return new IOException(e); // fails its writers, not the committer thread
+                }
+            }));
+        }
+        Map<Target, IOException> failures = new HashMap<>();
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Map.Entry<Target, Future<IOException>> result : results.entrySet()) {
+            IOException failure;
+            try {
+                failure = result.getValue().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new InterruptedIOException("Group commit closed during a force");
+            } catch (ExecutionException e) {
+                failure = new IOException(e.getCause());
+            }
+            if (failure != null) {
+                failures.put(result.getKey(), failure);
+            } else if (result.getKey() instanceof FileTarget) {
+                directories.add(((FileTarget) result.getKey()).path.getParent());
+            }
+        }
+        for (Path directory : directories) {
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+                forces.incrementAndGet();
+            } catch (IOException e) {
+                // Not every platform can force a directory; the file contents are durable anyway
+            }
+        }
+        batches.incrementAndGet();
+        for (Request request : batch) {
+            IOException failure = failures.get(request.target);
+            if (failure == null) {
+                request.durable.complete(null);
+            } else {
+                request.durable.completeExceptionally(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Durable small-file writes per second at several levels of concurrency: without any force
+ * (what dfs.durableWrites=false gives), with a force after every write, and through
+ * GroupCommit to plain files and to a SegmentStore. Every writer has its own files and
+ * overwrites them in turn. Point it at the disk the servers use; on tmpfs a force is free.
+ * Usage: GroupCommitBenchmark [directory] [fileBytes] [secondsPerRun] [windowMicros]
+ */
+public class GroupCommitBenchmark {
+    private static final int[] THREADS = {1, 4, 16, 64};
+    private static final int FILES_PER_WRITER = 64;
+    private static final int FORCE_THREADS = 8;
+
+    private interface Writer {
+        void write(String fileName, Path path, byte[] content) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path parent = Path.of(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        int fileBytes = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        long windowMicros = args.length > 3 ? Long.parseLong(args[3]) : 0;
+
+        byte[] content = new byte[fileBytes];
+        new Random(1).nextBytes(content);
+        Path root = Files.createTempDirectory(parent, "group-commit-benchmark");
+        try {
+            System.out.printf("%d byte writes in %s, %d s per run, %d us group commit window%n", fileBytes, root, seconds, windowMicros);
+            System.out.printf("%-15s %7s %10s %9s %9s%n", "mode", "threads", "writes/s", "avg ms", "avgBatch");
+            for (int threads : THREADS) {
+                run("no force", threads, root.resolve("none-" + threads), content, seconds, null,
+                        (fileName, path, data) -> Files.write(path, data));
+                run("force each", threads, root.resolve("each-" + threads), content, seconds, null,
+                        (fileName, path, data) -> {
+                            Files.write(path, data);
+                            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                                channel.force(true);
+                            }
+                        });
+                try (GroupCommit commit = new GroupCommit(windowMicros, FORCE_THREADS)) {
+                    run("group files", threads, root.resolve("files-" + threads), content, seconds, commit,
+                            (fileName, path, data) -> {
+                                Files.write(path, data);
+                                commit.sync(GroupCommit.file(path));
+                            });
+                }
+                Path segmentDirectory = root.resolve("segments-" + threads);
+                try (GroupCommit commit = new GroupCommit(windowMicros, FORCE_THREADS);
+                     SegmentStore segments = new SegmentStore(segmentDirectory.toFile(), 64L * 1024 * 1024)) {
+                    run("group segments", threads, segmentDirectory, content, seconds, commit,
+                            (fileName, path, data) -> {
+                                segments.put(fileName, data);
+                                commit.sync(segments);
+                            });
+                }
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static void run(String mode, int threads, Path directory, byte[] content, int seconds, GroupCommit commit,
+                            Writer writer) throws Exception {
+        Files.createDirectories(directory);
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong writes = new AtomicLong();
+        AtomicLong latencyNanos = new AtomicLong();
+        List<Throwable> failures = new ArrayList<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int writerId = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; !stop.get(); i++) {
+                        String fileName = "writer-" + writerId + "-" + (i % FILES_PER_WRITER);
+                        long start = System.nanoTime();
+                        writer.write(fileName, directory.resolve(fileName), content);
+                        latencyNanos.addAndGet(System.nanoTime() - start);
+                        writes.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            writers.add(thread);
+            thread.start();
+        }
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException(mode + " failed", failures.get(0));
+        }
+        long count = writes.get();
+        String batch = commit == null ? "-" : String.format("%.1f", commit.averageBatch());
+        System.out.printf("%-15s %7d %10.0f %9.2f %9s%n", mode, threads, count / elapsed,
+                count == 0 ? 0 : latencyNanos.get() / 1e6 / count, batch);
+    }
+}
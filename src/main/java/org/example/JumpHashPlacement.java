@@ -0,0 +1,35 @@
+package org.example;
+
+import java.util.*;
+
+/**
+ * Jump consistent hash (Lamping and Veach) over the candidates sorted by id. It needs no
+ * memory and is very fast, but it only moves the minimum number of files when servers are
+ * added at the end of the order, so it suits clusters whose ids sort in join order.
+ * Further replicas are drawn from the remaining servers with a rehashed key.
+ */
+public class JumpHashPlacement implements PlacementStrategy {
+
+    @Override
+    public List<String> select(String fileName, Map<String, Integer> candidates, int count) {
+        List<String> remaining = new ArrayList<>(new TreeSet<>(candidates.keySet()));
+        List<String> selected = new ArrayList<>(Math.min(count, remaining.size()));
+        long key = Murmur3.hash64(fileName);
+        while (selected.size() < count && !remaining.isEmpty()) {
+            selected.add(remaining.remove(jumpHash(key, remaining.size())));
+            key = Murmur3.fmix(key + 0x9e3779b97f4a7c15L);
+        }
+        return selected;
+    }
+
+    static int jumpHash(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+}
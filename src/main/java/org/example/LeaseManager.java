@@ -0,0 +1,161 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write leases granted from memory by the server that owns a file. A lease lasts ttlMillis
+ * and its holder renews it while the write session is open, so a holder that dies only locks
+ * the file until the TTL runs out. Every grant gets a fencing token that is larger than any
+ * token granted before it, by this server or any other: tokens are epoch * 2^32 + counter,
+ * and each grantor takes a fresh epoch from the store with check-and-set when it starts
+ * granting. An update is applied only while its session's token is still the current one.
+ *
+ * The store keeps leases for failover only. Grants, renewals and releases are written to it
+ * in the background; a server that starts granting for a file reads the lease it left there
+ * once, so a holder keeps a lease it got from the previous owner.
+ */
+final class LeaseManager {
+
+    interface Store {
+        // A number larger than any epoch handed out before
+        long nextEpoch() throws IOException;
+
+        // The lease last saved for fileName, or null
+        Lease load(String fileName) throws IOException;
+
+        // Records fileName's lease in the background; lease is null once token was released
+        void save(String fileName, long token, Lease lease);
+    }
+
+    static final class Lease {
+        final String holder;
+        final long token;
+        final long expiresAt;
+
+        Lease(String holder, long token, long expiresAt) {
+            this.holder = holder;
+            this.token = token;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isHeldBy(String holder, long token) {
+            return this.holder.equals(holder) && this.token == token;
+        }
+    }
+
+    private static final long TOKENS_PER_EPOCH = 1L << 32;
+
+    private final long ttlMillis;
+    private final Store store;
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final Set<String> loaded = ConcurrentHashMap.newKeySet();
+    private final Object loadLock = new Object();
+    private long counter;
+    private volatile long epoch = -1; // volatile for metrics(), tokens are handed out under the lock
+    private final AtomicLong grants = new AtomicLong();
+    private final AtomicLong refusals = new AtomicLong();
+    private final AtomicLong renewals = new AtomicLong();
+    private final AtomicLong grantNanos = new AtomicLong();
+
+    LeaseManager(long ttlMillis, Store store) {
+        this.ttlMillis = ttlMillis;
+        this.store = store;
+    }
+
+    long ttlMillis() {
+        return ttlMillis;
+    }
+
+    // The lease in force on fileName afterwards; it is holder's if the file was free
+    Lease acquire(String fileName, String holder) throws IOException {
+        long start = System.nanoTime();
+        load(fileName);
+        long token = nextToken();
+        long now = System.currentTimeMillis();
+        Lease lease = leases.compute(fileName, (name, current) ->
+                current != null && current.expiresAt > now ? current : new Lease(holder, token, now + ttlMillis));
+        if (lease.token == token) {
+            store.save(fileName, token, lease);
+            grants.incrementAndGet();
+            grantNanos.addAndGet(System.nanoTime() - start);
+        } else {
+            refusals.incrementAndGet(); // the token is skipped, tokens only have to increase
+        }
+        return lease;
+    }
+
+    // Extends holder's lease; returns the lease in force, which is not holder's if it was lost
+    Lease renew(String fileName, String holder, long token) throws IOException {
+        load(fileName);
+        long now = System.currentTimeMillis();
+        Lease lease = leases.computeIfPresent(fileName, (name, current) ->
+                current.isHeldBy(holder, token) && current.expiresAt > now ? new Lease(holder, token, now + ttlMillis) : current);
+        if (lease != null && lease.isHeldBy(holder, token)) {
+            store.save(fileName, token, lease);
+            renewals.incrementAndGet();
+        }
+        return lease;
+    }
+
+    // Ends holder's lease if it still has it; returns the lease in force, or null
+    Lease release(String fileName, String holder, long token) throws IOException {
+        load(fileName);
+        boolean[] released = new boolean[1];
+        Lease lease = leases.computeIfPresent(fileName, (name, current) -> {
+            released[0] = current.isHeldBy(holder, token);
+            return released[0] ? null : current;
+        });
+        if (released[0]) {
+            store.save(fileName, token, null);
+        }
+        return lease;
+    }
+
+    // The unexpired lease on fileName, or null if anyone may write it
+    Lease current(String fileName) throws IOException {
+        load(fileName);
+        Lease lease = leases.get(fileName);
+        return lease != null && lease.expiresAt > System.currentTimeMillis() ? lease : null;
+    }
+
+    // The file is gone; a file created again under its name starts without a lease
+    void forget(String fileName) {
+        leases.remove(fileName);
+    }
+
+    String metrics() {
+        long granted = grants.get();
+        return "leases held=" + leases.size() + " grants=" + granted + " refusals=" + refusals.get()
+                + " renewals=" + renewals.get() + " epoch=" + epoch
+                + String.format(" avgGrantUs=%.1f", granted == 0 ? 0 : grantNanos.get() / 1e3 / granted);
+    }
+
+    private synchronized long nextToken() throws IOException {
+        if (epoch < 0 || counter == TOKENS_PER_EPOCH - 1) {
+            epoch = store.nextEpoch();
+            counter = 0;
+        }
+        return epoch * TOKENS_PER_EPOCH + ++counter;
+    }
+
+    // Picks up the lease another server granted before this one owned the file; once per file
+    private void load(String fileName) throws IOException {
+        if (loaded.contains(fileName)) {
+            return;
+        }
+        synchronized (loadLock) {
+            if (loaded.contains(fileName)) {
+                return;
+            }
+            Lease persisted = store.load(fileName);
+            if (persisted != null && persisted.expiresAt > System.currentTimeMillis()) {
+                leases.putIfAbsent(fileName, persisted);
+            }
+            loaded.add(fileName);
+        }
+    }
+}
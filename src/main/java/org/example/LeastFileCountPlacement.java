@@ -0,0 +1,20 @@
+package org.example;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * The original policy: the servers currently holding the fewest files.
+ */
+public class LeastFileCountPlacement implements PlacementStrategy {
+
+    @Override
+    public List<String> select(String fileName, Map<String, Integer> candidates, int count) {
+        return candidates.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().thenComparing(Map.Entry.comparingByKey()))
+                .limit(count)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+}
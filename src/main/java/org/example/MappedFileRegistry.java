@@ -0,0 +1,102 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only memory mappings of local files, shared by every OPEN session on the same file.
+ * A file is mapped when its first session opens it and dropped when the last one closes.
+ * Writers call invalidate() after changing a file; sessions holding the old mapping see it
+ * marked stale and acquire a fresh one before their next read.
+ */
+final class MappedFileRegistry {
+    // A single MappedByteBuffer is int-indexed, so larger files are mapped in regions
+    static final long REGION_SIZE = 1L << 30;
+
+    static final class Mapping {
+        final String fileName;
+        final long size;
+        private final MappedByteBuffer[] regions;
+        private int sessions;
+        private volatile boolean stale;
+
+        private Mapping(String fileName, long size, MappedByteBuffer[] regions) {
+            this.fileName = fileName;
+            this.size = size;
+            this.regions = regions;
+        }
+
+        boolean isStale() {
+            return stale;
+        }
+
+        // A view of [offset, offset + length); only a read that spans two regions is copied
+        ByteBuffer slice(long offset, int length) {
+            if (length == 0) {
+                return ByteBuffer.allocate(0); // offset may be the end of the file, past the last region
+            }
+            int region = (int) (offset / REGION_SIZE);
+            int position = (int) (offset % REGION_SIZE);
+            ByteBuffer view = regions[region].duplicate();
+            if (position + length <= view.capacity()) {
+                view.limit(position + length).position(position);
+                return view.slice();
+            }
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            view.position(position);
+            copy.put(view);
+            ByteBuffer next = regions[region + 1].duplicate();
+            next.limit(length - (view.capacity() - position));
+            copy.put(next);
+            copy.flip();
+            return copy;
+        }
+    }
+
+    private final Map<String, Mapping> mappings = new HashMap<>();
+
+    synchronized Mapping acquire(String fileName, File file) throws IOException {
+        Mapping mapping = mappings.get(fileName);
+        if (mapping == null) {
+            mapping = map(fileName, file);
+            mappings.put(fileName, mapping);
+        }
+        mapping.sessions++;
+        return mapping;
+    }
+
+    synchronized void release(Mapping mapping) {
+        if (--mapping.sessions == 0 && mappings.get(mapping.fileName) == mapping) {
+            mappings.remove(mapping.fileName); // unmapped once the buffers are collected
+        }
+    }
+
+    synchronized void invalidate(String fileName) {
+        Mapping mapping = mappings.remove(fileName);
+        if (mapping != null) {
+            mapping.stale = true;
+        }
+    }
+
+    synchronized int size() {
+        return mappings.size();
+    }
+
+    private static Mapping map(String fileName, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer[] regions = new MappedByteBuffer[(int) Math.max(1, (size + REGION_SIZE - 1) / REGION_SIZE)];
+            for (int i = 0; i < regions.length; i++) {
+                long position = i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, size - position));
+            }
+            return new Mapping(fileName, size, regions);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package org.example;
+
+import com.orbitz.consul.ConsulException;
+import com.orbitz.consul.KeyValueClient;
+import com.orbitz.consul.model.kv.Operation;
+import com.orbitz.consul.model.kv.TxResponse;
+import com.orbitz.consul.model.kv.Value;
+import com.orbitz.consul.model.kv.Verb;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Groups metadata writes into Consul /v1/txn calls. Every write of one logical operation
+ * (file metadata, replica list, per-server file counts) goes into one Batch, and batches
+ * that arrive within windowMillis of each other are merged into a single transaction, the
+ * window closing early once the next batch would take it past Consul's operation limit.
+ * Entries that are read-modify-written, file metadata and file counts, are read in one
+ * transaction and written back with check-and-set against the modify index they were read
+ * at; on a conflict they are read again and the change reapplied, so concurrent updates from
+ * different servers are never lost.
+ */
+public class MetadataBatcher {
+    private static final Logger logger = LoggerFactory.getLogger(MetadataBatcher.class);
+    static final int MAX_OPS_PER_TXN = 64; // Consul's limit for one transaction
+    static final int MAX_CAS_RETRIES = 10;
+    static final long COMMIT_TIMEOUT_SECONDS = 30;
+
+    interface CounterUpdater {
+        // Returns the new JSON for a server-info entry after adding delta to its file count
+        String apply(String currentJson, int delta);
+    }
+
+    interface MetadataUpdater {
+        // Returns the new JSON for an entry given its current JSON (null if there is none), or
+        // null to leave it as it is. May run more than once if the transaction conflicts.
+        String apply(String currentJson);
+    }
+
+    interface CommitListener {
+        // Called for every key written (json != null), with the modify index Consul gave the
+        // write, or deleted (json == null, index 0) by a transaction
+        void committed(String key, String json, long modifyIndex);
+    }
+
+    /**
+     * The metadata writes of one logical operation.
+     */
+    static class Batch {
+        final Map<String, MetadataUpdater> updates = new LinkedHashMap<>();
+        final Set<String> deletes = new LinkedHashSet<>();
+        final Map<String, Integer> fileCountDeltas = new LinkedHashMap<>();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        // Replaces whatever the entry holds when the transaction commits
+        Batch put(String key, String json) {
+            return update(key, current -> json);
+        }
+
+        Batch update(String key, MetadataUpdater updater) {
+            deletes.remove(key);
+            updates.merge(key, updater, MetadataBatcher::andThen);
+            return this;
+        }
+
+        Batch delete(String key) {
+            updates.remove(key);
+            deletes.add(key);
+            return this;
+        }
+
+        Batch adjustFileCount(String serverId, int delta) {
+            fileCountDeltas.merge(serverId, delta, Integer::sum);
+            return this;
+        }
+
+        int operationCount() {
+            return updates.size() + deletes.size() + fileCountDeltas.size();
+        }
+
+        boolean isEmpty() {
+            return operationCount() == 0;
+        }
+    }
+
+    private final KeyValueClient kvClient;
+    private final long windowMillis;
+    private final CounterUpdater counterUpdater;
+    private final CommitListener commitListener;
+    private final BlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+
+    public MetadataBatcher(KeyValueClient kvClient, long windowMillis, CounterUpdater counterUpdater, CommitListener commitListener) {
+        this.kvClient = kvClient;
+        this.windowMillis = windowMillis;
+        this.counterUpdater = counterUpdater;
+        this.commitListener = commitListener;
+        Thread flusher = new Thread(this::flushLoop, "metadata-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // A batch is one transaction, so it is never split: one larger than Consul allows is refused
+    CompletableFuture<Void> submit(Batch batch) {
+        if (batch.isEmpty()) {
+            batch.done.complete(null);
+        } else if (batch.operationCount() > MAX_OPS_PER_TXN) {
+            batch.done.completeExceptionally(new IllegalArgumentException("Metadata batch of " + batch.operationCount()
+                    + " operations exceeds the " + MAX_OPS_PER_TXN + " operation transaction limit"));
+        } else {
+            queue.add(batch);
+        }
+        return batch.done;
+    }
+
+    // Submits the batch and waits until its transaction has committed
+    boolean commit(Batch batch) {
+        try {
+            submit(batch).get(COMMIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            logger.error("Metadata transaction failed: " + e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            logger.error("Metadata transaction timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            List<Batch> group = new ArrayList<>();
+            try {
+                Batch first = queue.take();
+                group.add(first);
+                int operations = first.operationCount();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                while (operations < MAX_OPS_PER_TXN) {
+                    Batch next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    if (operations + next.operationCount() > MAX_OPS_PER_TXN) {
+                        flush(group);
+                        group = new ArrayList<>();
+                        operations = 0;
+                    }
+                    group.add(next);
+                    operations += next.operationCount();
+                }
+                flush(group);
+            } catch (InterruptedException e) {
+                group.forEach(batch -> batch.done.completeExceptionally(e));
+                return;
+            } catch (RuntimeException e) {
+                group.forEach(batch -> batch.done.completeExceptionally(e));
+            }
+        }
+    }
+
+    private void flush(List<Batch> group) {
+        // Updates of the same key apply in batch order, a delete drops earlier ones, file count
+        // deltas add up
+        Map<String, MetadataUpdater> updates = new LinkedHashMap<>();
+        Set<String> deletes = new LinkedHashSet<>();
+        Map<String, Integer> deltas = new LinkedHashMap<>();
+        for (Batch batch : group) {
+            batch.deletes.forEach(key -> {
+                updates.remove(key);
+                deletes.add(key);
+            });
+            batch.updates.forEach((key, updater) -> {
+                deletes.remove(key);
+                updates.merge(key, updater, MetadataBatcher::andThen);
+            });
+            batch.fileCountDeltas.forEach((serverId, delta) -> deltas.merge(serverId, delta, Integer::sum));
+        }
+
+        try {
+            execute(updates, deletes, deltas);
+            group.forEach(batch -> batch.done.complete(null));
+        } catch (RuntimeException e) {
+            group.forEach(batch -> batch.done.completeExceptionally(e));
+        }
+    }
+
+    private void execute(Map<String, MetadataUpdater> updates, Set<String> deletes, Map<String, Integer> deltas) {
+        List<String> reads = new ArrayList<>(updates.keySet());
+        deltas.forEach((serverId, delta) -> {
+            if (delta != 0) {
+                reads.add("server-info/" + serverId);
+            }
+        });
+        for (int attempt = 1; ; attempt++) {
+            List<Operation> operations = new ArrayList<>();
+            Map<String, String> written = new LinkedHashMap<>();
+
+            // Every write is guarded by the index its entry was read at; index 0 means absent
+            Map<String, Value> current = readEntries(reads);
+            updates.forEach((key, updater) -> {
+                Value value = current.get(key);
+                String json = updater.apply(value != null ? value.getValueAsString().orElse(null) : null);
+                if (json != null) {
+                    written.put(key, json);
+                    operations.add(checkAndSet(key, json, value));
+                }
+            });
+            for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+                String key = "server-info/" + delta.getKey();
+                Value value = current.get(key);
+                if (delta.getValue() == 0 || value == null || !value.getValueAsString().isPresent()) {
+                    continue;
+                }
+                String json = counterUpdater.apply(value.getValueAsString().get(), delta.getValue());
+                written.put(key, json);
+                operations.add(checkAndSet(key, json, value));
+            }
+            deletes.forEach(key -> operations.add(Operation.builder(Verb.DELETE).key(key).build()));
+
+            Map<String, Long> modifyIndexes = new HashMap<>();
+            try {
+                // Groups are capped at MAX_OPS_PER_TXN when merged, so all of it commits or none does
+                TxResponse response = kvClient.performTransaction(operations.toArray(new Operation[0])).getResponse();
+                for (Map<String, Value> result : response.results()) {
+                    Value value = result.get("KV");
+                    if (value != null) {
+                        modifyIndexes.put(value.getKey(), value.getModifyIndex());
+                    }
+                }
+            } catch (ConsulException e) {
+                if (e.getCode() == 409 && attempt < MAX_CAS_RETRIES) {
+                    logger.info("Metadata transaction conflict, retrying (attempt " + attempt + ")");
+                    continue;
+                }
+                throw e;
+            }
+
+            written.forEach((key, json) -> commitListener.committed(key, json, modifyIndexes.getOrDefault(key, 0L)));
+            deletes.forEach(key -> commitListener.committed(key, null, 0));
+            return;
+        }
+    }
+
+    // Reads every entry in one read-only transaction. A missing key fails the whole
+    // transaction, in which case we fall back to reading them one by one.
+    private Map<String, Value> readEntries(List<String> keys) {
+        Map<String, Value> entries = new HashMap<>();
+        if (keys.isEmpty()) {
+            return entries;
+        }
+        List<Operation> reads = new ArrayList<>();
+        keys.forEach(key -> reads.add(Operation.builder(Verb.GET).key(key).build()));
+        try {
+            TxResponse response = kvClient.performTransaction(reads.toArray(new Operation[0])).getResponse();
+            for (Map<String, Value> result : response.results()) {
+                Value value = result.get("KV");
+                if (value != null) {
+                    entries.put(value.getKey(), value);
+                }
+            }
+        } catch (ConsulException e) {
+            for (String key : keys) {
+                kvClient.getValue(key).ifPresent(value -> entries.put(key, value));
+            }
+        }
+        return entries;
+    }
+
+    private static Operation checkAndSet(String key, String json, Value readAt) {
+        long index = readAt != null ? readAt.getModifyIndex() : 0;
+        return Operation.builder(Verb.CHECK_AND_SET).key(key).value(encode(json)).index(BigInteger.valueOf(index)).build();
+    }
+
+    // An update of a key that earlier updates in the same transaction already changed
+    private static MetadataUpdater andThen(MetadataUpdater first, MetadataUpdater then) {
+        return current -> {
+            String json = first.apply(current);
+            String next = then.apply(json != null ? json : current);
+            return next != null ? next : json;
+        };
+    }
+
+    private static String encode(String json) {
+        return Base64.getEncoder().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,99 @@
+package org.example;
+
+/**
+ * MurmurHash3 x64_128 (first 64 bits) over the UTF-16LE code units of a string.
+ * Works on the chars directly so hashing a key does not allocate.
+ */
+final class Murmur3 {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private Murmur3() {
+    }
+
+    static long hash64(CharSequence key) {
+        return hash64(key, 0);
+    }
+
+    static long hash64(CharSequence key, long seed) {
+        int length = key.length();
+        long h1 = seed;
+        long h2 = seed;
+
+        // 16-byte blocks = 8 chars
+        int blocks = length / 8;
+        for (int block = 0; block < blocks; block++) {
+            int i = block * 8;
+            long k1 = chars(key, i);
+            long k2 = chars(key, i + 4);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks * 8;
+        int remaining = length - tail;
+        long k1 = 0;
+        long k2 = 0;
+        for (int j = 0; j < remaining; j++) {
+            long c = key.charAt(tail + j);
+            if (j < 4) {
+                k1 |= c << (16 * j);
+            } else {
+                k2 |= c << (16 * (j - 4));
+            }
+        }
+        if (remaining > 4) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+        if (remaining > 0) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        long byteLength = 2L * length;
+        h1 ^= byteLength;
+        h2 ^= byteLength;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    // Four chars as one little-endian long
+    private static long chars(CharSequence key, int i) {
+        return (long) key.charAt(i)
+                | (long) key.charAt(i + 1) << 16
+                | (long) key.charAt(i + 2) << 32
+                | (long) key.charAt(i + 3) << 48;
+    }
+
+    static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,59 @@
+package org.example;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Frame opcodes for the multiplexed protocol. Each one maps onto one of the writeUTF command
+ * strings handled by FileServer, so the command set is the same on both transports.
+ * Commands that stream until EOF or hold an interactive session (UPLOAD, REPLICATE, WRITE,
+ * OPEN) or carry a whole file (UPDATE_REPLICA) are not multiplexable and still need a
+ * dedicated connection. CODECS is answered by
+ * the connection itself, before any other frame, rather than by the frame pool.
+ */
+public enum Opcode {
+    CREATE(1, "CREATE", true),
+    UPLOAD(2, "UPLOAD", false),
+    REPLICATE(3, "REPLICATE", false),
+    READ(4, "READ", true),
+    WRITE(5, "WRITE", false),
+    READFROMSERVER(6, "READFROMSERVER", true),
+    EDITED_CONTENT(7, "EDITED_CONTENT", true),
+    UPDATE_REPLICA(8, "UPDATE_REPLICA", false),
+    DELETE(9, "DELETE", true),
+    DELETE_REPLICA(10, "DELETE_REPLICA", true),
+    OPEN(11, "OPEN", false),
+    REPLICATE_CHAIN(12, "REPLICATE_CHAIN", false),
+    READ_RANGE(13, "READ_RANGE", true),
+    READ_CONDITIONAL(14, "READ_CONDITIONAL", true),
+    BLOCKS(15, "BLOCKS", true),
+    DELTA_REPLICA(16, "DELTA_REPLICA", true),
+    CODECS(17, "CODECS", false),
+    LOCATE(18, "LOCATE", true),
+    LEASE(19, "LEASE", true),
+    APPEND(20, "APPEND", true),
+    APPEND_REPLICA(21, "APPEND_REPLICA", true),
+    ERROR(127, "ERROR", false);
+
+    private static final Map<Byte, Opcode> BY_CODE = new HashMap<>();
+
+    static {
+        for (Opcode opcode : values()) {
+            BY_CODE.put(opcode.code, opcode);
+        }
+    }
+
+    final byte code;
+    final String command;
+    final boolean multiplexable;
+
+    Opcode(int code, String command, boolean multiplexable) {
+        this.code = (byte) code;
+        this.command = command;
+        this.multiplexable = multiplexable;
+    }
+
+    static Opcode fromCode(byte code) {
+        return BY_CODE.get(code);
+    }
+}
@@ -0,0 +1,29 @@
+package org.example;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the servers that hold replicas of a file. Candidates map each eligible (active,
+ * not excluded) server id to its current file count. Strategies that ignore the counts are
+ * deterministic in the file name and the candidate set, so placement can be recomputed
+ * later without reading metadata.
+ */
+public interface PlacementStrategy {
+
+    // Returns up to count server ids, most preferred first
+    List<String> select(String fileName, Map<String, Integer> candidates, int count);
+
+    static PlacementStrategy create(String name) {
+        switch (name) {
+            case "leastFileCount":
+                return new LeastFileCountPlacement();
+            case "rendezvous":
+                return new RendezvousPlacement();
+            case "jump":
+                return new JumpHashPlacement();
+            default:
+                throw new IllegalArgumentException("Unknown placement strategy: " + name);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Copies of files this server does not hold, fetched to serve reads for them. They live in
+ * their own directory, apart from the primary and replica data, under a byte budget that is
+ * enforced on every insert by evicting the least recently used copies.
+ *
+ * Each copy remembers the metadata version it was fetched for and is only served while the
+ * file's metadata still has that version, so an update anywhere makes the next read refetch.
+ * Concurrent misses on the same file share one fetch. Readers pin a copy while they stream
+ * it; an evicted or replaced copy is deleted once its last reader releases it.
+ */
+final class ProxyFileCache {
+
+    interface Fetcher {
+        // Writes the file's current contents to target
+        void fetch(File target) throws IOException;
+    }
+
+    static final class Entry {
+        final String fileName;
+        final File file;
+        final long version;
+        private long size;
+        private int readers;
+        private boolean retired;
+        private boolean deleted;
+
+        private Entry(String fileName, File file, long version) {
+            this.fileName = fileName;
+            this.file = file;
+            this.version = version;
+        }
+    }
+
+    private final File directory;
+    private final long capacityBytes;
+    private final Consumer<String> onRetired;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Entry>> fetches = new ConcurrentHashMap<>();
+    private final AtomicLong nextFileId = new AtomicLong();
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long sharedFetches;
+    private long evictions;
+
+    // onRetired is told when a copy stops being served, so views derived from it can be dropped
+    ProxyFileCache(File directory, long capacityBytes, Consumer<String> onRetired) {
+        this.directory = directory;
+        this.capacityBytes = capacityBytes;
+        this.onRetired = onRetired;
+        // Copies left by a previous run have unknown versions
+        File[] stale = directory.listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+        directory.mkdirs();
+    }
+
+    // A pinned copy of fileName at version, fetched if needed; release it when done reading
+    Entry acquire(String fileName, long version, Fetcher fetcher) throws IOException {
+        while (true) {
+            synchronized (this) {
+                Entry entry = entries.get(fileName);
+                if (entry != null && entry.version == version) {
+                    hits++;
+                    entry.readers++;
+                    return entry;
+                }
+            }
+            String key = fileName + "@" + version;
+            CompletableFuture<Entry> fetch = new CompletableFuture<>();
+            CompletableFuture<Entry> running = fetches.putIfAbsent(key, fetch);
+            if (running == null) {
+                try {
+                    Entry entry = load(fileName, version, fetcher);
+                    fetch.complete(entry);
+                    return entry; // load pinned it for us
+                } catch (IOException | RuntimeException e) {
+                    fetch.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    fetches.remove(key, fetch);
+                }
+            }
+            Entry entry = await(running);
+            synchronized (this) {
+                sharedFetches++;
+                if (!entry.deleted) {
+                    entry.readers++;
+                    return entry;
+                }
+            }
+            // Evicted before we could pin it, go around again
+        }
+    }
+
+    synchronized void release(Entry entry) {
+        entry.readers--;
+        deleteIfUnused(entry);
+    }
+
+    synchronized void invalidate(String fileName) {
+        Entry entry = entries.get(fileName);
+        if (entry != null) {
+            retire(entry);
+        }
+    }
+
+    synchronized String metrics() {
+        return "proxyCache entries=" + entries.size() + " bytes=" + bytes + " capacity=" + capacityBytes
+                + " hits=" + hits + " misses=" + misses + " sharedFetches=" + sharedFetches + " evictions=" + evictions;
+    }
+
+    private Entry load(String fileName, long version, Fetcher fetcher) throws IOException {
+        Entry entry = new Entry(fileName, new File(directory, nextFileId.incrementAndGet() + ".copy"), version);
+        synchronized (this) {
+            misses++;
+        }
+        try {
+            fetcher.fetch(entry.file);
+        } catch (IOException | RuntimeException e) {
+            entry.file.delete();
+            throw e;
+        }
+        synchronized (this) {
+            entry.size = entry.file.length();
+            entry.readers = 1;
+            Entry previous = entries.get(fileName);
+            if (previous != null) {
+                retire(previous);
+            }
+            if (entry.size > capacityBytes) {
+                entry.retired = true; // served to the readers waiting for it, then dropped
+                return entry;
+            }
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes + entry.size > capacityBytes && eldest.hasNext()) {
+                Entry victim = eldest.next();
+                eldest.remove();
+                evictions++;
+                retireRemoved(victim);
+            }
+            entries.put(fileName, entry);
+            bytes += entry.size;
+            return entry;
+        }
+    }
+
+    private void retire(Entry entry) {
+        entries.remove(entry.fileName, entry);
+        retireRemoved(entry);
+    }
+
+    private void retireRemoved(Entry entry) {
+        if (entry.retired) {
+            return;
+        }
+        entry.retired = true;
+        bytes -= entry.size;
+        onRetired.accept(entry.fileName);
+        deleteIfUnused(entry);
+    }
+
+    private void deleteIfUnused(Entry entry) {
+        if (entry.retired && entry.readers == 0 && !entry.deleted) {
+            entry.deleted = true;
+            entry.file.delete();
+        }
+    }
+
+    private static Entry await(CompletableFuture<Entry> fetch) throws IOException {
+        try {
+            return fetch.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException("Interrupted waiting for a shared fetch");
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.example;
+
+import java.util.*;
+
+/**
+ * Highest random weight hashing: every server gets a pseudo-random score for the file and
+ * the top scores win. Removing a server only moves the files it held.
+ */
+public class RendezvousPlacement implements PlacementStrategy {
+
+    @Override
+    public List<String> select(String fileName, Map<String, Integer> candidates, int count) {
+        long fileHash = Murmur3.hash64(fileName);
+        List<String> servers = new ArrayList<>(candidates.keySet());
+        long[] scores = new long[servers.size()];
+        Integer[] order = new Integer[servers.size()];
+        for (int i = 0; i < servers.size(); i++) {
+            scores[i] = Murmur3.hash64(servers.get(i), fileHash);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> scores[a] != scores[b]
+                ? Long.compare(scores[b], scores[a])
+                : servers.get(a).compareTo(servers.get(b)));
+
+        List<String> selected = new ArrayList<>(Math.min(count, servers.size()));
+        for (int i = 0; i < order.length && selected.size() < count; i++) {
+            selected.add(servers.get(order[i]));
+        }
+        return selected;
+    }
+}
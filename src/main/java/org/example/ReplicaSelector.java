@@ -0,0 +1,128 @@
+package org.example;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Orders the holders of a file for reading by how fast they have been answering lately.
+ * Each server's score is an EWMA of its time to first byte, scaled by the requests we have
+ * outstanding to it. The first choice is the better of two servers picked at random (power
+ * of two choices), so a briefly fast server doesn't attract every read at once; the rest
+ * follow by score, as fallbacks and hedge targets.
+ *
+ * It also keeps the recent latencies of all servers to derive the hedging delay: a read that
+ * has not started answering by the p95 is worth a second request elsewhere.
+ */
+final class ReplicaSelector {
+    private static final double ALPHA = 0.2;
+    private static final int SAMPLES = 512;
+    private static final int RECOMPUTE_EVERY = 64;
+    // A failed request counts as this slow, so the server drops down the order until it recovers
+    private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final class Stats {
+        volatile double ewmaNanos = -1; // -1 until the first sample, which makes new servers get tried
+        final AtomicInteger inFlight = new AtomicInteger();
+    }
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    private final long minHedgeDelayNanos;
+    private final long[] samples = new long[SAMPLES];
+    private long sampleCount;
+    private volatile long hedgeDelayNanos;
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    ReplicaSelector(long minHedgeDelayMillis) {
+        this.minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(minHedgeDelayMillis);
+        this.hedgeDelayNanos = minHedgeDelayNanos;
+    }
+
+    List<String> order(List<String> holders) {
+        List<String> ordered = new ArrayList<>(holders);
+        Collections.shuffle(ordered, ThreadLocalRandom.current()); // ties go to a random server
+        Map<String, Double> scores = new HashMap<>();
+        for (String serverId : ordered) {
+            scores.put(serverId, score(serverId)); // fixed for the sort, other threads keep updating
+        }
+        ordered.sort(Comparator.comparingDouble(scores::get));
+        if (ordered.size() > 2) {
+            // Power of two choices for the first pick, by score for the rest
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt(ordered.size());
+            int b = (a + 1 + random.nextInt(ordered.size() - 1)) % ordered.size();
+            String first = ordered.remove(Math.min(a, b));
+            ordered.add(0, first);
+        }
+        return ordered;
+    }
+
+    // Call before sending a request to serverId; returns the start time for finish()
+    long start(String serverId) {
+        stats(serverId).inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    void finish(String serverId, long startNanos, boolean succeeded) {
+        Stats server = stats(serverId);
+        server.inFlight.decrementAndGet();
+        long latency = succeeded ? System.nanoTime() - startNanos : FAILURE_PENALTY_NANOS;
+        double previous = server.ewmaNanos;
+        server.ewmaNanos = previous < 0 ? latency : previous + ALPHA * (latency - previous);
+        if (succeeded) {
+            sample(latency);
+        }
+    }
+
+    // For a request given up on before it answered; it says nothing about the server's speed
+    void abandon(String serverId) {
+        stats(serverId).inFlight.decrementAndGet();
+    }
+
+    long hedgeDelayNanos() {
+        return hedgeDelayNanos;
+    }
+
+    void hedged(boolean won) {
+        hedges.incrementAndGet();
+        if (won) {
+            hedgeWins.incrementAndGet();
+        }
+    }
+
+    String metrics() {
+        StringBuilder metrics = new StringBuilder("replicas hedgeDelayMs=")
+                .append(String.format("%.1f", hedgeDelayNanos / 1e6))
+                .append(" hedges=").append(hedges.get()).append(" hedgeWins=").append(hedgeWins.get());
+        stats.forEach((serverId, server) -> metrics.append(' ').append(serverId)
+                .append("{ewmaMs=").append(String.format("%.1f", Math.max(0, server.ewmaNanos) / 1e6))
+                .append(",inFlight=").append(server.inFlight.get()).append('}'));
+        return metrics.toString();
+    }
+
+    private double score(String serverId) {
+        Stats server = stats.get(serverId);
+        if (server == null || server.ewmaNanos < 0) {
+            return 0;
+        }
+        return server.ewmaNanos * (server.inFlight.get() + 1);
+    }
+
+    private Stats stats(String serverId) {
+        return stats.computeIfAbsent(serverId, id -> new Stats());
+    }
+
+    private synchronized void sample(long latency) {
+        samples[(int) (sampleCount % SAMPLES)] = latency;
+        sampleCount++;
+        if (sampleCount % RECOMPUTE_EVERY == 0) {
+            long[] recent = Arrays.copyOf(samples, (int) Math.min(sampleCount, SAMPLES));
+            Arrays.sort(recent);
+            hedgeDelayNanos = Math.max(minHedgeDelayNanos, recent[(int) (recent.length * 0.95)]);
+        }
+    }
+}
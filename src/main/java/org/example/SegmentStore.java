@@ -0,0 +1,336 @@
+package org.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small files appended to large segment files instead of one file each, so millions of them
+ * don't use millions of inodes and a read is one positional read on a channel that is
+ * already open. An in-memory index maps each name to its segment, offset and length; it is
+ * rebuilt at startup by scanning the segments oldest first, later records winning.
+ *
+ * Overwrites append a new record and deletes append a tombstone, leaving the old bytes dead.
+ * compact() copies the live records of sealed segments that are mostly dead into the active
+ * segment and deletes them. A tombstone is copied along while an older segment could still
+ * hold the record it deletes.
+ *
+ * Record format: UTF name, int length (-1 for a tombstone), int CRC32C of the data, data.
+ * A record cut short by a crash is dropped, with anything after it, when the store is opened.
+ * Appends are not forced to disk; force() does that for everything appended so far, which
+ * lets a GroupCommit cover many writers with one force.
+ */
+final class SegmentStore implements Closeable, GroupCommit.Target {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentStore.class);
+    private static final String SUFFIX = ".seg";
+    private static final int TOMBSTONE = -1;
+
+    private static final class Segment {
+        final long id;
+        final File file;
+        final FileChannel channel;
+        volatile long size;
+        final AtomicLong liveBytes = new AtomicLong();
+
+        Segment(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final long offset; // of the data, past the record header
+        final int length;
+        final int crc;
+
+        Location(Segment segment, long offset, int length, int crc) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    private final File directory;
+    private final long segmentBytes;
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Object appendLock = new Object();
+    private volatile Segment active; // replaced under appendLock
+    private final Set<Segment> unforced = new HashSet<>(); // guarded by appendLock
+    private boolean newSegments; // guarded by appendLock, whether the directory needs forcing
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    SegmentStore(File directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        if (!directory.exists() && !directory.mkdirs() && !directory.exists()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        List<Long> ids = new ArrayList<>();
+        for (File file : files != null ? files : new File[0]) {
+            ids.add(Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length())));
+        }
+        Collections.sort(ids);
+        for (long id : ids) {
+            Segment segment = new Segment(id, segmentFile(id));
+            segments.put(id, segment);
+            recover(segment);
+        }
+        active = segments.isEmpty() ? newSegment(1) : segments.lastEntry().getValue();
+    }
+
+    boolean contains(String name) {
+        return index.containsKey(name);
+    }
+
+    // The stored length, or -1 if name is not in the store
+    long size(String name) {
+        Location location = index.get(name);
+        return location != null ? location.length : -1;
+    }
+
+    // The file's content, or null if it is not in the store
+    byte[] read(String name) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Location location = index.get(name);
+            if (location == null) {
+                return null;
+            }
+            try {
+                byte[] data = new byte[location.length];
+                readFully(location.segment.channel, ByteBuffer.wrap(data), location.offset);
+                if (BlockChecksums.crc(data, 0, data.length) != location.crc) {
+                    throw new BlockChecksums.ChecksumException("Checksum mismatch in segment record of " + name, 0);
+                }
+                return data;
+            } catch (ClosedChannelException e) {
+                if (attempt == 2) {
+                    throw e;
+                }
+                // compacted away under us, the index already points at the copy
+            }
+        }
+    }
+
+    void put(String name, byte[] data) throws IOException {
+        synchronized (appendLock) {
+            append(name, data, data.length);
+        }
+    }
+
+    // Returns whether name was in the store
+    boolean delete(String name) throws IOException {
+        synchronized (appendLock) {
+            if (!index.containsKey(name)) {
+                return false;
+            }
+            append(name, null, TOMBSTONE);
+            return true;
+        }
+    }
+
+    // Makes every record appended before the call durable
+    @Override
+    public void force() throws IOException {
+        List<Segment> dirty;
+        boolean forceDirectory;
+        synchronized (appendLock) {
+            dirty = new ArrayList<>(unforced);
+            unforced.clear();
+            forceDirectory = newSegments;
+            newSegments = false;
+        }
+        for (Segment segment : dirty) {
+            if (segments.get(segment.id) == segment) { // compacted ones were forced before deletion
+                segment.channel.force(false);
+            }
+        }
+        if (forceDirectory) {
+            try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // Not every platform can force a directory
+            }
+        }
+    }
+
+    // Rewrites the sealed segments whose live bytes are below liveRatio of their size
+    void compact(double liveRatio) throws IOException {
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment == active || segment.liveBytes.get() >= segment.size * liveRatio) {
+                continue;
+            }
+            long before = segment.size;
+            long copied = copyLiveRecords(segment);
+            force(); // the copies must survive a crash before the originals go
+            segments.remove(segment.id);
+            segment.channel.close();
+            if (!segment.file.delete()) {
+                logger.error("Cannot delete compacted segment " + segment.file);
+            }
+            compactions.incrementAndGet();
+            reclaimedBytes.addAndGet(before - copied);
+            logger.info("Compacted segment " + segment.id + ": " + (before - copied) + " bytes reclaimed");
+        }
+    }
+
+    String metrics() {
+        long total = 0;
+        long live = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+            live += segment.liveBytes.get();
+        }
+        return "segments count=" + segments.size() + " files=" + index.size() + " bytes=" + total + " liveBytes=" + live
+                + " compactions=" + compactions.get() + " reclaimedBytes=" + reclaimedBytes.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+
+    // Caller holds appendLock; returns the bytes written
+    private long append(String name, byte[] data, int length) throws IOException {
+        if (active.size >= segmentBytes) {
+            active = newSegment(active.id + 1);
+        }
+        int crc = data != null ? BlockChecksums.crc(data, 0, length) : 0;
+        ByteArrayOutputStream record = new ByteArrayOutputStream(Math.max(0, length) + name.length() + 16);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeUTF(name);
+        out.writeInt(length);
+        out.writeInt(crc);
+        int header = out.size();
+        if (data != null) {
+            out.write(data, 0, length);
+        }
+        long position = active.size;
+        ByteBuffer buffer = ByteBuffer.wrap(record.toByteArray());
+        while (buffer.hasRemaining()) {
+            active.channel.write(buffer, position + buffer.position());
+        }
+        active.size = position + record.size();
+        unforced.add(active);
+
+        Location location = length == TOMBSTONE ? null : new Location(active, position + header, length, crc);
+        Location previous = location != null ? index.put(name, location) : index.remove(name);
+        if (previous != null) {
+            previous.segment.liveBytes.addAndGet(-previous.length);
+        }
+        if (location != null) {
+            active.liveBytes.addAndGet(length);
+        }
+        return record.size();
+    }
+
+    // Returns the bytes written to the active segment
+    private long copyLiveRecords(Segment segment) throws IOException {
+        long copied = 0;
+        boolean olderSegments = segments.lowerKey(segment.id) != null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)))) {
+            long position = 0;
+            while (position < segment.size) {
+                String name = in.readUTF();
+                int length = in.readInt();
+                int crc = in.readInt();
+                long dataOffset = position + 2 + utfLength(name) + 8;
+                byte[] data = length == TOMBSTONE ? null : new byte[length];
+                if (data != null) {
+                    in.readFully(data);
+                }
+                position = dataOffset + Math.max(0, length);
+                synchronized (appendLock) {
+                    Location current = index.get(name);
+                    if (data != null && current != null && current.segment == segment && current.offset == dataOffset) {
+                        if (BlockChecksums.crc(data, 0, length) != crc) {
+                            throw new BlockChecksums.ChecksumException("Checksum mismatch in segment record of " + name, 0);
+                        }
+                        copied += append(name, data, length);
+                    } else if (data == null && current == null && olderSegments) {
+                        copied += append(name, null, TOMBSTONE);
+                    }
+                }
+            }
+        }
+        return copied;
+    }
+
+    // Replays a segment into the index; a torn record at the end is cut off
+    private void recover(Segment segment) throws IOException {
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)))) {
+            while (position < segment.size) {
+                String name = in.readUTF();
+                int length = in.readInt();
+                int crc = in.readInt();
+                long dataOffset = position + 2 + utfLength(name) + 8;
+                if (length < TOMBSTONE || dataOffset + Math.max(0, length) > segment.size) {
+                    throw new EOFException();
+                }
+                in.skipNBytes(Math.max(0, length));
+                Location location = length == TOMBSTONE ? null : new Location(segment, dataOffset, length, crc);
+                Location previous = location != null ? index.put(name, location) : index.remove(name);
+                if (previous != null) {
+                    previous.segment.liveBytes.addAndGet(-previous.length);
+                }
+                if (location != null) {
+                    segment.liveBytes.addAndGet(length);
+                }
+                position = dataOffset + Math.max(0, length);
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            logger.error("Segment " + segment.id + " ends with a torn record at " + position + ", truncating");
+            segment.channel.truncate(position);
+            segment.size = position;
+        }
+    }
+
+    private Segment newSegment(long id) throws IOException {
+        Segment segment = new Segment(id, segmentFile(id));
+        segments.put(id, segment);
+        newSegments = true;
+        return segment;
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, String.format("%012d", id) + SUFFIX);
+    }
+
+    // Bytes writeUTF uses for name, after its two byte length
+    private static int utfLength(String name) {
+        int length = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+        }
+        return length;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Segment record ends early");
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Stores many small files one file each, the way Files/<serverId> does, and in a SegmentStore,
+ * and reports create, random read and delete rates for both, plus what compacting the
+ * segments costs once half the files are deleted. Run it on the disk the servers use; the
+ * per-file numbers depend heavily on the file system.
+ * Usage: SegmentStoreBenchmark [files] [fileBytes] [reads]
+ */
+public class SegmentStoreBenchmark {
+    // Smaller than the server's default, so even a modest run seals segments to compact
+    private static final long SEGMENT_BYTES = 8L * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int fileBytes = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int reads = args.length > 2 ? Integer.parseInt(args[2]) : 200_000;
+
+        byte[] content = new byte[fileBytes];
+        new Random(1).nextBytes(content);
+        Path root = Files.createTempDirectory("segment-benchmark");
+        try {
+            System.out.printf("%d files of %d bytes, %d random reads%n", files, fileBytes, reads);
+            System.out.printf("%-10s %12s %12s %12s%n", "layout", "create/s", "read/s", "delete/s");
+            perFile(root.resolve("files"), files, content, reads);
+            segments(root.resolve("segments"), files, content, reads);
+        } finally {
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static void perFile(Path directory, int files, byte[] content, int reads) throws IOException {
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        for (int i = 0; i < files; i++) {
+            Files.write(directory.resolve(name(i)), content);
+        }
+        long createNanos = System.nanoTime() - start;
+
+        Random random = new Random(2);
+        long bytes = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            bytes += Files.readAllBytes(directory.resolve(name(random.nextInt(files)))).length;
+        }
+        long readNanos = System.nanoTime() - start;
+        check(bytes, reads, content);
+
+        start = System.nanoTime();
+        for (int i = 0; i < files; i += 2) {
+            Files.delete(directory.resolve(name(i)));
+        }
+        long deleteNanos = System.nanoTime() - start;
+        print("per-file", files, createNanos, reads, readNanos, deleteNanos);
+    }
+
+    private static void segments(Path directory, int files, byte[] content, int reads) throws IOException {
+        long createNanos;
+        long readNanos;
+        long deleteNanos;
+        try (SegmentStore store = new SegmentStore(directory.toFile(), SEGMENT_BYTES)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < files; i++) {
+                store.put(name(i), content);
+            }
+            createNanos = System.nanoTime() - start;
+
+            Random random = new Random(2);
+            long bytes = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                bytes += store.read(name(random.nextInt(files))).length;
+            }
+            readNanos = System.nanoTime() - start;
+            check(bytes, reads, content);
+
+            start = System.nanoTime();
+            for (int i = 0; i < files; i += 2) {
+                store.delete(name(i));
+            }
+            deleteNanos = System.nanoTime() - start;
+            print("segments", files, createNanos, reads, readNanos, deleteNanos);
+
+            System.out.println("before compaction: " + store.metrics());
+            start = System.nanoTime();
+            store.compact(0.75);
+            System.out.printf("compaction took %.0f ms: %s%n", (System.nanoTime() - start) / 1e6, store.metrics());
+        }
+
+        long start = System.nanoTime();
+        try (SegmentStore reopened = new SegmentStore(directory.toFile(), SEGMENT_BYTES)) {
+            System.out.printf("reopening rebuilt the index in %.0f ms: %s%n", (System.nanoTime() - start) / 1e6, reopened.metrics());
+        }
+    }
+
+    private static void print(String layout, int files, long createNanos, int reads, long readNanos, long deleteNanos) {
+        System.out.printf("%-10s %12.0f %12.0f %12.0f%n", layout, files / (createNanos / 1e9), reads / (readNanos / 1e9),
+                (files / 2) / (deleteNanos / 1e9));
+    }
+
+    private static void check(long bytes, int reads, byte[] content) {
+        if (bytes != (long) reads * content.length) {
+            throw new IllegalStateException("read back " + bytes + " bytes, expected " + (long) reads * content.length);
+        }
+    }
+
+    private static String name(int i) {
+        return "file-" + i + ".txt";
+    }
+}
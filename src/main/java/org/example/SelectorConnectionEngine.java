@@ -0,0 +1,201 @@
+package org.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single selector thread accepts connections and waits until a client has actually sent its
+ * command. Only then is the channel switched to blocking mode and handed to a bounded worker
+ * pool, so idle or slow-to-speak connections do not hold a thread. Connections kept open
+ * between commands are parked back on the selector the same way, and closed once idle.
+ */
+public class SelectorConnectionEngine implements ConnectionEngine {
+    private static final Logger logger = LoggerFactory.getLogger(SelectorConnectionEngine.class);
+
+    // How often parked connections are checked for their idle timeout
+    private static final long SWEEP_MILLIS = 1000;
+
+    private static final class Parked {
+        final SocketChannel channel;
+        final long deadline;
+        final Runnable resume;
+
+        Parked(SocketChannel channel, long deadline, Runnable resume) {
+            this.channel = channel;
+            this.deadline = deadline;
+            this.resume = resume;
+        }
+    }
+
+    private final ThreadPoolExecutor workers;
+    private final Queue<Parked> parking = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger parked = new AtomicInteger();
+    private volatile boolean running = true;
+    private volatile Selector selector;
+
+    public SelectorConnectionEngine(int workerThreads, int maxPendingConnections) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxPendingConnections),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "nio-worker-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @Override
+    public void serve(int port, ConnectionHandler handler) throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             Selector selector = Selector.open()) {
+            this.selector = selector;
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Socket Server (nio) started, listening on: " + port);
+
+            List<SelectionKey> ready = new ArrayList<>();
+            long nextSweep = System.currentTimeMillis() + SWEEP_MILLIS;
+            while (running) {
+                registerParked(selector);
+                selector.select(parked.get() > 0 ? SWEEP_MILLIS : 0);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        SocketChannel channel = serverChannel.accept();
+                        if (channel == null) {
+                            continue;
+                        }
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        channel.register(selector, SelectionKey.OP_READ);
+                    } else if (key.isReadable()) {
+                        key.cancel();
+                        ready.add(key);
+                    }
+                }
+
+                if (!ready.isEmpty()) {
+                    // Cancelled keys are only deregistered on the next select; a channel cannot
+                    // go back to blocking mode while it is still registered.
+                    selector.selectNow();
+                    for (SelectionKey key : ready) {
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        if (key.attachment() instanceof Parked) {
+                            parked.decrementAndGet();
+                            dispatch(channel, ((Parked) key.attachment()).resume);
+                        } else {
+                            dispatch(channel, () -> handler.handle(channel.socket()));
+                        }
+                    }
+                    ready.clear();
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    closeIdle(selector, now);
+                    nextSweep = now + SWEEP_MILLIS;
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    @Override
+    public boolean park(Socket socket, long idleTimeoutMillis, Runnable resume) {
+        SocketChannel channel = socket.getChannel();
+        Selector current = selector;
+        if (channel == null || current == null || !running) {
+            return false;
+        }
+        long deadline = idleTimeoutMillis > 0 ? System.currentTimeMillis() + idleTimeoutMillis : Long.MAX_VALUE;
+        parked.incrementAndGet();
+        parking.add(new Parked(channel, deadline, resume));
+        current.wakeup();
+        return true;
+    }
+
+    @Override
+    public int parkedConnections() {
+        return parked.get();
+    }
+
+    // Channels are registered by the selector thread itself, a register() from another thread
+    // would block until the current select() returns
+    private void registerParked(Selector selector) {
+        Parked next;
+        while ((next = parking.poll()) != null) {
+            try {
+                next.channel.configureBlocking(false);
+                next.channel.register(selector, SelectionKey.OP_READ, next);
+            } catch (IOException e) {
+                parked.decrementAndGet();
+                closeQuietly(next.channel); // closed by the peer or on shutdown while parked
+            }
+        }
+    }
+
+    private void closeIdle(Selector selector, long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Parked && ((Parked) key.attachment()).deadline <= now) {
+                key.cancel();
+                parked.decrementAndGet();
+                closeQuietly((SocketChannel) key.channel());
+            }
+        }
+    }
+
+    private void dispatch(SocketChannel channel, Runnable task) {
+        try {
+            channel.configureBlocking(true);
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.error("Worker pool saturated, dropping connection from " + channel.socket().getInetAddress());
+            closeQuietly(channel);
+        } catch (IOException e) {
+            logger.error("Error dispatching connection: " + e.getMessage());
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public boolean boundedWorkers() {
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * The original model: one new platform thread for every accepted socket. Sockets are
+ * accepted through a channel so reads can be sent with sendfile.
+ */
+public class ThreadPerConnectionEngine implements ConnectionEngine {
+    private static final Logger logger = LoggerFactory.getLogger(ThreadPerConnectionEngine.class);
+
+    private volatile boolean running = true;
+    private volatile ServerSocketChannel serverChannel;
+
+    @Override
+    public void serve(int port, ConnectionHandler handler) throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Socket Server started, listening on: " + port);
+
+            while (running) {
+                Socket clientSocket = serverChannel.accept().socket();
+                logger.info("Client connected: " + clientSocket.getInetAddress());
+
+                new Thread(() -> handler.handle(clientSocket)).start();
+            }
+        } catch (IOException e) {
+            if (running) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error closing server socket: " + e.getMessage());
+        }
+    }
+}
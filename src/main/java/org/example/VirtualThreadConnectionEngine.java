@@ -0,0 +1,82 @@
+package org.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * One virtual thread per connection, capped by a connection limit. Virtual threads need
+ * JDK 21; on older runtimes this falls back to a cached platform pool under the same cap.
+ */
+public class VirtualThreadConnectionEngine implements ConnectionEngine {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadConnectionEngine.class);
+
+    private final ExecutorService executor;
+    private final Semaphore connectionPermits;
+    private volatile boolean running = true;
+    private volatile ServerSocketChannel serverChannel;
+
+    public VirtualThreadConnectionEngine(int maxConnections) {
+        this.executor = newVirtualThreadExecutor();
+        this.connectionPermits = new Semaphore(maxConnections);
+    }
+
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads are not available on this JVM, using a platform thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    @Override
+    public void serve(int port, ConnectionHandler handler) throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            System.out.println("Socket Server (virtual) started, listening on: " + port);
+
+            while (running) {
+                Socket clientSocket = serverChannel.accept().socket();
+                if (!connectionPermits.tryAcquire()) {
+                    logger.error("Connection limit reached, dropping connection from " + clientSocket.getInetAddress());
+                    clientSocket.close();
+                    continue;
+                }
+                executor.execute(() -> {
+                    try {
+                        handler.handle(clientSocket);
+                    } finally {
+                        connectionPermits.release();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (running) {
+                throw e;
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error closing server socket: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaSyncTest {
+    @TempDir
+    Path directory;
+
+    private final Random random = new Random(11);
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    // Checks both apply paths rebuild target, and returns the delta's size
+    private int assertRebuilds(byte[] basis, byte[] target) throws IOException {
+        Path basisFile = Files.write(directory.resolve("basis"), basis);
+        Path targetFile = Files.write(directory.resolve("target"), target);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        DeltaSync.delta(basisFile, targetFile, delta);
+
+        assertArrayEquals(target, DeltaSync.apply(basis, delta.toByteArray()));
+        Path output = directory.resolve("output");
+        DeltaSync.apply(basisFile, delta.toByteArray(), output);
+        assertArrayEquals(target, Files.readAllBytes(output));
+        return delta.size();
+    }
+
+    @Test
+    void identicalFilesNeedOnlyCopies() throws IOException {
+        byte[] basis = randomBytes(1 << 20);
+        int deltaSize = assertRebuilds(basis, basis);
+        assertTrue(deltaSize < 1024, "delta of an unchanged file was " + deltaSize + " bytes");
+    }
+
+    @Test
+    void smallEditsShipOnlyTheChangedBytes() throws IOException {
+        byte[] basis = randomBytes(1 << 20);
+        byte[] edited = concat(Arrays.copyOfRange(basis, 0, 300_000), randomBytes(100),
+                Arrays.copyOfRange(basis, 300_050, 700_000), Arrays.copyOfRange(basis, 700_500, basis.length));
+        edited[900_000] ^= 1;
+        int deltaSize = assertRebuilds(basis, edited);
+        assertTrue(deltaSize < 16 * 1024, "delta of a small edit was " + deltaSize + " bytes");
+    }
+
+    @Test
+    void shiftedContentIsStillMatched() throws IOException {
+        byte[] basis = randomBytes(256 * 1024);
+        int deltaSize = assertRebuilds(basis, concat(randomBytes(3), basis));
+        assertTrue(deltaSize < 8 * 1024, "delta after a 3 byte insert was " + deltaSize + " bytes");
+    }
+
+    @Test
+    void unrelatedAndEmptyFilesRoundTrip() throws IOException {
+        assertRebuilds(randomBytes(100_000), randomBytes(50_000));
+        assertRebuilds(new byte[0], randomBytes(10_000));
+        assertRebuilds(randomBytes(10_000), new byte[0]);
+        assertRebuilds(new byte[0], new byte[0]);
+    }
+
+    @Test
+    void truncatedDeltaIsRejected() throws IOException {
+        byte[] basis = randomBytes(64 * 1024);
+        Path basisFile = Files.write(directory.resolve("basis"), basis);
+        Path targetFile = Files.write(directory.resolve("target"), concat(basis, randomBytes(1000)));
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        DeltaSync.delta(basisFile, targetFile, delta);
+        byte[] truncated = Arrays.copyOf(delta.toByteArray(), delta.size() - 10);
+        assertThrows(IOException.class, () -> DeltaSync.apply(basis, truncated));
+    }
+}
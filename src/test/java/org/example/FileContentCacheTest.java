@@ -0,0 +1,112 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileContentCacheTest {
+
+    private static byte[] content(int length, int fill) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) fill);
+        return bytes;
+    }
+
+    private static boolean put(FileContentCache cache, String key, byte[] content) {
+        return cache.put(key, content, cache.generation(key));
+    }
+
+    @Test
+    void loadStartedBeforeAnInvalidationIsNotAdmitted() {
+        FileContentCache cache = new FileContentCache(1 << 20, 64 * 1024, false);
+        long generation = cache.generation("a");
+        cache.invalidate("a");
+        assertFalse(cache.put("a", content(100, 1), generation));
+        assertNull(cache.get("a"));
+
+        assertTrue(put(cache, "a", content(100, 2)));
+        ByteBuffer cached = cache.get("a");
+        assertNotNull(cached);
+        assertEquals(2, cached.get(0));
+    }
+
+    @Test
+    void invalidationDropsTheEntry() {
+        FileContentCache cache = new FileContentCache(1 << 20, 64 * 1024, true);
+        assertTrue(put(cache, "a", content(100, 1)));
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    void invalidationOnlyHoldsBackItsOwnStripe() {
+        FileContentCache cache = new FileContentCache(1 << 20, 64 * 1024, false);
+        cache.invalidate("a");
+        String other = "b0";
+        for (int i = 1; cache.generation(other) == cache.generation("a"); i++) {
+            other = "b" + i; // one in another stripe
+        }
+        long generation = cache.generation(other);
+        cache.invalidate("a");
+        assertTrue(cache.put(other, content(100, 1), generation));
+        assertNotNull(cache.get(other));
+    }
+
+    @Test
+    void oversizedEntriesAreNotCached() {
+        FileContentCache cache = new FileContentCache(1 << 20, 1024, false);
+        assertFalse(put(cache, "a", content(1025, 1)));
+        assertFalse(new FileContentCache(0, 1024, false).isEnabled());
+    }
+
+    @Test
+    void hotEntriesSurviveAStreamOfOneOffReads() {
+        FileContentCache cache = new FileContentCache(64 * 1024, 1024, false);
+        for (int i = 0; i < 16; i++) {
+            put(cache, "hot" + i, content(1024, i));
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 16; i++) {
+                if (cache.get("hot" + i) == null) {
+                    put(cache, "hot" + i, content(1024, i));
+                }
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            if (cache.get("cold" + i) == null) {
+                put(cache, "cold" + i, content(1024, 0));
+            }
+        }
+        for (int i = 0; i < 16; i++) {
+            assertNotNull(cache.get("hot" + i), "hot" + i);
+        }
+        assertTrue(cache.size() <= 64 * 1024);
+    }
+
+    @Test
+    void rejectedCandidateEvictsNothing() {
+        // 4 KB window, 6 KB main segments
+        FileContentCache cache = new FileContentCache(10 * 1024, 4096, false);
+        for (String key : new String[]{"a", "b", "e", "f", "g"}) {
+            put(cache, key, content(2048, key.charAt(0)));
+        }
+        // a, b and e have left the window and fill the main segments; b and e become hot
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(cache.get("b"));
+            assertNotNull(cache.get("e"));
+        }
+        put(cache, "c", content(4096, 'c'));
+        cache.get("c");
+        cache.get("c");
+        // c leaves the window and needs a's and b's room; it beats a but not b
+        put(cache, "h", content(4096, 'h'));
+
+        assertNull(cache.get("c"));
+        assertNotNull(cache.get("a"), "a was evicted for a candidate that was then rejected");
+        assertNotNull(cache.get("b"));
+        assertNotNull(cache.get("e"));
+    }
+}
@@ -0,0 +1,88 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameTest {
+
+    private static Frame roundTrip(Frame frame, Codec codec) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        frame.writeTo(new DataOutputStream(bytes), codec);
+        return Frame.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    void everyOpcodeSurvivesARoundTrip() throws IOException {
+        for (Opcode opcode : Opcode.values()) {
+            byte[] payload = opcode.command.getBytes(StandardCharsets.UTF_8);
+            Frame read = roundTrip(new Frame(opcode.ordinal() * 1000L + 7, opcode, payload), Codec.NONE);
+            assertEquals(opcode, read.opcode);
+            assertEquals(opcode.ordinal() * 1000L + 7, read.requestId);
+            assertArrayEquals(payload, read.payload);
+        }
+    }
+
+    @Test
+    void opcodesDecodeFromTheirCode() {
+        for (Opcode opcode : Opcode.values()) {
+            assertSame(opcode, Opcode.fromCode(opcode.code));
+            assertEquals(0, opcode.code & Frame.COMPRESSED, "the top bit marks compressed frames");
+        }
+        assertNull(Opcode.fromCode((byte) 0));
+    }
+
+    @Test
+    void compressedPayloadsRoundTrip() throws IOException {
+        byte[] payload = new byte[64 * 1024];
+        Arrays.fill(payload, (byte) 'x');
+        for (Codec codec : Codec.values()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new Frame(42, Opcode.UPDATE_REPLICA, payload).writeTo(new DataOutputStream(bytes), codec);
+            if (codec != Codec.NONE) {
+                assertTrue(bytes.size() < payload.length / 10, codec + " should shrink a run of one byte");
+            }
+            Frame read = Frame.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            assertEquals(Opcode.UPDATE_REPLICA, read.opcode);
+            assertArrayEquals(payload, read.payload);
+        }
+    }
+
+    @Test
+    void smallPayloadsAreNotCompressed() throws IOException {
+        byte[] payload = new byte[Frame.MIN_COMPRESSED_PAYLOAD - 1];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new Frame(1, Opcode.READ, payload).writeTo(new DataOutputStream(bytes), Codec.DEFLATE);
+        assertEquals(4 + Frame.HEADER_SIZE + payload.length, bytes.size());
+    }
+
+    @Test
+    void oversizedPayloadIsRefusedBeforeWriting() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Frame frame = new Frame(1, Opcode.UPLOAD, new byte[Frame.MAX_PAYLOAD_SIZE + 1]);
+        assertThrows(IOException.class, () -> frame.writeTo(new DataOutputStream(bytes)));
+        assertEquals(0, bytes.size());
+    }
+
+    @Test
+    void invalidLengthsAndOpcodesAreRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(Frame.HEADER_SIZE - 1);
+        assertThrows(IOException.class, () -> Frame.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+
+        bytes.reset();
+        out.writeInt(Frame.HEADER_SIZE);
+        out.writeLong(1);
+        out.writeByte(0);
+        assertThrows(IOException.class, () -> Frame.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+}
@@ -0,0 +1,46 @@
+package org.example;
+
+import com.google.common.hash.Hashing;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class Murmur3Test {
+
+    // Guava's murmur3_128 over the chars, little-endian, is the reference; asLong() is h1
+    private static long guava(String key, int seed) {
+        return Hashing.murmur3_128(seed).hashUnencodedChars(key).asLong();
+    }
+
+    @Test
+    void matchesGuavaForEveryTailLength() {
+        StringBuilder key = new StringBuilder();
+        for (int length = 0; length <= 40; length++) {
+            assertEquals(guava(key.toString(), 0), Murmur3.hash64(key), "length " + length);
+            key.append((char) ('a' + length % 26));
+        }
+    }
+
+    @Test
+    void matchesGuavaWithASeed() {
+        for (String key : new String[]{"", "a", "file-0001.txt", "Files/server-1/a/much/longer/path/name.bin"}) {
+            assertEquals(guava(key, 42), Murmur3.hash64(key, 42), key);
+            assertEquals(guava(key, -1), Murmur3.hash64(key, -1), key);
+        }
+    }
+
+    @Test
+    void matchesGuavaOutsideAscii() {
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            char[] chars = new char[random.nextInt(50)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = (char) random.nextInt(Character.MAX_VALUE + 1);
+            }
+            String key = new String(chars);
+            assertEquals(guava(key, 0), Murmur3.hash64(key));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentStoreTest {
+    @TempDir
+    File directory;
+
+    private static byte[] content(int length, int fill) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) fill);
+        return bytes;
+    }
+
+    private File[] segmentFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        assertNotNull(files);
+        Arrays.sort(files);
+        return files;
+    }
+
+    @Test
+    void recordsSurviveAReopen() throws IOException {
+        try (SegmentStore store = new SegmentStore(directory, 1 << 20)) {
+            store.put("a", content(100, 1));
+            store.put("b", content(200, 2));
+            store.put("a", content(50, 3));
+            assertTrue(store.delete("b"));
+            assertFalse(store.delete("b"));
+        }
+        try (SegmentStore store = new SegmentStore(directory, 1 << 20)) {
+            assertArrayEquals(content(50, 3), store.read("a"));
+            assertFalse(store.contains("b"));
+            assertNull(store.read("b"));
+            assertEquals(-1, store.size("b"));
+        }
+    }
+
+    @Test
+    void tornRecordIsCutOffAtOpen() throws IOException {
+        try (SegmentStore store = new SegmentStore(directory, 1 << 20)) {
+            store.put("a", content(100, 1));
+            store.put("b", content(100, 2));
+        }
+        File segment = segmentFiles()[0];
+        long intact = segment.length() - (2 + 1 + 8 + 100);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(segment.length() - 7); // a crash in the middle of b's data
+        }
+
+        try (SegmentStore store = new SegmentStore(directory, 1 << 20)) {
+            assertArrayEquals(content(100, 1), store.read("a"));
+            assertFalse(store.contains("b"));
+            assertEquals(intact, segment.length());
+            store.put("c", content(10, 4));
+        }
+        try (SegmentStore store = new SegmentStore(directory, 1 << 20)) {
+            assertArrayEquals(content(100, 1), store.read("a"));
+            assertArrayEquals(content(10, 4), store.read("c"));
+        }
+    }
+
+    @Test
+    void tornHeaderIsCutOffAtOpen() throws IOException {
+        try (SegmentStore store = new SegmentStore(directory, 1 << 20)) {
+            store.put("a", content(100, 1));
+        }
+        File segment = segmentFiles()[0];
+        long intact = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(intact);
+            file.write(new byte[]{0, 5, 'b'}); // the name of a record that never got further
+        }
+        try (SegmentStore store = new SegmentStore(directory, 1 << 20)) {
+            assertArrayEquals(content(100, 1), store.read("a"));
+            assertEquals(intact, segment.length());
+        }
+    }
+
+    @Test
+    void corruptRecordFailsItsRead() throws IOException {
+        try (SegmentStore store = new SegmentStore(directory, 1 << 20)) {
+            store.put("a", content(100, 1));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segmentFiles()[0], "rw")) {
+            file.seek(file.length() - 1);
+            file.write(9);
+        }
+        try (SegmentStore store = new SegmentStore(directory, 1 << 20)) {
+            assertThrows(BlockChecksums.ChecksumException.class, () -> store.read("a"));
+        }
+    }
+
+    @Test
+    void compactionKeepsLiveRecordsAndDeletes() throws IOException {
+        // Two 600 byte records per segment
+        try (SegmentStore store = new SegmentStore(directory, 1024)) {
+            for (int i = 0; i < 10; i++) {
+                store.put("f" + i, content(600, i));
+            }
+            for (int i = 0; i < 10; i += 2) {
+                store.put("f" + i, content(600, 100 + i)); // overwritten, the old record is dead
+            }
+            store.delete("f1");
+            store.delete("f3");
+            int before = segmentFiles().length;
+
+            store.compact(0.75);
+
+            assertTrue(segmentFiles().length < before, "no segment was compacted");
+            assertTrue(store.metrics().contains("compactions="));
+            assertFalse(store.metrics().contains("compactions=0 "));
+            for (int i = 0; i < 10; i++) {
+                assertState(store, i);
+            }
+        }
+        try (SegmentStore store = new SegmentStore(directory, 1024)) {
+            for (int i = 0; i < 10; i++) {
+                assertState(store, i);
+            }
+        }
+    }
+
+    private static void assertState(SegmentStore store, int i) throws IOException {
+        if (i == 1 || i == 3) {
+            assertNull(store.read("f" + i), "f" + i + " came back");
+        } else {
+            assertArrayEquals(content(600, i % 2 == 0 ? 100 + i : i), store.read("f" + i), "f" + i);
+        }
+    }
+}